@@ -4,17 +4,24 @@ import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.JDABuilder;
 import net.dv8tion.jda.api.OnlineStatus;
-import net.dv8tion.jda.api.requests.GatewayIntent;
+import wood.cluster.Cluster;
 import wood.commands.Chat;
 import wood.commands.Prompt;
 import wood.handler.CommandHandler;
 import wood.handler.MessageHandler;
 import wood.handler.ModalHandler;
+import wood.handler.NonBlockingEventManager;
 import wood.handler.ReactionHandler;
+import wood.replay.TrafficRecorder;
 import wood.services.DiscordTokenService;
+import wood.services.FlightRecorderService;
+import wood.services.ModelCatalogService;
 import wood.services.OpenAIKeyService;
+import wood.services.SettingsService;
 
 import javax.security.auth.login.LoginException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 public class Main {
@@ -22,14 +29,18 @@ public class Main {
     public static JDA jda;
 
     public static void main(String[] args) {
-        boolean validOpenAIKey = false;
-        try {
-            OpenAIKeyService.load(args); // load OpenAI key from either args or file, and set UtilGPT.apiKey
-            validOpenAIKey = true;
-            log.info("OpenAI API key loaded successfully");
-        } catch(Exception e){
-            log.error("Error loading OpenAI key: " + e.getMessage());
-        }
+        long startTime = System.nanoTime();
+
+        // validating the OpenAI key makes a live API request, so it runs while logging in to Discord
+        CompletableFuture<Void> openAIKeyLoading = CompletableFuture.runAsync(() -> {
+            long phaseStart = System.nanoTime();
+            try {
+                OpenAIKeyService.load(args); // load OpenAI key from either args or file, and set UtilGPT.apiKey
+            } catch(Exception e) {
+                throw new CompletionException(e);
+            }
+            logPhase("OpenAI key validation", phaseStart);
+        });
 
         String token = null;
         boolean foundToken = false; // if a token is found either in args or in the file - even if it's invalid
@@ -40,12 +51,61 @@ public class Main {
             log.error("Error loading Discord token: " + e.getMessage());
         }
 
-        if(validOpenAIKey && foundToken) {
+        boolean loadedModels = false;
+        try {
+            ModelCatalogService.load(); // load models.json - the models, their prices, and context lengths
+            loadedModels = true;
+        } catch (Exception e) {
+            log.error("Error loading the model catalog: " + e.getMessage());
+        }
+
+        boolean validClusterArgs = false;
+        try {
+            Cluster.load(args); // enables clustered mode if -worker and -cluster are given
+            validClusterArgs = true;
+        } catch (Exception e) {
+            log.error("Error joining the cluster: " + e.getMessage());
+        }
+
+        boolean loadedSettings = false;
+        try {
+            SettingsService.load(); // load settings.json (and the cluster's shared settings), and reload them on changes
+            loadedSettings = true;
+        } catch (Exception e) {
+            log.error("Error loading settings: " + e.getMessage());
+        }
+
+        boolean validJFRArgs = false;
+        try {
+            FlightRecorderService.load(args); // starts a continuous flight recording if -jfr is given
+            validJFRArgs = true;
+        } catch (Exception e) {
+            log.error("Error starting the flight recording: " + e.getMessage());
+        }
+
+        boolean validRecordArgs = false;
+        try {
+            TrafficRecorder.load(args); // records traffic for TrafficReplayer if -record is given
+            validRecordArgs = true;
+        } catch (Exception e) {
+            log.error("Error starting the traffic recording: " + e.getMessage());
+        }
+
+        RuntimeProfile profile = null;
+        try {
+            profile = RuntimeProfile.load(args);
+        } catch (IllegalArgumentException e) {
+            log.error(e.getMessage());
+        }
+
+        if(foundToken && loadedModels && loadedSettings && validClusterArgs && validJFRArgs && validRecordArgs && profile != null) {
             try {
+                long phaseStart = System.nanoTime();
 
-                JDABuilder builder = JDABuilder.createDefault(token, GatewayIntent.GUILD_MESSAGES,
-                        GatewayIntent.GUILD_MESSAGE_REACTIONS);
+                log.info("Using the " + profile.name().toLowerCase() + " runtime profile");
+                JDABuilder builder = profile.createBuilder(token);
 
+                builder.setEventManager(new NonBlockingEventManager()); // reports handlers that block the event thread
                 builder.addEventListeners(
                         new CommandHandler(),
                         new MessageHandler((Prompt) CommandHandler.commandMap.get(CommandHandler.PROMPT_CMD),
@@ -55,9 +115,16 @@ public class Main {
                         new ReactionHandler());
                 builder.setStatus(OnlineStatus.ONLINE);
                 jda = builder.build().awaitReady();
+                logPhase("Discord login", phaseStart);
+
+                if(!awaitOpenAIKey(openAIKeyLoading)) {
+                    jda.shutdown();
+                    return;
+                }
                 log.info("DiscordGPT3 successfully started");
 
                 CommandHandler.checkAndSetSlashCommands();
+                logPhase("Time to ready", startTime);
 
             } catch (LoginException e) {
                 log.error("Invalid Discord bot Token", e);
@@ -65,6 +132,33 @@ public class Main {
                 log.error("Error connecting to discord", e);
             }
         }
+        else {
+            awaitOpenAIKey(openAIKeyLoading); // still report whether the key is valid
+        }
+    }
+
+    /**
+     * Waits for the OpenAI key to finish loading and being validated
+     * @return Whether a valid OpenAI key was loaded
+     */
+    private static boolean awaitOpenAIKey(CompletableFuture<Void> openAIKeyLoading) {
+        try {
+            openAIKeyLoading.join();
+            log.info("OpenAI API key loaded successfully");
+            return true;
+        } catch(CompletionException e) {
+            log.error("Error loading OpenAI key: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Logs how long a phase of startup took
+     * @param phase The name of the phase
+     * @param phaseStart The System.nanoTime() when the phase started
+     */
+    private static void logPhase(String phase, long phaseStart) {
+        log.info(String.format("Startup: %s took %d ms", phase, (System.nanoTime() - phaseStart) / 1_000_000));
     }
 
 }
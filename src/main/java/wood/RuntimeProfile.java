@@ -0,0 +1,66 @@
+package wood;
+
+import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+
+import java.util.EnumSet;
+
+/** Selects how JDA is configured - chosen with the -profile <default|lean> command line argument. */
+public enum RuntimeProfile {
+
+    /** JDA's default caches, which hold members, emojis, stickers, voice states and more */
+    DEFAULT,
+
+    /**
+     * Only what the handlers use: message and reaction events inside guilds, with no member chunking and no
+     * member or CacheFlag caches.  The bot never reads members, presences, emojis, stickers or voice states.
+     */
+    LEAN;
+
+    /** The gateway intents the handlers rely on - messages in /prompt and /chat threads, and reactions to them */
+    private static final EnumSet<GatewayIntent> intents =
+            EnumSet.of(GatewayIntent.GUILD_MESSAGES, GatewayIntent.GUILD_MESSAGE_REACTIONS);
+
+    /** Discord's minimum - guilds over this many members are sent without their offline members */
+    private static final int MIN_LARGE_THRESHOLD = 50;
+
+    /**
+     * @param args Command line arguments
+     * @return The profile given by -profile <default|lean>, or DEFAULT if -profile isn't given
+     * @throws IllegalArgumentException if -profile is given without a valid profile name
+     */
+    public static RuntimeProfile load(String[] args) throws IllegalArgumentException {
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-profile")) {
+                // if -profile both isn't the last argument, and the next argument is a profile name
+                if(i+1 != args.length && (args[i+1].equalsIgnoreCase("default") || args[i+1].equalsIgnoreCase("lean")))
+                    return valueOf(args[i + 1].toUpperCase());
+                else
+                    throw new IllegalArgumentException("error: -profile requires either 'default' or 'lean'. "
+                            + "Usage: -profile <default|lean>");
+            }
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * @param token The Discord bot token
+     * @return A JDABuilder configured for this profile
+     */
+    public JDABuilder createBuilder(String token) {
+        switch(this) {
+            case LEAN:
+                return JDABuilder.create(token, intents)
+                        .disableCache(EnumSet.allOf(CacheFlag.class))
+                        .setMemberCachePolicy(MemberCachePolicy.NONE)
+                        .setChunkingFilter(ChunkingFilter.NONE)
+                        .setLargeThreshold(MIN_LARGE_THRESHOLD);
+            default:
+                return JDABuilder.createDefault(token, intents);
+        }
+    }
+
+}
@@ -1,26 +1,287 @@
 package wood;
 
+import lombok.Getter;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.backend.CompletionBackends;
+import wood.backend.CompletionTask;
+import wood.backend.OpenAIBackend;
+import wood.models.ModelCatalog;
 import wood.util.GPTRequest;
 
-// TODO use a JSON file to store settings
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * An immutable snapshot of the bot's settings.  Settings are loaded from a JSON file by SettingsService, and each guild
+ * can override any of them.  Reading a guild's settings is a single volatile load of the published snapshot, so use
+ * one Settings object for the whole of a request rather than calling get() for each field.
+ */
+@Getter
 public class Settings {
 
+    /** The settings published by SettingsService - global settings, and each guild's (overridden) settings */
+    private static final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(new Settings(), Map.of()));
+
     /** The default model to use for all API calls. */
-    public static String model = GPTRequest.inDavinci;
+    private final String model;
 
     /** The maximum cost USD per API request from threads created by /prompt */
-    public static double maxCostPerAPIRequest = .025;
+    private final double maxCostPerAPIRequest;
 
     /** In the /prompt command, the number of tokens used in the API request's completion  */
-    public static int promptCompletionTokens = 30;
+    private final int promptCompletionTokens;
 
     /** In the /chat command, the number of tokens used in the API request's completion  */
-    public static int chatCompletionTokens = 30;
+    private final int chatCompletionTokens;
 
     /** Whether the names for threads created by /prompt should be generated by GPT-3 */
-    public static boolean gptGeneratedThreadNames = true;
+    private final boolean gptGeneratedThreadNames;
 
     /** If gptGeneratedThreadNames is false, then this will be the name for threads created by /prompt */
-    public static String defaultThreadName = "GPT-3";
+    private final String defaultThreadName;
+
+    /** How long after a message or interaction its reply stops being useful - requests that can't finish in time are dropped */
+    private final long replyDeadlineMillis;
+
+    /** In /prompt threads, the minimum time between edits of the messages the prompt is rendered across */
+    private final long promptEditIntervalMillis;
+
+    /** In /chat threads, how long to wait for more messages before replying to all of them at once (0 to reply to every message) */
+    private final long chatDebounceMillis;
+
+    /** In /chat threads, whether the older messages sent with a reply are the most relevant to it, rather than the most recent */
+    private final boolean chatRelevantContext;
+
+    /** (chatRelevantContext) The fraction (0-1) of a reply's context the most recent messages can fill */
+    private final double chatRecentContextShare;
+
+    /** (global only) The maximum number of OpenAI API requests to a model that can be in flight at once */
+    private final int defaultModelConcurrencyLimit;
+
+    /** (global only) Overrides of defaultModelConcurrencyLimit for individual models */
+    private final Map<String, Integer> modelConcurrencyLimits;
+
+    /** This guild's share of OpenAI API requests under load, relative to other guilds' (default 1) */
+    private final double fairQueueWeight;
+
+    /** (global only) The fraction (0-1) of events and interactions traced to SpanExporter.TRACE_DIR */
+    private final double traceSampleRate;
+
+    /** The rolling window the user, guild, and thread budgets below apply to */
+    private final long budgetWindowMillis;
+
+    /** The maximum tokens / USD each user can spend within budgetWindowMillis (0 for no limit) */
+    private final long userTokenBudget;
+    private final double userUSDBudget;
+
+    /** The maximum tokens / USD each guild can spend within budgetWindowMillis (0 for no limit) */
+    private final long guildTokenBudget;
+    private final double guildUSDBudget;
+
+    /** The maximum tokens / USD each thread can spend within budgetWindowMillis (0 for no limit) */
+    private final long threadTokenBudget;
+    private final double threadUSDBudget;
+
+    /** The temperature of /prompt completions */
+    private final double promptTemperature;
+
+    /** (1-20) How many completions each /prompt completion is chosen from, in one API request - the alternatives
+     *  can be swapped in with ReactionHandler.nextChoiceEmoji.  Each costs as much as the first */
+    private final int promptChoices;
+
+    /** Whether the first completions of /prompt threads are cached, and reused for near-duplicate prompts (PromptCache) */
+    private final boolean promptCacheEnabled;
+
+    /** Only /prompt completions made at or below this temperature are cached */
+    private final double promptCacheMaxTemperature;
+
+    /** (global only, 0-15) How many bits apart the SimHash signatures of near-duplicate prompts can be */
+    private final int promptCacheMaxDistance;
+
+    /** (global only) The maximum number of completions in the prompt cache */
+    private final int promptCacheCapacity;
+
+    /** Completion tasks (by CompletionTask key) mapped to the backend generating them - any not mapped use the OpenAI API */
+    private final Map<String, String> completionBackends;
+
+    /** The default settings, used for anything missing from the settings file */
+    public Settings() {
+        model = GPTRequest.inDavinci;
+        maxCostPerAPIRequest = .025;
+        promptCompletionTokens = 30;
+        chatCompletionTokens = 30;
+        gptGeneratedThreadNames = true;
+        defaultThreadName = "GPT-3";
+        replyDeadlineMillis = 60_000;
+        promptEditIntervalMillis = 1000;
+        chatDebounceMillis = 0;
+        chatRelevantContext = false;
+        chatRecentContextShare = .5;
+        defaultModelConcurrencyLimit = 8;
+        modelConcurrencyLimits = Map.of();
+        fairQueueWeight = 1;
+        traceSampleRate = 0;
+        budgetWindowMillis = 60 * 60 * 1000;
+        userTokenBudget = 0;
+        userUSDBudget = 0;
+        guildTokenBudget = 0;
+        guildUSDBudget = 0;
+        threadTokenBudget = 0;
+        threadUSDBudget = 0;
+        promptTemperature = .7;
+        promptChoices = 1;
+        promptCacheEnabled = false;
+        promptCacheMaxTemperature = .3;
+        promptCacheMaxDistance = 4;
+        promptCacheCapacity = 100_000;
+        completionBackends = Map.of();
+    }
+
+    /**
+     * @param json Settings read from the settings file
+     * @param parent The settings used for anything json doesn't contain
+     * @throws IllegalArgumentException if a completion task is routed to a backend that doesn't exist, or the prompt
+     *                                  cache's settings are out of range
+     */
+    public Settings(DataObject json, Settings parent) {
+        model = json.getString("model", parent.model);
+        maxCostPerAPIRequest = json.getDouble("maxCostPerAPIRequest", parent.maxCostPerAPIRequest);
+        promptCompletionTokens = json.getInt("promptCompletionTokens", parent.promptCompletionTokens);
+        chatCompletionTokens = json.getInt("chatCompletionTokens", parent.chatCompletionTokens);
+        gptGeneratedThreadNames = json.getBoolean("gptGeneratedThreadNames", parent.gptGeneratedThreadNames);
+        defaultThreadName = json.getString("defaultThreadName", parent.defaultThreadName);
+        replyDeadlineMillis = json.getLong("replyDeadlineMillis", parent.replyDeadlineMillis);
+        promptEditIntervalMillis = json.getLong("promptEditIntervalMillis", parent.promptEditIntervalMillis);
+        chatDebounceMillis = json.getLong("chatDebounceMillis", parent.chatDebounceMillis);
+        chatRelevantContext = json.getBoolean("chatRelevantContext", parent.chatRelevantContext);
+        chatRecentContextShare = json.getDouble("chatRecentContextShare", parent.chatRecentContextShare);
+        defaultModelConcurrencyLimit = json.getInt("defaultModelConcurrencyLimit", parent.defaultModelConcurrencyLimit);
+        modelConcurrencyLimits = json.optObject("modelConcurrencyLimits")
+                .map(limits -> limits.keys().stream().collect(Collectors.toUnmodifiableMap(model -> model, limits::getInt)))
+                .orElse(parent.modelConcurrencyLimits);
+        fairQueueWeight = json.getDouble("fairQueueWeight", parent.fairQueueWeight);
+        traceSampleRate = json.getDouble("traceSampleRate", parent.traceSampleRate);
+        budgetWindowMillis = json.getLong("budgetWindowMillis", parent.budgetWindowMillis);
+        userTokenBudget = json.getLong("userTokenBudget", parent.userTokenBudget);
+        userUSDBudget = json.getDouble("userUSDBudget", parent.userUSDBudget);
+        guildTokenBudget = json.getLong("guildTokenBudget", parent.guildTokenBudget);
+        guildUSDBudget = json.getDouble("guildUSDBudget", parent.guildUSDBudget);
+        threadTokenBudget = json.getLong("threadTokenBudget", parent.threadTokenBudget);
+        threadUSDBudget = json.getDouble("threadUSDBudget", parent.threadUSDBudget);
+        promptTemperature = json.getDouble("promptTemperature", parent.promptTemperature);
+        promptChoices = json.getInt("promptChoices", parent.promptChoices);
+        if(promptChoices < 1 || promptChoices > 20) // the API's limit on bestOf, which must be at least the choices
+            throw new IllegalArgumentException("promptChoices must be 1-20, not " + promptChoices);
+        promptCacheEnabled = json.getBoolean("promptCacheEnabled", parent.promptCacheEnabled);
+        promptCacheMaxTemperature = json.getDouble("promptCacheMaxTemperature", parent.promptCacheMaxTemperature);
+        promptCacheMaxDistance = json.getInt("promptCacheMaxDistance", parent.promptCacheMaxDistance);
+        promptCacheCapacity = json.getInt("promptCacheCapacity", parent.promptCacheCapacity);
+        if(promptCacheMaxDistance < 0 || promptCacheMaxDistance > 15)
+            throw new IllegalArgumentException("promptCacheMaxDistance must be 0-15, not " + promptCacheMaxDistance);
+        if(promptCacheCapacity < 1)
+            throw new IllegalArgumentException("promptCacheCapacity must be positive, not " + promptCacheCapacity);
+        completionBackends = json.optObject("completionBackends")
+                .map(backends -> backends.keys().stream().collect(Collectors.toUnmodifiableMap(task -> task, backends::getString)))
+                .orElse(parent.completionBackends);
+        completionBackends.values().stream().filter(backend -> !CompletionBackends.exists(backend)).findFirst()
+                .ifPresent(backend -> {
+                    throw new IllegalArgumentException("Unknown completion backend '" + backend + "'");
+                });
+    }
+
+    /** @return These settings, in the format of the settings file. */
+    public DataObject toData() {
+        DataObject concurrencyLimits = DataObject.empty();
+        modelConcurrencyLimits.forEach(concurrencyLimits::put);
+        DataObject backends = DataObject.empty();
+        completionBackends.forEach(backends::put);
+
+        return DataObject.empty()
+                .put("model", model)
+                .put("maxCostPerAPIRequest", maxCostPerAPIRequest)
+                .put("promptCompletionTokens", promptCompletionTokens)
+                .put("chatCompletionTokens", chatCompletionTokens)
+                .put("gptGeneratedThreadNames", gptGeneratedThreadNames)
+                .put("defaultThreadName", defaultThreadName)
+                .put("replyDeadlineMillis", replyDeadlineMillis)
+                .put("promptEditIntervalMillis", promptEditIntervalMillis)
+                .put("chatDebounceMillis", chatDebounceMillis)
+                .put("chatRelevantContext", chatRelevantContext)
+                .put("chatRecentContextShare", chatRecentContextShare)
+                .put("defaultModelConcurrencyLimit", defaultModelConcurrencyLimit)
+                .put("modelConcurrencyLimits", concurrencyLimits)
+                .put("fairQueueWeight", fairQueueWeight)
+                .put("traceSampleRate", traceSampleRate)
+                .put("budgetWindowMillis", budgetWindowMillis)
+                .put("userTokenBudget", userTokenBudget)
+                .put("userUSDBudget", userUSDBudget)
+                .put("guildTokenBudget", guildTokenBudget)
+                .put("guildUSDBudget", guildUSDBudget)
+                .put("threadTokenBudget", threadTokenBudget)
+                .put("threadUSDBudget", threadUSDBudget)
+                .put("promptTemperature", promptTemperature)
+                .put("promptChoices", promptChoices)
+                .put("promptCacheEnabled", promptCacheEnabled)
+                .put("promptCacheMaxTemperature", promptCacheMaxTemperature)
+                .put("promptCacheMaxDistance", promptCacheMaxDistance)
+                .put("promptCacheCapacity", promptCacheCapacity)
+                .put("completionBackends", backends);
+    }
+
+    /**
+     * @param model A language model
+     * @return The maximum number of OpenAI API requests to the model that can be in flight at once - its
+     *         modelConcurrencyLimits setting, else its concurrencyLimit in the ModelCatalog, else defaultModelConcurrencyLimit
+     */
+    public int getModelConcurrencyLimit(String model) {
+        Integer limit = modelConcurrencyLimits.get(model);
+        if(limit != null)
+            return limit;
+        int catalogLimit = ModelCatalog.contains(model) ? ModelCatalog.get(model).concurrencyLimit() : 0;
+        return catalogLimit > 0 ? catalogLimit : defaultModelConcurrencyLimit;
+    }
+
+    /**
+     * @param task A completion task
+     * @return The name of the CompletionBackend generating the task's completions
+     */
+    public String getCompletionBackend(CompletionTask task) {
+        return completionBackends.getOrDefault(task.getKey(), OpenAIBackend.NAME);
+    }
+
+    /** @return The settings used outside of guilds, and by guilds without overrides. */
+    public static Settings get() {
+        return snapshot.get().global;
+    }
+
+    /**
+     * @param guildID The ID of a guild
+     * @return The guild's settings - the global settings with the guild's overrides applied.
+     */
+    public static Settings get(long guildID) {
+        Snapshot current = snapshot.get();
+        return current.guilds.getOrDefault(guildID, current.global);
+    }
+
+    /**
+     * @param guild A guild, or null (e.g. for interactions in DMs)
+     * @return The guild's settings, or the global settings if guild is null.
+     */
+    public static Settings get(Guild guild) {
+        return guild == null ? get() : get(guild.getIdLong());
+    }
+
+    /**
+     * Atomically replaces every setting - requests already in flight keep the snapshot they started with.
+     * @param global The settings used outside of guilds, and by guilds without overrides
+     * @param guilds Each guild with overrides mapped to its settings
+     */
+    public static void publish(Settings global, Map<Long, Settings> guilds) {
+        snapshot.set(new Snapshot(global, Map.copyOf(guilds)));
+    }
+
+    private record Snapshot(Settings global, Map<Long, Settings> guilds) {}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,38 @@
+package wood.backend;
+
+import wood.util.GPTRequest;
+
+import java.util.List;
+
+/** Generates completions for GPTRequests - the OpenAI API by default, see CompletionBackends for the others. */
+public interface CompletionBackend {
+
+    /**
+     * Generates a completion (blocking)
+     * @param request The request to complete
+     * @return If the request's echoPrompt is true, the prompt + completion, else the completion
+     */
+    String complete(GPTRequest request);
+
+    /**
+     * Generates the request's getChoices() completions (blocking) - backends that can't generate several in one call
+     * return complete()'s alone
+     * @param request The request to complete
+     * @return The completions, each as complete() would return it, best first
+     */
+    default List<String> completeChoices(GPTRequest request) {
+        return List.of(complete(request));
+    }
+
+    /** @return Whether completions are generated in process - if so they aren't budgeted or scheduled, since they're
+     *          free, and only take microseconds */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /** @return Whether completions are paid for, and so recorded in the usage ledger */
+    default boolean isBilled() {
+        return !isLocal();
+    }
+
+}
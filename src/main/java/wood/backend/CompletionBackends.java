@@ -0,0 +1,44 @@
+package wood.backend;
+
+import wood.Settings;
+import wood.util.GPTRequest;
+
+import java.util.Map;
+
+/** The completion backends, by the name Settings.completionBackends routes tasks to them with */
+public class CompletionBackends {
+
+    public static final OpenAIBackend OPENAI = new OpenAIBackend();
+
+    private static final Map<String, CompletionBackend> backends = Map.of(
+            OpenAIBackend.NAME, OPENAI,
+            LocalTitleBackend.NAME, new LocalTitleBackend());
+
+    /** If set, every request is routed to this backend instead (e.g. TrafficReplayer's stub of the OpenAI API) */
+    private static volatile CompletionBackend override = null;
+
+    /**
+     * @param name A backend's name
+     * @return Whether a backend has the name
+     */
+    public static boolean exists(String name) {
+        return backends.containsKey(name);
+    }
+
+    /**
+     * @param request A completion request
+     * @return The backend its guild's settings route its task to
+     */
+    public static CompletionBackend forRequest(GPTRequest request) {
+        CompletionBackend current = override;
+        if(current != null)
+            return current;
+        return backends.get(Settings.get(request.getContext().getGuildID()).getCompletionBackend(request.getTask()));
+    }
+
+    /** @param backend The backend every request is routed to, or null to route requests by their settings again */
+    public static void setOverride(CompletionBackend backend) {
+        override = backend;
+    }
+
+}
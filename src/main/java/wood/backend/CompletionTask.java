@@ -0,0 +1,22 @@
+package wood.backend;
+
+import lombok.Getter;
+
+/** What a completion is for - each task can be routed to its own CompletionBackend by Settings.completionBackends */
+public enum CompletionTask {
+    /** A /prompt completion */
+    PROMPT("prompt"),
+    /** A /chat chatbot's reply */
+    CHAT("chat"),
+    /** A /chat chatbot's greeting */
+    GREETING("greeting"),
+    /** The title of a thread created by /prompt */
+    TITLE("title");
+
+    /** The task's key in Settings.completionBackends */
+    @Getter private final String key;
+
+    CompletionTask(String key) {
+        this.key = key;
+    }
+}
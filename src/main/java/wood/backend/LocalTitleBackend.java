@@ -0,0 +1,114 @@
+package wood.backend;
+
+import wood.util.GPTRequest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates titles in process, without a model - the key phrase of the request's subject is picked out with RAKE
+ * (rapid automatic keyword extraction): the text is split into candidate phrases at stop words and punctuation, each
+ * word is scored by the length of the phrases it appears in over its frequency, and the phrase with the highest total
+ * score is the title.  It's linear in the length of the text, so a title takes microseconds.
+ * Routed any other task, it returns the same key phrase - which is only useful to exercise the bot offline.
+ */
+public class LocalTitleBackend implements CompletionBackend {
+
+    public static final String NAME = "local";
+
+    /** The most words a title can have - longer phrases are cut into pieces of this length */
+    private static final int MAX_TITLE_WORDS = 5;
+
+    /** Candidate phrases never cross these */
+    private static final Pattern PHRASE_DELIMITER = Pattern.compile("[.,;:!?()\\[\\]{}\"<>|/\\\\\\n\\r\\t]+|\\s[-\u2013\u2014]+\\s");
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}][\\p{L}\\p{N}'\u2019-]*");
+
+    private static final Set<String> STOP_WORDS = Set.of(
+            "a", "about", "above", "after", "again", "against", "all", "also", "am", "an", "and", "any", "are", "as", "at",
+            "be", "because", "been", "before", "being", "below", "between", "both", "but", "by", "can", "could", "did",
+            "do", "does", "doing", "down", "during", "each", "even", "ever", "every", "few", "for", "from", "further",
+            "get", "got", "had", "has", "have", "having", "he", "her", "here", "hers", "herself", "him", "himself", "his",
+            "how", "i", "if", "in", "into", "is", "it", "it's", "its", "itself", "just", "let", "like", "me", "might",
+            "more", "most", "much", "must", "my", "myself", "no", "nor", "not", "now", "of", "off", "on", "once", "one",
+            "only", "or", "other", "our", "ours", "ourselves", "out", "over", "own", "please", "same", "she", "should",
+            "so", "some", "such", "than", "that", "the", "their", "theirs", "them", "themselves", "then", "there",
+            "these", "they", "this", "those", "through", "to", "too", "under", "until", "up", "us", "very", "was", "we",
+            "were", "what", "when", "where", "which", "while", "who", "whom", "why", "will", "with", "would", "you",
+            "your", "yours", "yourself", "yourselves", "i'm", "don't", "can't", "won't", "write", "short", "following");
+
+    @Override
+    public String complete(GPTRequest request) {
+        return title(request.getSubject());
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    /**
+     * @param text The text to title
+     * @return The text's key phrase, in title case - or "" if it has none (e.g. it's only stop words)
+     */
+    public static String title(String text) {
+        List<List<String>> phrases = new ArrayList<>();
+        for(String fragment : PHRASE_DELIMITER.split(text)) {
+            List<String> phrase = new ArrayList<>();
+            Matcher words = WORD.matcher(fragment);
+            while(words.find()) {
+                String word = words.group();
+                if(STOP_WORDS.contains(word.toLowerCase()) || phrase.size() == MAX_TITLE_WORDS) {
+                    if(!phrase.isEmpty())
+                        phrases.add(phrase);
+                    phrase = new ArrayList<>();
+                }
+                if(!STOP_WORDS.contains(word.toLowerCase()))
+                    phrase.add(word);
+            }
+            if(!phrase.isEmpty())
+                phrases.add(phrase);
+        }
+
+        // a word's degree is the total length of the phrases it appears in
+        Map<String, int[]> frequencyAndDegree = new HashMap<>();
+        for(List<String> phrase : phrases)
+            for(String word : phrase) {
+                int[] stats = frequencyAndDegree.computeIfAbsent(word.toLowerCase(), w -> new int[2]);
+                stats[0]++;
+                stats[1] += phrase.size();
+            }
+
+        // the first of the best scoring phrases
+        List<String> best = null;
+        double bestScore = 0;
+        for(List<String> phrase : phrases) {
+            double score = 0;
+            for(String word : phrase) {
+                int[] stats = frequencyAndDegree.get(word.toLowerCase());
+                score += (double) stats[1] / stats[0];
+            }
+            if(score > bestScore) {
+                best = phrase;
+                bestScore = score;
+            }
+        }
+        if(best == null)
+            return "";
+
+        StringBuilder title = new StringBuilder();
+        for(String word : best) {
+            if(title.length() > 0)
+                title.append(' ');
+            int first = word.codePointAt(0);
+            title.appendCodePoint(Character.toTitleCase(first)).append(word, Character.charCount(first), word.length());
+        }
+        return title.toString();
+    }
+
+}
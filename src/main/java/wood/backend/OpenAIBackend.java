@@ -0,0 +1,84 @@
+package wood.backend;
+
+import com.theokanning.openai.OpenAiService;
+import com.theokanning.openai.completion.CompletionChoice;
+import com.theokanning.openai.completion.CompletionRequest;
+import retrofit2.HttpException;
+import wood.models.ContextLengthExceededException;
+import wood.util.GPTRequest;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Generates completions with the OpenAI API, using GPTRequest.apiKey */
+public class OpenAIBackend implements CompletionBackend {
+
+    public static final String NAME = "openai";
+
+    /** The client for the API key last used - rebuilt only when the key changes, since each client has its own
+     *  connection pool */
+    private final AtomicReference<Client> client = new AtomicReference<>();
+
+    private record Client(String apiKey, OpenAiService service) {}
+
+    @Override
+    public String complete(GPTRequest request) {
+        return completeChoices(request).get(0);
+    }
+
+    @Override
+    public List<String> completeChoices(GPTRequest request) {
+        CompletionRequest.CompletionRequestBuilder completionRequestBuilder = CompletionRequest.builder()
+                .prompt(request.getPrompt());
+
+        completionRequestBuilder.maxTokens(request.getMaxTokens());
+        completionRequestBuilder.temperature(request.getTemperature());
+        completionRequestBuilder.topP(request.getTopP());
+        completionRequestBuilder.frequencyPenalty(request.getFrequencyPenalty());
+        completionRequestBuilder.presencePenalty(request.getPresencePenalty());
+        completionRequestBuilder.echo(request.isEchoPrompt());
+        if(request.getStopSequences() != null)
+            completionRequestBuilder.stop(request.getStopSequences());
+        // only sent when they differ from the API's defaults of 1
+        if(request.getChoices() > 1)
+            completionRequestBuilder.n(request.getChoices());
+        if(request.getBestOf() > 1)
+            completionRequestBuilder.bestOf(request.getBestOf());
+
+        try {
+            return service().createCompletion(request.getModel(), completionRequestBuilder.build()).getChoices().stream()
+                    .sorted(Comparator.comparing(CompletionChoice::getIndex))
+                    .map(CompletionChoice::getText)
+                    .toList();
+        } catch(HttpException e) {
+            // the API counts tokens exactly, so it can reject a prompt GPTUtil.countTokens estimated would fit
+            if(e.code() == 400 && isContextLengthError(e))
+                throw new ContextLengthExceededException("The prompt doesn't fit in the " + request.getModel()
+                        + " model's context");
+            throw e;
+        }
+    }
+
+    /** @return Whether the API rejected the request because its prompt and max_tokens exceed the model's context */
+    private static boolean isContextLengthError(HttpException e) {
+        try {
+            return e.response() != null && e.response().errorBody() != null
+                    && e.response().errorBody().string().contains("maximum context length");
+        } catch(IOException ignored) {
+            return false;
+        }
+    }
+
+    private OpenAiService service() {
+        String apiKey = GPTRequest.apiKey;
+        Client current = client.get();
+        if(current == null || !current.apiKey.equals(apiKey)) {
+            current = new Client(apiKey, new OpenAiService(apiKey));
+            client.set(current);
+        }
+        return current.service;
+    }
+
+}
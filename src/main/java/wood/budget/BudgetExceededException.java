@@ -0,0 +1,11 @@
+package wood.budget;
+
+/** Thrown when an OpenAI API request is rejected because it would exceed a user's, guild's, or thread's budget. */
+public class BudgetExceededException extends RuntimeException {
+
+    /** @param message Why the request was rejected - suitable to show to the user */
+    public BudgetExceededException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,178 @@
+package wood.budget;
+
+import lombok.extern.slf4j.Slf4j;
+import wood.Settings;
+import wood.scheduler.RequestContext;
+import wood.util.GPTUtil;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for OpenAI API requests.  Each user, guild, and thread has a rolling token and USD budget
+ * (from the guild's Settings); a request is charged its maximum token usage up front, and rejected - before anything
+ * is sent - if that would take any of them over budget.  Once it's answered, the charge is settled to what it used.
+ */
+@Slf4j
+public class Budgets {
+
+    private static final Map<Long, Usage> users = new ConcurrentHashMap<>(), guilds = new ConcurrentHashMap<>(),
+            threads = new ConcurrentHashMap<>();
+
+    /** Idle usage counters are pruned every this many admissions */
+    private static final int PRUNE_INTERVAL = 1024;
+    private static final AtomicLong admissions = new AtomicLong();
+
+    /** The number of requests rejected for being over budget */
+    private static final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Charges a request to the budgets of the user, guild, and thread it's made for.
+     * @param context Who the request is made for - requests made for no one (RequestContext.NONE) are always admitted
+     * @param model The model the request is for
+     * @param tokens The maximum number of tokens the request will use (including the prompt)
+     * @return The request's charges, to refund if it's never sent, or settle once it's answered
+     * @throws BudgetExceededException If the request would exceed a budget - nothing is charged
+     */
+    public static Admission admit(RequestContext context, String model, int tokens) {
+        Settings settings = Settings.get(context.getGuildID());
+        long now = System.currentTimeMillis();
+        long microUSD = Math.round(GPTUtil.tokensToUSD(tokens, model) * 1_000_000);
+
+        Charge thread = charge(threads, context.getThreadID(), settings.getThreadTokenBudget(),
+                settings.getThreadUSDBudget(), settings.getBudgetWindowMillis(), tokens, microUSD, now);
+        if(thread == Charge.REJECTED)
+            throw reject(context, "This thread", settings);
+
+        Charge user = charge(users, context.getUserID(), settings.getUserTokenBudget(),
+                settings.getUserUSDBudget(), settings.getBudgetWindowMillis(), tokens, microUSD, now);
+        if(user == Charge.REJECTED) {
+            thread.refund();
+            throw reject(context, "You", settings);
+        }
+
+        Charge guild = charge(guilds, context.getGuildID(), settings.getGuildTokenBudget(),
+                settings.getGuildUSDBudget(), settings.getBudgetWindowMillis(), tokens, microUSD, now);
+        if(guild == Charge.REJECTED) {
+            thread.refund();
+            user.refund();
+            throw reject(context, "This server", settings);
+        }
+
+        if(admissions.incrementAndGet() % PRUNE_INTERVAL == 0)
+            prune(now);
+        return new Admission(thread, user, guild);
+    }
+
+    /** @return The number of requests rejected so far for being over budget. */
+    public static long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Adds the request's usage to the owner's counters, then takes it back off if that went over budget.  Adding
+     * before checking means concurrent requests can't all pass a check that only one of them should.
+     * @param ownerID The ID of the user, guild, or thread - 0 if the request isn't made for one
+     * @param tokenBudget The maximum tokens per window, or 0 for no limit
+     * @param usdBudget The maximum USD per window, or 0 for no limit
+     * @return The charge, Charge.NONE if nothing was charged, or Charge.REJECTED if it would exceed the budget
+     */
+    private static Charge charge(Map<Long, Usage> owners, long ownerID, long tokenBudget, double usdBudget,
+                                 long windowMillis, long tokens, long microUSD, long now) {
+        if(ownerID == 0 || (tokenBudget <= 0 && usdBudget <= 0))
+            return Charge.NONE;
+
+        // a new window length (from a settings reload) starts a new count
+        Usage usage = owners.compute(ownerID, (id, existing) ->
+                existing != null && existing.tokens.getWindowMillis() == windowMillis ? existing : new Usage(windowMillis));
+        usage.lastUsed = now;
+
+        Charge charge = new Charge(usage, usage.tokens.add(tokens, now), tokens, usage.microUSD.add(microUSD, now), microUSD);
+        if((tokenBudget > 0 && usage.tokens.sum(now) > tokenBudget)
+                || (usdBudget > 0 && usage.microUSD.sum(now) > usdBudget * 1_000_000)) {
+            charge.refund();
+            return Charge.REJECTED;
+        }
+        return charge;
+    }
+
+    private static BudgetExceededException reject(RequestContext context, String owner, Settings settings) {
+        rejected.incrementAndGet();
+        log.info(String.format("Rejected a request for user %d in guild %d, thread %d - %s budget is exhausted",
+                context.getUserID(), context.getGuildID(), context.getThreadID(), owner.toLowerCase()));
+        return new BudgetExceededException(String.format("%s %s reached the usage limit for the last %d minutes - "
+                + "please try again later.", owner, owner.equals("You") ? "have" : "has",
+                settings.getBudgetWindowMillis() / 60_000));
+    }
+
+    /** Removes the counters of users, guilds, and threads that haven't made a request within their window */
+    private static void prune(long now) {
+        for(Map<Long, Usage> owners : List.of(users, guilds, threads))
+            owners.values().removeIf(usage -> now - usage.lastUsed > usage.tokens.getWindowMillis());
+    }
+
+    /** The tokens and USD (in millionths) used by one user, guild, or thread */
+    private static class Usage {
+        private final SlidingWindowCounter tokens, microUSD;
+        private volatile long lastUsed;
+
+        private Usage(long windowMillis) {
+            tokens = new SlidingWindowCounter(windowMillis);
+            microUSD = new SlidingWindowCounter(windowMillis);
+        }
+    }
+
+    /** A request's charges to the budgets of its user, guild, and thread */
+    public static class Admission {
+        private final Charge thread, user, guild;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Admission(Charge thread, Charge user, Charge guild) {
+            this.thread = thread;
+            this.user = user;
+            this.guild = guild;
+        }
+
+        /** Takes the charges back off the budgets (only once) - for a request that was never sent */
+        public void refund() {
+            settle(0, 0);
+        }
+
+        /**
+         * Takes back the part of the charges the request didn't use (only once, and not after refund())
+         * @param tokens The tokens the request used
+         * @param microUSD What the request cost, in millionths of a USD
+         */
+        public void settle(long tokens, long microUSD) {
+            if(settled.getAndSet(true))
+                return;
+            thread.refund(tokens, microUSD);
+            user.refund(tokens, microUSD);
+            guild.refund(tokens, microUSD);
+        }
+    }
+
+    /** Usage added to a user's, guild's, or thread's counters, which can be taken back off */
+    private record Charge(Usage usage, long tokenBucket, long tokens, long usdBucket, long microUSD) {
+        /** Nothing was charged */
+        private static final Charge NONE = new Charge(null, 0, 0, 0, 0);
+        /** The request would have exceeded the budget, so nothing was charged */
+        private static final Charge REJECTED = new Charge(null, 0, 0, 0, 0);
+
+        private void refund() {
+            refund(0, 0);
+        }
+
+        /** Takes back the charge beyond the usage given - a request that used more than it was charged keeps its charge */
+        private void refund(long usedTokens, long usedMicroUSD) {
+            if(usage == null)
+                return;
+            usage.tokens.remove(tokenBucket, Math.max(0, tokens - usedTokens));
+            usage.microUSD.remove(usdBucket, Math.max(0, microUSD - usedMicroUSD));
+        }
+    }
+
+}
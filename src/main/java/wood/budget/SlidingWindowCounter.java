@@ -0,0 +1,93 @@
+package wood.budget;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free count of what has been added over a rolling time window.  The window is divided into buckets; each
+ * bucket's number and total are packed into a single long, so a bucket is claimed, reset, and added to with one CAS.
+ */
+public class SlidingWindowCounter {
+
+    /** The number of buckets the window is divided into - the window slides one bucket at a time */
+    private static final int BUCKETS = 60;
+
+    /** The low bits of each slot hold the bucket's total, the high bits hold (the low bits of) its bucket number */
+    private static final int VALUE_BITS = 40;
+    private static final long VALUE_MASK = (1L << VALUE_BITS) - 1, BUCKET_NUMBER_MASK = (1L << (64 - VALUE_BITS)) - 1;
+
+    /** The length of the window, in milliseconds */
+    private final long windowMillis;
+    private final long bucketMillis;
+    private final AtomicLongArray slots = new AtomicLongArray(BUCKETS);
+
+    /** @param windowMillis The length of the window, in milliseconds */
+    public SlidingWindowCounter(long windowMillis) {
+        this.windowMillis = windowMillis;
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+    }
+
+    /** @return The length of the window, in milliseconds */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * @param amount A non-negative amount to add
+     * @param now The current time, in epoch milliseconds
+     * @return The bucket the amount was added to - pass it to remove() to undo the addition
+     */
+    public long add(long amount, long now) {
+        long bucket = (now / bucketMillis) & BUCKET_NUMBER_MASK;
+        int slot = (int) (bucket % BUCKETS);
+        while(true) {
+            long current = slots.get(slot);
+            long total = bucketNumber(current) == bucket ? value(current) : 0; // a stale bucket is reset
+            if(slots.compareAndSet(slot, current, pack(bucket, Math.min(VALUE_MASK, total + amount))))
+                return bucket;
+        }
+    }
+
+    /**
+     * Undoes an addition, unless its bucket has already left the window
+     * @param bucket The bucket returned by add()
+     * @param amount The amount that was added
+     */
+    public void remove(long bucket, long amount) {
+        int slot = (int) (bucket % BUCKETS);
+        while(true) {
+            long current = slots.get(slot);
+            if(bucketNumber(current) != bucket)
+                return;
+            if(slots.compareAndSet(slot, current, pack(bucket, Math.max(0, value(current) - amount))))
+                return;
+        }
+    }
+
+    /**
+     * @param now The current time, in epoch milliseconds
+     * @return The total added within the window
+     */
+    public long sum(long now) {
+        long bucket = (now / bucketMillis) & BUCKET_NUMBER_MASK;
+        long sum = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            long current = slots.get(i);
+            if(((bucket - bucketNumber(current)) & BUCKET_NUMBER_MASK) < BUCKETS)
+                sum += value(current);
+        }
+        return sum;
+    }
+
+    private static long pack(long bucket, long value) {
+        return (bucket << VALUE_BITS) | value;
+    }
+
+    private static long bucketNumber(long slot) {
+        return slot >>> VALUE_BITS;
+    }
+
+    private static long value(long slot) {
+        return slot & VALUE_MASK;
+    }
+
+}
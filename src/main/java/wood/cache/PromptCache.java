@@ -0,0 +1,127 @@
+package wood.cache;
+
+import lombok.extern.slf4j.Slf4j;
+import wood.Settings;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An opt-in (Settings.promptCacheEnabled) cache of the first completions of /prompt threads, looked up by near match -
+ * so re-submitting a prompt with different whitespace, case, punctuation, or (in a long prompt) a few changed words
+ * reuses the earlier completion instead of paying for another.  Only completions made at or below the guild's
+ * promptCacheMaxTemperature are cached, since at higher temperatures a new completion is expected to differ.  Each
+ * entry is all the choices the completion was made with, so hits offer the same alternatives as misses.  Entries are
+ * scoped to their guild, model, completion length, and number of choices.  Hit rates and lookup latency are logged
+ * periodically.
+ */
+@Slf4j
+public class PromptCache {
+
+    /** How often the hit rate and lookup latency are logged (if there were any lookups) */
+    private static final long STATS_LOG_INTERVAL_MINUTES = 5;
+
+    /** The index - rebuilt (empty) if the global promptCacheMaxDistance or promptCacheCapacity change */
+    private static volatile SimHashIndex<List<String>> index;
+
+    private static final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), lookupNanos = new AtomicLong(),
+            maxLookupNanos = new AtomicLong();
+
+    static {
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "prompt-cache-stats");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(PromptCache::logStats, STATS_LOG_INTERVAL_MINUTES, STATS_LOG_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param settings The guild's settings
+     * @param temperature The temperature the completion is (or would be) made at
+     * @return Whether the guild's completions at the temperature are cached
+     */
+    public static boolean isCached(Settings settings, double temperature) {
+        return settings.isPromptCacheEnabled() && temperature <= settings.getPromptCacheMaxTemperature();
+    }
+
+    /**
+     * @param guildID The guild the prompt was submitted in, or 0 if none
+     * @param model The model the completion is for
+     * @param maxTokens The completion's maxTokens
+     * @param choices How many completions the prompt's continuation is chosen from
+     * @param prompt The prompt
+     * @return The completions (best first) of the closest cached prompt within the global promptCacheMaxDistance bits,
+     *         if any
+     */
+    public static Optional<List<String>> get(long guildID, String model, int maxTokens, int choices, String prompt) {
+        long start = System.nanoTime();
+        Optional<List<String>> completion = index().get(scope(guildID, model, maxTokens, choices), SimHash.of(prompt));
+        long nanos = System.nanoTime() - start;
+
+        (completion.isPresent() ? hits : misses).incrementAndGet();
+        lookupNanos.addAndGet(nanos);
+        maxLookupNanos.accumulateAndGet(nanos, Math::max);
+        return completion;
+    }
+
+    /**
+     * Caches a prompt's completions
+     * @param guildID The guild the prompt was submitted in, or 0 if none
+     * @param model The model the completions were made with
+     * @param maxTokens The completions' maxTokens
+     * @param choices How many completions were requested
+     * @param prompt The prompt
+     * @param completions The completions, best first
+     */
+    public static void put(long guildID, String model, int maxTokens, int choices, String prompt, List<String> completions) {
+        index().put(scope(guildID, model, maxTokens, choices), SimHash.of(prompt), List.copyOf(completions));
+    }
+
+    /** @return The fraction of lookups so far that were hits */
+    public static double getHitRate() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    /** @return The mean time (microseconds) a lookup has taken, including computing the prompt's signature */
+    public static double getMeanLookupMicros() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : lookupNanos.get() / 1000.0 / lookups;
+    }
+
+    private static SimHashIndex<List<String>> index() {
+        Settings settings = Settings.get();
+        SimHashIndex<List<String>> current = index;
+        if(current == null || current.getMaxDistance() != settings.getPromptCacheMaxDistance()
+                || current.getCapacity() != settings.getPromptCacheCapacity()) {
+            synchronized(PromptCache.class) {
+                current = index;
+                if(current == null || current.getMaxDistance() != settings.getPromptCacheMaxDistance()
+                        || current.getCapacity() != settings.getPromptCacheCapacity()) {
+                    current = new SimHashIndex<>(settings.getPromptCacheMaxDistance(), settings.getPromptCacheCapacity());
+                    index = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private static long scope(long guildID, String model, int maxTokens, int choices) {
+        return (SimHash.mix(guildID * 31 + model.hashCode()) * 31 + maxTokens) * 31 + choices;
+    }
+
+    private static void logStats() {
+        long lookups = hits.get() + misses.get();
+        if(lookups == 0)
+            return;
+        SimHashIndex<List<String>> current = index;
+        log.info(String.format("Prompt cache: %.1f%% hits over %d lookups, %.1f us mean lookup, %.1f us max lookup, %d entries",
+                100 * getHitRate(), lookups, getMeanLookupMicros(), maxLookupNanos.get() / 1000.0,
+                current == null ? 0 : current.size()));
+    }
+
+}
@@ -0,0 +1,71 @@
+package wood.cache;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 64-bit SimHash signatures of text: each shingle (pair of consecutive words) of the normalised text votes on every
+ * bit with its hash, and the signature's bits are the majority votes.  Texts sharing most of their shingles get
+ * signatures differing in few bits, so the Hamming distance between signatures approximates how different texts are.
+ * Case, whitespace and punctuation are ignored.
+ */
+public class SimHash {
+
+    private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    /**
+     * @param text Any text
+     * @return The text's signature - 0 if it has no words
+     */
+    public static long of(String text) {
+        int[] votes = new int[64];
+        String normalised = text.toLowerCase();
+        Matcher words = WORD.matcher(normalised);
+        long previous = 0;
+        int count = 0;
+        while(words.find()) {
+            long word = hash(normalised, words.start(), words.end());
+            if(count++ > 0)
+                vote(votes, mix(previous * 31 + word));
+            previous = word;
+        }
+        if(count == 1) // a single word is its own shingle
+            vote(votes, mix(previous));
+
+        long signature = 0;
+        for(int bit = 0; bit < 64; bit++)
+            if(votes[bit] > 0)
+                signature |= 1L << bit;
+        return signature;
+    }
+
+    /**
+     * @param a A signature
+     * @param b Another signature
+     * @return The number of bits the signatures differ in
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    private static void vote(int[] votes, long shingle) {
+        for(int bit = 0; bit < 64; bit++)
+            votes[bit] += (shingle >>> bit & 1) == 1 ? 1 : -1;
+    }
+
+    /** @return The 64-bit FNV-1a hash of text[start, end) */
+    private static long hash(String text, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = start; i < end; i++)
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        return hash;
+    }
+
+    /** The splitmix64 finalizer - spreads every input bit over the output */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,208 @@
+package wood.cache;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * A bounded, least recently used map from SimHash signatures to values, looked up by near match: get() finds the
+ * closest entry within maxDistance bits of the signature.  Signatures are split into maxDistance + 1 bands, each
+ * indexed in its own hash table - two signatures within maxDistance bits must agree on at least one whole band, so
+ * only the entries sharing a band are compared.  Entries are kept in parallel primitive arrays (with the chains of each
+ * band's table, and the LRU list, as indices into them), so an entry costs roughly 30 + 12 * bands bytes besides its
+ * value.  Each entry also has a scope (e.g. its guild and model), which a lookup must match exactly.
+ * Thread safe.
+ * @param <V> The type of the values
+ */
+public class SimHashIndex<V> {
+
+    private static final int NONE = -1;
+
+    /** The furthest (in bits) a signature can be from an entry's for get() to return it */
+    @Getter private final int maxDistance;
+
+    /** The maximum number of entries - the least recently used is evicted to make room for more */
+    @Getter private final int capacity;
+
+    private final int bands;
+    private final int[] bandShifts;
+    private final long[] bandMasks;
+
+    private final long[] signatures, scopes;
+    private final Object[] values;
+
+    /** Each band's hash table of chains - heads[band][hash & tableMask] is the first entry of a chain, linked by next */
+    private final int[][] heads, next;
+    private final int tableMask;
+
+    /** The LRU list, most recently used first */
+    private final int[] newer, older;
+    private int newest = NONE, oldest = NONE;
+
+    /** The number of entries, and the slots freed by removals */
+    private int size = 0;
+    private final int[] freeSlots;
+    private int freeCount = 0;
+
+    /**
+     * @param maxDistance The furthest (in bits, 0-15) a signature can be from an entry's for get() to return it
+     * @param capacity The maximum number of entries
+     */
+    public SimHashIndex(int maxDistance, int capacity) {
+        if(maxDistance < 0 || maxDistance > 15)
+            throw new IllegalArgumentException("maxDistance must be 0-15, not " + maxDistance);
+        if(capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive, not " + capacity);
+        this.maxDistance = maxDistance;
+        this.capacity = capacity;
+
+        // split the 64 bits as evenly as possible between the bands
+        bands = maxDistance + 1;
+        bandShifts = new int[bands];
+        bandMasks = new long[bands];
+        for(int band = 0, shift = 0; band < bands; band++) {
+            int width = 64 / bands + (band < 64 % bands ? 1 : 0);
+            bandShifts[band] = shift;
+            bandMasks[band] = width == 64 ? -1L : (1L << width) - 1;
+            shift += width;
+        }
+
+        signatures = new long[capacity];
+        scopes = new long[capacity];
+        values = new Object[capacity];
+        newer = new int[capacity];
+        older = new int[capacity];
+        freeSlots = new int[capacity];
+
+        int tableSize = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        tableMask = tableSize - 1;
+        heads = new int[bands][tableSize];
+        next = new int[bands][capacity];
+        for(int[] table : heads)
+            Arrays.fill(table, NONE);
+    }
+
+    /**
+     * @param scope The scope the entry must have
+     * @param signature A signature
+     * @return The value of the entry (with the scope) closest to the signature, if one is within maxDistance bits -
+     *         which becomes the most recently used entry
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Optional<V> get(long scope, long signature) {
+        int best = NONE, bestDistance = maxDistance + 1;
+        for(int band = 0; band < bands && bestDistance > 0; band++) {
+            long bandValue = bandValue(signature, band);
+            for(int slot = heads[band][bucket(scope, band, bandValue)]; slot != NONE; slot = next[band][slot]) {
+                if(scopes[slot] != scope || bandValue(signatures[slot], band) != bandValue)
+                    continue;
+                int distance = SimHash.distance(signature, signatures[slot]);
+                if(distance < bestDistance) {
+                    best = slot;
+                    bestDistance = distance;
+                }
+            }
+        }
+        if(best == NONE)
+            return Optional.empty();
+
+        unlinkLRU(best);
+        linkNewest(best);
+        return Optional.of((V) values[best]);
+    }
+
+    /**
+     * Adds an entry, evicting the least recently used if the index is full - or replaces the value of the entry with
+     * the same scope and signature.
+     * @param scope The entry's scope
+     * @param signature The entry's signature
+     * @param value The entry's value
+     */
+    public synchronized void put(long scope, long signature, V value) {
+        int existing = find(scope, signature);
+        if(existing != NONE) {
+            values[existing] = value;
+            unlinkLRU(existing);
+            linkNewest(existing);
+            return;
+        }
+
+        if(size == capacity)
+            remove(oldest);
+
+        int slot = freeCount > 0 ? freeSlots[--freeCount] : size;
+        size++;
+        signatures[slot] = signature;
+        scopes[slot] = scope;
+        values[slot] = value;
+        for(int band = 0; band < bands; band++) {
+            int bucket = bucket(scope, band, bandValue(signature, band));
+            next[band][slot] = heads[band][bucket];
+            heads[band][bucket] = slot;
+        }
+        linkNewest(slot);
+    }
+
+    /** @return The number of entries */
+    public synchronized int size() {
+        return size;
+    }
+
+    /** @return The slot of the entry with exactly the scope and signature, or NONE */
+    private int find(long scope, long signature) {
+        for(int slot = heads[0][bucket(scope, 0, bandValue(signature, 0))]; slot != NONE; slot = next[0][slot])
+            if(scopes[slot] == scope && signatures[slot] == signature)
+                return slot;
+        return NONE;
+    }
+
+    private void remove(int slot) {
+        for(int band = 0; band < bands; band++) {
+            int bucket = bucket(scopes[slot], band, bandValue(signatures[slot], band));
+            if(heads[band][bucket] == slot) {
+                heads[band][bucket] = next[band][slot];
+            }
+            else {
+                int previous = heads[band][bucket];
+                while(next[band][previous] != slot)
+                    previous = next[band][previous];
+                next[band][previous] = next[band][slot];
+            }
+        }
+        unlinkLRU(slot);
+        values[slot] = null;
+        freeSlots[freeCount++] = slot;
+        size--;
+    }
+
+    private void linkNewest(int slot) {
+        newer[slot] = NONE;
+        older[slot] = newest;
+        if(newest != NONE)
+            newer[newest] = slot;
+        newest = slot;
+        if(oldest == NONE)
+            oldest = slot;
+    }
+
+    private void unlinkLRU(int slot) {
+        if(newer[slot] != NONE)
+            older[newer[slot]] = older[slot];
+        else
+            newest = older[slot];
+        if(older[slot] != NONE)
+            newer[older[slot]] = newer[slot];
+        else
+            oldest = newer[slot];
+    }
+
+    private long bandValue(long signature, int band) {
+        return signature >>> bandShifts[band] & bandMasks[band];
+    }
+
+    private int bucket(long scope, int band, long bandValue) {
+        return (int) SimHash.mix(scope * 0x9e3779b97f4a7c15L + band * 0xc2b2ae3d27d4eb4fL + bandValue) & tableMask;
+    }
+
+}
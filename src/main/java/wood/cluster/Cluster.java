@@ -0,0 +1,274 @@
+package wood.cluster;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Clustered mode - lets several bot processes run side by side, each handling only the Discord threads it owns.
+ * Thread IDs are hashed onto a consistent-hash ring of the live workers, and thread state is kept in a shared
+ * ThreadStore so a thread can move to another worker when workers join or leave.
+ *
+ * Workers announce themselves by touching a heartbeat file inside the cluster directory; a worker whose heartbeat
+ * goes stale is dropped from the ring.  The file holds when the worker joins and leaves the ring, HANDOVER_DELAY_MS
+ * after it announces either - by then every worker has read it, so they all move its threads at the same moment,
+ * rather than each when it next reads the heartbeats (which would leave a thread with two owners, or none, for up to
+ * a heartbeat interval).
+ */
+@Slf4j
+public class Cluster {
+
+    /** How often each worker touches its heartbeat file, and re-reads the other workers' heartbeats */
+    public static final long HEARTBEAT_INTERVAL_MS = 2000;
+
+    /** A worker is considered dead once its heartbeat is older than this */
+    public static final long HEARTBEAT_TIMEOUT_MS = HEARTBEAT_INTERVAL_MS * 3;
+
+    /** How long after a worker announces it's joining or leaving it's added to, or removed from, the ring - long enough
+     *  for every worker to have read its heartbeat */
+    public static final long HANDOVER_DELAY_MS = HEARTBEAT_INTERVAL_MS * 2;
+
+    private static final String MEMBERS_DIR = "members", THREADS_DIR = "threads";
+
+    /** The most threads whose stored type is remembered - they're forgotten when there are more */
+    private static final int MAX_STORED_TYPES = 10_000;
+
+    /** The stored type of a thread with no state in the store */
+    private static final String NO_STATE = "";
+
+    /** The ID of this worker, or null if clustering is disabled */
+    @Getter private static String workerID = null;
+
+    /** The directory shared by the cluster's workers, or null if clustering is disabled */
+    @Getter private static Path directory = null;
+
+    /** Where thread state is kept - in memory unless clustering is enabled */
+    @Getter private static ThreadStore store = new InMemoryThreadStore();
+
+    private static volatile HashRing ring = new HashRing(Set.of());
+
+    /** The live workers, as last read from their heartbeats */
+    private static volatile List<Member> members = List.of();
+
+    /** When this worker joins the ring, and leaves it (Long.MAX_VALUE until it's shutting down) */
+    private static volatile long activeFrom, activeUntil = Long.MAX_VALUE;
+
+    /** The type of the state stored for each thread looked up in the store (NO_STATE if none) - so threads that aren't
+     *  /prompt or /chat threads (e.g. every thread users create) are only read from the store once.  Cleared whenever
+     *  ownership changes, since the thread's last owner may have saved it since. */
+    private static final Map<Long, String> storedTypes = new ConcurrentHashMap<>();
+
+    private static Path membersDirectory;
+
+    /** Called (from the heartbeat thread) whenever workers join or leave the cluster */
+    private static final List<Runnable> membershipListeners = new CopyOnWriteArrayList<>();
+
+    private static final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cluster-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Enables clustered mode if both -worker <worker_id> and -cluster <directory> are given as command line arguments.
+     * @param args Command line arguments
+     * @throws IllegalArgumentException if only one of -worker and -cluster is given, or either is missing its argument
+     * @throws IOException if the cluster directory can't be created
+     */
+    public static void load(String[] args) throws IllegalArgumentException, IOException {
+        String worker = null, directory = null;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-worker") || args[i].equalsIgnoreCase("-cluster")) {
+                // if the flag both isn't the last argument, and the next argument isn't another command
+                if(i+1 == args.length || args[i+1].startsWith("-"))
+                    throw new IllegalArgumentException("error: " + args[i] + " requires an argument. "
+                            + "Usage: -worker <worker_id> -cluster <shared_directory>");
+
+                if(args[i].equalsIgnoreCase("-worker"))
+                    worker = args[i + 1];
+                else
+                    directory = args[i + 1];
+            }
+        }
+
+        if(worker == null && directory == null)
+            return;
+        if(worker == null || directory == null)
+            throw new IllegalArgumentException("error: -worker and -cluster must be used together. "
+                    + "Usage: -worker <worker_id> -cluster <shared_directory>");
+
+        workerID = worker;
+        Cluster.directory = Path.of(directory);
+        store = new FileThreadStore(Path.of(directory, THREADS_DIR));
+        membersDirectory = Files.createDirectories(Path.of(directory, MEMBERS_DIR));
+
+        // threads move to this worker once every other worker has seen it join
+        activeFrom = System.currentTimeMillis() + HANDOVER_DELAY_MS;
+        writeHeartbeat();
+        beat();
+        heartbeat.scheduleAtFixedRate(Cluster::beat, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(Cluster::leave));
+        log.info("Clustered mode enabled - worker '" + workerID + "', cluster directory '"
+                + Path.of(directory).toAbsolutePath() + "'");
+    }
+
+    /** @return Whether this process is running as one worker of a cluster. */
+    public static boolean isEnabled() {
+        return workerID != null;
+    }
+
+    /**
+     * @param threadID The ID of a Discord thread, or of the channel an interaction was used in.
+     * @return Whether this worker should handle events from the thread - always true if clustering is disabled.
+     */
+    public static boolean owns(long threadID) {
+        return !isEnabled() || workerID.equals(ring.ownerOf(threadID));
+    }
+
+    /** @return The IDs of the workers on the ring - those that currently own threads */
+    public static Set<String> getWorkers() {
+        return ring.getWorkers();
+    }
+
+    /**
+     * Loads a thread's state from the store, unless it's already known not to be of the type.  Only for threads this
+     * worker owns, and hasn't already loaded.
+     * @param threadID The ID of the thread
+     * @param type The type of thread state wanted, e.g. PromptThread.TYPE
+     * @return The thread's state, if it's of the type
+     */
+    public static Optional<DataObject> loadThread(long threadID, String type) {
+        String storedType = storedTypes.get(threadID);
+        if(storedType != null && !storedType.equals(type))
+            return Optional.empty();
+
+        Optional<DataObject> state = store.load(threadID);
+        if(storedTypes.size() >= MAX_STORED_TYPES)
+            storedTypes.clear();
+        storedTypes.put(threadID, state.map(s -> s.getString("type")).orElse(NO_STATE));
+        return state.filter(s -> s.getString("type").equals(type));
+    }
+
+    /**
+     * @param listener Called whenever workers join or leave the cluster, after ownership has moved.
+     *                 Used to release the threads this worker no longer owns.
+     */
+    public static void addMembershipListener(Runnable listener) {
+        membershipListeners.add(listener);
+    }
+
+    /** Touches this worker's heartbeat file, and re-reads the other workers' */
+    private static void beat() {
+        try {
+            Path heartbeatFile = membersDirectory.resolve(workerID);
+            if(Files.exists(heartbeatFile))
+                Files.setLastModifiedTime(heartbeatFile, FileTime.fromMillis(System.currentTimeMillis()));
+            else
+                writeHeartbeat();
+
+            members = readLiveMembers();
+            updateRing();
+        } catch (Exception e) {
+            log.error("Error updating cluster heartbeat", e);
+        }
+    }
+
+    /**
+     * Rebuilds the ring if the workers that should be on it now changed, then schedules the next update if a worker
+     * joins or leaves the ring before the next heartbeat - so it happens at that moment, on every worker
+     */
+    private static void updateRing() {
+        long now = System.currentTimeMillis();
+        Set<String> activeWorkers = members.stream().filter(member -> member.isActive(now))
+                .map(Member::workerID).collect(Collectors.toSet());
+        if(!activeWorkers.equals(ring.getWorkers())) {
+            log.info("Cluster membership changed: " + ring.getWorkers() + " -> " + activeWorkers);
+            storedTypes.clear(); // before the threads move - a thread this worker is taking over may have been saved
+            ring = new HashRing(activeWorkers);
+            membershipListeners.forEach(Runnable::run);
+        }
+
+        long nextChange = members.stream()
+                .flatMapToLong(member -> LongStream.of(member.activeFrom(), member.activeUntil())).filter(time -> time > now).min().orElse(Long.MAX_VALUE);
+        if(nextChange - now <= HEARTBEAT_INTERVAL_MS)
+            heartbeat.schedule(Cluster::updateRing, nextChange - now, TimeUnit.MILLISECONDS);
+    }
+
+    /** Writes when this worker joins and leaves the ring into its heartbeat file - replacing it in one step */
+    private static void writeHeartbeat() throws IOException {
+        Path heartbeatFile = membersDirectory.resolve(workerID);
+        Path tmp = Files.createTempFile(membersDirectory, workerID + "-", ".tmp");
+        Files.writeString(tmp, activeFrom + " " + activeUntil);
+        Files.move(tmp, heartbeatFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** @return The workers whose heartbeat files are fresh */
+    private static List<Member> readLiveMembers() throws IOException {
+        long oldestLiveBeat = System.currentTimeMillis() - HEARTBEAT_TIMEOUT_MS;
+        List<Member> live = new ArrayList<>();
+        try(Stream<Path> files = Files.list(membersDirectory)) {
+            for(Path file : files.filter(file -> !file.getFileName().toString().endsWith(".tmp")).toList()) {
+                try {
+                    if(Files.getLastModifiedTime(file).toMillis() < oldestLiveBeat)
+                        continue;
+                    // a heartbeat file without times (from an older version) is on the ring for as long as it's live
+                    String[] times = Files.readString(file).trim().split(" ");
+                    live.add(times.length == 2
+                            ? new Member(file.getFileName().toString(), Long.parseLong(times[0]), Long.parseLong(times[1]))
+                            : new Member(file.getFileName().toString(), 0, Long.MAX_VALUE));
+                } catch (IOException e) {
+                    // the member's heartbeat file was removed as it left the cluster
+                }
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Announces that this worker is leaving, keeps its threads until the other workers take them over
+     * HANDOVER_DELAY_MS later, then removes its heartbeat file
+     */
+    private static void leave() {
+        try {
+            activeUntil = System.currentTimeMillis() + HANDOVER_DELAY_MS;
+            writeHeartbeat();
+            Thread.sleep(HANDOVER_DELAY_MS);
+            heartbeat.shutdownNow();
+            ring = new HashRing(Set.of()); // the other workers own every thread now
+            Files.deleteIfExists(membersDirectory.resolve(workerID));
+        } catch (IOException | InterruptedException e) {
+            log.error("Error leaving the cluster", e);
+        }
+    }
+
+    /**
+     * A live worker
+     * @param activeFrom When the worker joins the ring
+     * @param activeUntil When the worker leaves the ring, or Long.MAX_VALUE if it isn't leaving
+     */
+    private record Member(String workerID, long activeFrom, long activeUntil) {
+        private boolean isActive(long now) {
+            return activeFrom <= now && now < activeUntil;
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package wood.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A ThreadStore backed by a directory holding one JSON file per thread.
+ * Every worker in a cluster on the same machine (or sharing a network drive) can point at the same directory.
+ */
+@Slf4j
+public class FileThreadStore implements ThreadStore {
+
+    private static final String EXTENSION = ".json";
+
+    private final Path directory;
+
+    /**
+     * @param directory The directory to store the thread files in - it's created if it doesn't exist.
+     * @throws IOException if the directory can't be created
+     */
+    public FileThreadStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public void save(long threadID, DataObject state) {
+        // write to a temporary file first, so another worker never reads a half written file
+        Path file = fileOf(threadID);
+        try {
+            Path tmp = Files.createTempFile(directory, threadID + "-", ".tmp");
+            Files.write(tmp, state.toJson());
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Error saving thread " + threadID + " to '" + file + "'", e);
+        }
+    }
+
+    @Override
+    public Optional<DataObject> load(long threadID) {
+        Path file = fileOf(threadID);
+        if(!Files.exists(file))
+            return Optional.empty();
+
+        try {
+            return Optional.of(DataObject.fromJson(Files.readAllBytes(file)));
+        } catch (IOException e) {
+            log.error("Error loading thread " + threadID + " from '" + file + "'", e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void remove(long threadID) {
+        try {
+            Files.deleteIfExists(fileOf(threadID));
+        } catch (IOException e) {
+            log.error("Error removing thread " + threadID, e);
+        }
+    }
+
+    @Override
+    public Set<Long> getThreadIDs() {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.map(f -> f.getFileName().toString())
+                    .filter(name -> name.endsWith(EXTENSION))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - EXTENSION.length())))
+                    .collect(Collectors.toSet());
+        } catch (IOException e) {
+            log.error("Error listing threads in '" + directory + "'", e);
+            return Set.of();
+        }
+    }
+
+    private Path fileOf(long threadID) {
+        return directory.resolve(threadID + EXTENSION);
+    }
+
+}
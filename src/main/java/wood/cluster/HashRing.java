@@ -0,0 +1,65 @@
+package wood.cluster;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** An immutable consistent-hash ring mapping Discord thread IDs onto worker IDs. */
+public class HashRing {
+
+    /** The number of points each worker is given on the ring, which evens out the share of threads each one owns */
+    public static final int VIRTUAL_NODES_PER_WORKER = 128;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /** The IDs of every worker on the ring */
+    @Getter private final Set<String> workers;
+
+    /**
+     * @param workers The IDs of every worker in the cluster.
+     */
+    public HashRing(Collection<String> workers) {
+        this.workers = Set.copyOf(workers);
+        for(String worker : workers) {
+            for(int i = 0; i < VIRTUAL_NODES_PER_WORKER; i++)
+                ring.put(hash(worker + "#" + i), worker);
+        }
+    }
+
+    /**
+     * @param threadID The ID of a Discord thread (or channel).
+     * @return The ID of the worker that owns the thread, or null if the ring has no workers.
+     */
+    public String ownerOf(long threadID) {
+        if(ring.isEmpty())
+            return null;
+
+        SortedMap<Long, String> tail = ring.tailMap(mix(threadID));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /** 64-bit FNV-1a hash of the string, finished with mix() to spread nearby inputs around the ring */
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for(byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /** The finalizer from MurmurHash3 - snowflake IDs share their high bits, so they must be scrambled before use */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+}
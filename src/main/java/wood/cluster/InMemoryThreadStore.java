@@ -0,0 +1,36 @@
+package wood.cluster;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A ThreadStore that only lives as long as this process - used when clustering is disabled, and in tests. */
+public class InMemoryThreadStore implements ThreadStore {
+
+    /** Thread IDs mapped to their state, kept as JSON so callers can't mutate what has been saved */
+    private final Map<Long, String> states = new ConcurrentHashMap<>();
+
+    @Override
+    public void save(long threadID, DataObject state) {
+        states.put(threadID, state.toString());
+    }
+
+    @Override
+    public Optional<DataObject> load(long threadID) {
+        return Optional.ofNullable(states.get(threadID)).map(DataObject::fromJson);
+    }
+
+    @Override
+    public void remove(long threadID) {
+        states.remove(threadID);
+    }
+
+    @Override
+    public Set<Long> getThreadIDs() {
+        return Set.copyOf(states.keySet());
+    }
+
+}
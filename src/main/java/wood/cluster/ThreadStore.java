@@ -0,0 +1,36 @@
+package wood.cluster;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Shared storage for the state of threads created by /prompt and /chat, so a thread can be picked up by whichever
+ * worker owns it.
+ */
+public interface ThreadStore {
+
+    /**
+     * Saves (or overwrites) the state of a thread.
+     * @param threadID The ID of the thread.
+     * @param state The thread's serialized state.
+     */
+    void save(long threadID, DataObject state);
+
+    /**
+     * @param threadID The ID of the thread.
+     * @return The thread's saved state, or Optional.empty() if nothing is saved for the thread.
+     */
+    Optional<DataObject> load(long threadID);
+
+    /**
+     * Removes the saved state of a thread, if any.
+     * @param threadID The ID of the thread.
+     */
+    void remove(long threadID);
+
+    /** @return The IDs of every thread with saved state. */
+    Set<Long> getThreadIDs();
+
+}
@@ -1,7 +1,10 @@
 package wood.commands;
 
 import lombok.Getter;
-import net.dv8tion.jda.api.JDA;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.ThreadChannel;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
@@ -10,26 +13,63 @@ import net.dv8tion.jda.api.interactions.components.ActionRow;
 import net.dv8tion.jda.api.interactions.components.Modal;
 import net.dv8tion.jda.api.interactions.components.text.TextInput;
 import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Main;
 import wood.Settings;
+import wood.backend.CompletionTask;
+import wood.budget.BudgetExceededException;
+import wood.cluster.Cluster;
 import wood.discord_threads.ChatThread;
+import wood.scheduler.DeadlineExceededException;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.scheduler.RequestDroppedException;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
 import wood.util.GPTRequest;
 import wood.util.GPTUtil;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 public class Chat extends Commands {
     /** Map of each thread created by `/chat` to its prompt related data */
     @Getter
-    private static final Map<Long, ChatThread> threadMap = new HashMap<>();
+    private static final Map<Long, ChatThread> threadMap = new ConcurrentHashMap<>();
+
+    /** (debounce mode) Runs the replies scheduled in /chat threads */
+    private static final ScheduledExecutorService replyScheduler = Executors.newScheduledThreadPool(4, r -> {
+        Thread thread = new Thread(r, "chat-reply");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** (debounce mode) Metrics - replies sent, the completions saved by coalescing, and the latency that has added */
+    private static final AtomicLong coalescedReplies = new AtomicLong(), completionsAvoided = new AtomicLong(),
+            totalAddedLatencyMillis = new AtomicLong();
 
     public static final String MODAL_ID = "chat-modal";
     private static final String MODAL_MODEL_ID = "model", MODAL_NAME_ID = "name",
             MODAL_DESCRIPTION_ID = "description";
 
+    /** The title of the embed on the greeting that keeps the chatbot's description - the greeting's prompt is rebuilt
+     *  from it (see rehydrate()) */
+    private static final String DESCRIPTION_EMBED_TITLE = "Description";
+
     public Chat() {
         super.name = "chat";
         super.description = "Opens a modal to initialize a GPT-3 chatbot";
+
+        // threads that moved to another worker are dropped - their state is already in the cluster's ThreadStore
+        Cluster.addMembershipListener(() -> threadMap.keySet().removeIf(threadID -> !Cluster.owns(threadID)));
     }
 
     /**
@@ -48,7 +88,7 @@ public class Chat extends Commands {
         }
 
         TextInput model = TextInput.create(MODAL_MODEL_ID, "Language Model", TextInputStyle.SHORT)
-                .setValue(Settings.model)
+                .setValue(Settings.get(event.getGuild()).getModel())
                 .build();
 
         TextInput chatbotName = TextInput.create(MODAL_NAME_ID, "Chatbot Name", TextInputStyle.SHORT)
@@ -73,6 +113,9 @@ public class Chat extends Commands {
      * @param event
      */
     public void readModal(ModalInteractionEvent event) {
+        // acknowledge the interaction straight away - Discord fails it if it isn't acknowledged within 3 seconds
+        event.deferReply(true).queue();
+
         // Get the model (lowercase) and prompt from the modal.
         String model = event.getValues().stream()
                 .filter(v -> v.getId().equals(MODAL_MODEL_ID))
@@ -80,8 +123,8 @@ public class Chat extends Commands {
 
         // Verify that the model is valid
         if(!GPTUtil.isValidModel(model)) {
-            event.reply("'" + model + "' is an Invalid model.\nValid models are: " + GPTUtil.listModels())
-                    .setEphemeral(true).queue();
+            event.getHook().editOriginal("'" + model + "' is an Invalid model.\nValid models are: " + GPTUtil.listModels())
+                    .queue();
             return;
         }
 
@@ -93,32 +136,56 @@ public class Chat extends Commands {
                 .filter(v -> v.getId().equals(MODAL_DESCRIPTION_ID))
                 .findFirst().get().getAsString();
 
+        // start generating the chatbot's first message - over-budget requests are rejected before the thread is created
+        String prompt = greetingPrompt(chatbotName, chatbotDescription);
+        CompletableFuture<String> greeting;
+        try {
+            greeting = new GPTRequest.GPTRequestBuilder(model, prompt, Settings.get(event.getGuild()).getChatCompletionTokens(), true)
+                    .context(RequestContext.of(event, 0)).priority(Priority.GREETING).task(CompletionTask.GREETING)
+                    // the greeting is most likely followed by its own next turn, or by the user who created the thread
+                    .stopSequences(ChatThread.stopSequences(List.of(
+                            ChatThread.handleNamePrefix + chatbotName + ChatThread.handleNameSuffix,
+                            ChatThread.handleNamePrefix + event.getUser().getName() + ChatThread.handleNameSuffix)))
+                    .build().requestAsync(true);
+        } catch(BudgetExceededException e) {
+            event.getHook().editOriginal(e.getMessage()).queue();
+            return;
+        }
+
         // create a new discord thread for the chatbot, and add it to the threadMap of all chatbots.
-        ThreadChannel threadChannel = event.getTextChannel().createThreadChannel(chatbotName).complete();
-        ChatThread chatThread = new ChatThread(threadChannel, model, chatbotName, chatbotDescription);
-        threadMap.put(threadChannel.getIdLong(), chatThread);
+        Span creatingThread = Tracer.current().child("discord.create_thread");
+        event.getTextChannel().createThreadChannel(chatbotName).queue(threadChannel -> {
+            creatingThread.end();
+            ChatThread chatThread = new ChatThread(threadChannel, model, chatbotName, chatbotDescription);
+            threadMap.put(threadChannel.getIdLong(), chatThread);
 
-        // modal gives an error (in the Discord UI) if no reply is given
-        event.reply("Chat-bot thread created").setEphemeral(true).queue();
+            event.getHook().editOriginal("Chat-bot thread created").queue();
 
-        // generate the chatbot's first message
-        String prompt = "Description of " + chatbotName + ": " + chatbotDescription + "\n\n"
-                + "The following is a conversation in a Discord server with " + chatbotName + ". "
-                + chatbotName + " starts with a greeting.\n" + chatThread.getChatbotDisplayName();
-        String completion = new GPTRequest.GPTRequestBuilder(
-                model, prompt, Settings.chatCompletionTokens, true)
-                .build().request(true);
-        completion = completion.replaceFirst("[\\s\\n]*", ""); // remove leading whitespace or newline
-
-        // send and log the first message
-        String message = chatThread.getChatbotDisplayName() + completion;
-        threadChannel.sendMessage(message).queue();
-        chatThread.registerMessage(message, prompt + completion);
+            greeting.thenAccept(text -> {
+                // remove leading whitespace or newline, and any turn after the chatbot's that the stop sequences didn't end
+                String completion = ChatThread.trimOtherTurns(text.replaceFirst("[\\s\\n]*", ""));
+
+                // send and log the first message, with the description the thread can be rebuilt with
+                String message = chatThread.getChatbotDisplayName() + completion;
+                Tracer.queue(threadChannel.sendMessage(message).setEmbeds(descriptionEmbed(chatbotDescription)),
+                        "discord.send_message");
+                chatThread.registerMessage(message, prompt + completion);
+                saveToCluster(chatThread);
+            }).exceptionally(e -> {
+                log.error("Error generating the greeting in /chat thread " + threadChannel.getId(), e);
+                return null;
+            });
+        }, e -> {
+            creatingThread.end(e);
+            log.error("Error creating a /chat thread", e);
+            event.getHook().editOriginal("The thread couldn't be created, please try again.").queue();
+        });
     }
 
     /**
      * Called when a user sends a message in a thread created by /chat
-     * Has the chat-bot reply to the user.
+     * Has the chat-bot reply to the user - or, if the guild's chatDebounceMillis is set, schedules a single reply
+     * to every message received within that window (and while the reply is being generated).
      * @param threadID The ID of the thread the message was sent in.
      * @param message The message that was sent.
      * @param event
@@ -131,22 +198,93 @@ public class Chat extends Commands {
         String messageFormatted = authorNameFormatted + message;
         chatThread.registerMessage(message, messageFormatted);
 
-        // send the message to GPT-3
-        String prompt = chatThread.getChatHistoryWithinTokenLimit() + chatThread.getChatbotDisplayName();
-        String completion = new GPTRequest.GPTRequestBuilder(
-                chatThread.getModel(), prompt, Settings.chatCompletionTokens, true)
-                .build().request(true);
-        completion = completion.replaceFirst("[\\s\\n]*", ""); // remove leading whitespace or newline
-
-        // send and log the message
-        String response = chatThread.getChatbotDisplayName() + completion;
-        event.getThreadChannel().sendMessage(response).queue();
-        chatThread.registerMessage(response, response);
+        RequestContext context = RequestContext.of(event);
+        long debounceMillis = Settings.get(event.getGuild()).getChatDebounceMillis();
+        if(debounceMillis <= 0)
+            reply(chatThread, event.getThreadChannel(), context);
+        else if(chatThread.queueReply(context))
+            scheduleReply(chatThread, event.getThreadChannel(), debounceMillis);
     }
 
-    @Override
-    public void addCommand(JDA jda) {
-        jda.upsertCommand(name, description).complete();
+    /**
+     * (debounce mode) Replies to every unanswered message in the thread after debounceMillis,
+     * then schedules another reply if more messages arrived while generating this one.  The reply is finished however
+     * it fails, so the thread never stops replying.
+     */
+    private void scheduleReply(ChatThread chatThread, ThreadChannel threadChannel, long debounceMillis) {
+        replyScheduler.schedule(() -> {
+            CompletableFuture<Void> replied;
+            try {
+                ChatThread.UnansweredMessages answered = chatThread.startReply();
+                logCoalescedReply(answered);
+                replied = reply(chatThread, threadChannel, answered.context());
+            } catch(RuntimeException e) {
+                replied = CompletableFuture.failedFuture(e);
+            }
+            replied.whenComplete((v, e) -> {
+                if(e != null)
+                    log.error("Error replying in /chat thread " + chatThread.getThreadID(), e);
+                if(chatThread.finishReply())
+                    scheduleReply(chatThread, threadChannel, debounceMillis);
+            });
+        }, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Has the chat-bot reply to the thread's chat history
+     * @param context The request context of the message being replied to
+     * @return A future that completes once the reply has been generated and sent (or has failed)
+     */
+    private CompletableFuture<Void> reply(ChatThread chatThread, ThreadChannel threadChannel, RequestContext context) {
+        // send the chat history to GPT-3
+        Span assembly = context.getSpan().child("chat.prompt_assembly");
+        String prompt = chatThread.getChatHistoryForReply() + chatThread.getChatbotDisplayName();
+        assembly.setAttribute("characters", prompt.length()).end();
+        CompletableFuture<String> request;
+        try {
+            request = new GPTRequest.GPTRequestBuilder(
+                    chatThread.getModel(), prompt, Settings.get(chatThread.getGuildID()).getChatCompletionTokens(), true)
+                    .context(context).task(CompletionTask.CHAT).stopSequences(chatThread.getReplyStopSequences())
+                    .build().requestAsync(true);
+        } catch(BudgetExceededException e) {
+            threadChannel.sendMessage("`" + e.getMessage() + "`").queue();
+            return CompletableFuture.completedFuture(null);
+        }
+        return request.thenAccept(text -> {
+            // remove leading whitespace or newline, and any turn after the chatbot's that the stop sequences didn't end
+            String completion = ChatThread.trimOtherTurns(text.replaceFirst("[\\s\\n]*", ""));
+
+            // send and log the message
+            String response = chatThread.getChatbotDisplayName() + completion;
+            Tracer.queue(threadChannel.sendMessage(response), "discord.send_message");
+            chatThread.registerMessage(response, response);
+            saveToCluster(chatThread);
+        }).exceptionally(e -> {
+            if(e.getCause() instanceof DeadlineExceededException || e.getCause() instanceof RequestDroppedException) {
+                threadChannel.sendMessage("`The chat-bot is too busy to reply right now - "
+                        + "send another message to try again.`").queue();
+            }
+            else {
+                log.error("Error replying in /chat thread " + chatThread.getThreadID(), e);
+                threadChannel.sendMessage("`The reply couldn't be generated.`").queue();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * (debounce mode) Logs how many completions coalescing has avoided, and how much latency it has added
+     * @param answered The messages answered by the reply that's starting
+     */
+    private static void logCoalescedReply(ChatThread.UnansweredMessages answered) {
+        long addedLatency = System.currentTimeMillis() - answered.firstReceivedTime();
+        long avoided = completionsAvoided.addAndGet(answered.count() - 1);
+        long replies = coalescedReplies.incrementAndGet();
+        long totalAddedLatency = totalAddedLatencyMillis.addAndGet(addedLatency);
+
+        log.info(String.format("/chat debounce: answering %d message%s with one completion after %d ms "
+                        + "(%d completions avoided in total, %d ms average added latency)",
+                answered.count(), answered.count() == 1 ? "" : "s", addedLatency, avoided, totalAddedLatency / replies));
     }
 
     @Override
@@ -154,7 +292,85 @@ public class Chat extends Commands {
         return super.description;
     }
 
+    /**
+     * @param chatbotName The chatbot's name
+     * @param chatbotDescription The chatbot's description
+     * @return The prompt the chatbot's greeting is generated from - ending with the chatbot's display name
+     */
+    private static String greetingPrompt(String chatbotName, String chatbotDescription) {
+        return "Description of " + chatbotName + ": " + chatbotDescription + "\n\n"
+                + "The following is a conversation in a Discord server with " + chatbotName + ". "
+                + chatbotName + " starts with a greeting.\n"
+                + ChatThread.handleNamePrefix + chatbotName + ChatThread.handleNameSuffix;
+    }
+
+    /**
+     * @param chatbotDescription The chatbot's description, as entered in the modal
+     * @return The embed keeping the description on the chatbot's greeting
+     */
+    private static MessageEmbed descriptionEmbed(String chatbotDescription) {
+        return new EmbedBuilder().setTitle(DESCRIPTION_EMBED_TITLE)
+                .setDescription(chatbotDescription.isEmpty() ? null : chatbotDescription).build();
+    }
+
+    /**
+     * Rebuilds a /chat thread this worker doesn't know (e.g. after a restart) from its messages in Discord, and adds it
+     * to threadMap - see ThreadRehydrator.  A thread whose greeting doesn't have the chatbot's description (i.e. it was
+     * created before descriptions were kept there) isn't rebuilt, rather than continued with a different persona.
+     * @param threadChannel The thread, which the bot owns
+     * @param history The thread's messages, oldest first
+     * @return Whether the thread is a /chat thread - its first message from the bot is the greeting, from a chatbot
+     *         named after the thread, with its description
+     */
+    public static boolean rehydrate(ThreadChannel threadChannel, List<Message> history) {
+        String chatbotName = threadChannel.getName();
+        long selfID = threadChannel.getJDA().getSelfUser().getIdLong();
+        Optional<Message> greeting = history.stream().filter(message -> message.getAuthor().getIdLong() == selfID).findFirst();
+        String chatbotDisplayName = ChatThread.handleNamePrefix + chatbotName + ChatThread.handleNameSuffix;
+        if(greeting.isEmpty() || !greeting.get().getContentRaw().startsWith(chatbotDisplayName))
+            return false;
+
+        Optional<String> chatbotDescription = greeting.get().getEmbeds().stream()
+                .filter(embed -> DESCRIPTION_EMBED_TITLE.equals(embed.getTitle()))
+                .findFirst().map(embed -> embed.getDescription() != null ? embed.getDescription() : "");
+        if(chatbotDescription.isEmpty()) {
+            log.info("Not rebuilding /chat thread " + threadChannel.getId() + " - its greeting doesn't have the chatbot's description");
+            return false;
+        }
+
+        ChatThread chatThread = ChatThread.fromHistory(threadChannel, Settings.get(threadChannel.getGuild()).getModel(),
+                chatbotName, chatbotDescription.get(), greetingPrompt(chatbotName, chatbotDescription.get()), history);
+        threadMap.put(threadChannel.getIdLong(), chatThread);
+        saveToCluster(chatThread);
+        return true;
+    }
+
+    /**
+     * @param threadID The ID of a thread
+     * @return Whether the thread was created by /chat. In clustered mode, a thread this worker has just taken
+     *         ownership of is loaded from the cluster's ThreadStore.
+     */
     public static boolean isChatThread(long threadID) {
-        return threadMap.containsKey(threadID);
+        return threadMap.containsKey(threadID) || (Cluster.isEnabled() && loadFromCluster(threadID));
+    }
+
+    /** In clustered mode, saves the thread's state so another worker can take it over */
+    private static void saveToCluster(ChatThread chatThread) {
+        if(Cluster.isEnabled())
+            Cluster.getStore().save(chatThread.getThreadID(), chatThread.toData());
+    }
+
+    /**
+     * Loads a /chat thread from the cluster's ThreadStore into threadMap
+     * @return Whether the thread was found in the ThreadStore, and loaded
+     */
+    private static boolean loadFromCluster(long threadID) {
+        Optional<DataObject> state = Cluster.loadThread(threadID, ChatThread.TYPE);
+        ThreadChannel threadChannel = Main.jda.getThreadChannelById(threadID);
+        if(state.isEmpty() || threadChannel == null)
+            return false;
+
+        threadMap.put(threadID, new ChatThread(threadChannel, state.get()));
+        return true;
     }
 }
@@ -1,7 +1,7 @@
 package wood.commands;
 
-import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
 
 public abstract class Commands<T> {
 
@@ -9,7 +9,11 @@ public abstract class Commands<T> {
     protected boolean isEmbed;
 
     abstract public void runCommand(long userId, SlashCommandInteractionEvent event);
-    abstract public void addCommand(JDA jda);
     abstract public String getDescription();
 
+    /** @return The definition of this slash command, which CommandHandler registers with Discord. */
+    public SlashCommandData getCommandData() {
+        return net.dv8tion.jda.api.interactions.commands.build.Commands.slash(name, description);
+    }
+
 }
@@ -0,0 +1,52 @@
+package wood.commands;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
+import net.dv8tion.jda.api.interactions.commands.DefaultMemberPermissions;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
+import wood.services.FlightRecorderService;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/** Dumps the continuous flight recording (started with -jfr) to the bot's host.  Only the bot's owner can use it. */
+@Slf4j
+public class Dump extends Commands {
+
+    public Dump() {
+        super.name = "dump";
+        super.description = "(Bot owner only) Saves the bot's flight recording on its host";
+    }
+
+    @Override
+    public void runCommand(long userId, SlashCommandInteractionEvent event) {
+        event.deferReply(true).queue();
+        event.getJDA().retrieveApplicationInfo().queue(info -> {
+            if(info.getOwner().getIdLong() != userId) {
+                event.getHook().editOriginal("/" + name + " can only be used by the bot's owner.").queue();
+                return;
+            }
+
+            try {
+                Optional<Path> file = FlightRecorderService.dump();
+                event.getHook().editOriginal(file.map(f -> "Flight recording saved to `" + f.toAbsolutePath() + "`")
+                        .orElse("No flight recording is running - start the bot with -jfr <max size in MB>.")).queue();
+            } catch(IOException e) {
+                log.error("Error dumping the flight recording", e);
+                event.getHook().editOriginal("The flight recording couldn't be saved: " + e.getMessage()).queue();
+            }
+        });
+    }
+
+    @Override
+    public SlashCommandData getCommandData() {
+        return super.getCommandData().setDefaultPermissions(DefaultMemberPermissions.DISABLED);
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+}
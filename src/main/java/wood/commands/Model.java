@@ -1,72 +1,72 @@
 package wood.commands;
 
-import net.dv8tion.jda.api.JDA;
+import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
-import net.dv8tion.jda.api.interactions.commands.Command;
 import net.dv8tion.jda.api.interactions.commands.OptionType;
-import wood.Settings;
-import wood.util.GPTRequest;
+import net.dv8tion.jda.api.interactions.commands.build.SlashCommandData;
+import wood.models.ModelCatalog;
+import wood.models.ModelInfo;
+import wood.services.SettingsService;
+import wood.util.GPTUtil;
+
+import java.io.IOException;
 
 // TODO make buttons for user to select model
+@Slf4j
 public class Model extends Commands {
 
     /** The name of the required argument inside the command (must be lowercase, and without whitespace). */
     private final String commandOptionName = "model";
-    /** The description of the required argument inside the command. Must not exceed 100 characters. */
-    private final String commandOptionDescription = "e.g. davinci, text-davinci-002, curie, text-curie-001, babbage, "
-            + "text-babbage-001, ada, text-ada-001";
+    /** The description of the required argument inside the command (the catalog's models). Must not exceed 100 characters. */
+    private final String commandOptionDescription = describeModels();
 
     public Model() {
         super.name = "model";
-        super.description = "The default language model to use for OpenAI API calls";
+        super.description = "The default language model to use for OpenAI API calls in this server";
     }
 
     @Override
     public void runCommand(long userId, SlashCommandInteractionEvent event) {
-        String modelArg = event.getOption(commandOptionName).getAsString();
-        boolean validModel = true;
-        switch(modelArg.toLowerCase()) {
-            case "davinci":
-                Settings.model = GPTRequest.davinci;
-                break;
-            case "curie":
-                Settings.model = GPTRequest.curie;
-                break;
-            case "babbage":
-                Settings.model = GPTRequest.babbage;
-                break;
-            case "ada":
-                Settings.model = GPTRequest.ada;
-                break;
-            case "text-davinci-001":
-            case "text-davinci-002":
-                Settings.model = GPTRequest.inDavinci;
-                break;
-            case "text-curie-001":
-                Settings.model = GPTRequest.inCurie;
-                break;
-            case "text-babbage-001":
-                Settings.model = GPTRequest.inBabbage;
-                break;
-            case "text-ada-001":
-                Settings.model = GPTRequest.inAda;
-                break;
-            default:
-                validModel = false;
+        if(event.getGuild() == null) {
+            event.reply("/" + name + " can only be used inside of a server.").setEphemeral(true).queue();
+            return;
         }
 
-        if(validModel)
-            event.reply("Model set to " + Settings.model).queue();
+        String modelArg = event.getOption(commandOptionName).getAsString();
+        // resolve the name (or an alias, e.g. text-davinci-001) case-insensitively against the model catalog
+        String model = ModelCatalog.resolve(modelArg).map(ModelInfo::name).orElse(null);
+
+        if(model != null) {
+            try {
+                // only this server's model changes - requests already in flight keep the model they started with
+                SettingsService.setGuildModel(event.getGuild().getIdLong(), model);
+                event.reply("Model set to " + model).queue();
+            } catch (IOException e) {
+                log.error("Error saving the model for guild " + event.getGuild().getId(), e);
+                event.reply("The model couldn't be saved, please try again.").setEphemeral(true).queue();
+            }
+        }
         else
-            event.reply("'" + modelArg + "' is an Invalid model.\nValid models are: davinci, curie, babbage, ada"
-                    + ", text-davinci-002, text-curie-001, text-babbage-001, text-ada-001").setEphemeral(true).queue();
+            event.reply("'" + modelArg + "' is an Invalid model.\nValid models are: " + GPTUtil.listModels())
+                    .setEphemeral(true).queue();
+    }
+
+    /** @return "e.g. " and as many of the catalog's model names as fit in an option description's 100 characters */
+    private static String describeModels() {
+        StringBuilder description = new StringBuilder("e.g. ");
+        for(String model : ModelCatalog.names()) {
+            String next = (description.length() > 5 ? ", " : "") + model;
+            if(description.length() + next.length() > 100)
+                break;
+            description.append(next);
+        }
+        return description.toString();
     }
 
     @Override
-    public void addCommand(JDA jda) {
-        Command cmd = jda.upsertCommand(name, description)
-                .addOption(OptionType.STRING, commandOptionName, commandOptionDescription, true)
-                .complete();
+    public SlashCommandData getCommandData() {
+        return super.getCommandData()
+                .addOption(OptionType.STRING, commandOptionName, commandOptionDescription, true);
     }
 
     @Override
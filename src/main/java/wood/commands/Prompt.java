@@ -1,9 +1,11 @@
 package wood.commands;
 
 import lombok.Getter;
-import net.dv8tion.jda.api.JDA;
+import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.entities.ThreadChannel;
+import net.dv8tion.jda.api.entities.emoji.Emoji;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
@@ -11,18 +13,57 @@ import net.dv8tion.jda.api.interactions.components.ActionRow;
 import net.dv8tion.jda.api.interactions.components.Modal;
 import net.dv8tion.jda.api.interactions.components.text.TextInput;
 import net.dv8tion.jda.api.interactions.components.text.TextInputStyle;
+import net.dv8tion.jda.api.utils.data.DataObject;
 import wood.Settings;
+import wood.backend.CompletionTask;
+import wood.budget.BudgetExceededException;
+import wood.cache.PromptCache;
+import wood.cluster.Cluster;
+import wood.discord_threads.ChatThread;
 import wood.discord_threads.PromptThread;
+import wood.handler.ReactionHandler;
+import wood.models.ContextLengthExceededException;
+import wood.scheduler.DeadlineExceededException;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.scheduler.RequestDroppedException;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
 import wood.util.DiscordUtil;
 import wood.util.GPTRequest;
 import wood.util.GPTUtil;
 
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
+@Slf4j
 public class Prompt extends Commands {
     /** Map of each thread created by `/prompt` to its prompt related data */
-    @Getter private static final Map<Long, PromptThread> threadMap = new HashMap<>();
+    @Getter private static final Map<Long, PromptThread> threadMap = new ConcurrentHashMap<>();
+
+    /** Runs the coalesced renders of each thread's prompt */
+    private static final ScheduledExecutorService renderScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "prompt-render");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The maximum number of characters in a thread's name */
+    private static final int MAX_THREAD_NAME_LENGTH = 100;
+
+    /** A completion, as rendered into a /prompt thread - each of its lines is underlined by addDiscordUnderline() */
+    private static final Pattern RENDERED_COMPLETION = Pattern.compile("__\\S(.*\\S)?__");
+
+    /** A chatbot's handle at the start of a message, as the bot's messages in a /chat thread start */
+    private static final Pattern CHAT_HANDLE = Pattern.compile("^" + Pattern.quote(ChatThread.handleNamePrefix) + "[^\\n]+?"
+            + Pattern.quote(ChatThread.handleNameSuffix));
 
     public static final String MODAL_ID = "prompt-modal";
     private static final String MODAL_MODEL_ID = "model", MODAL_PROMPT_ID = "prompt";
@@ -30,6 +71,9 @@ public class Prompt extends Commands {
     public Prompt() {
         super.name = "prompt";
         super.description = "Opens a modal to create a prompt for GPT-3";
+
+        // threads that moved to another worker are dropped - their state is already in the cluster's ThreadStore
+        Cluster.addMembershipListener(() -> threadMap.keySet().removeIf(threadID -> !Cluster.owns(threadID)));
     }
 
     /**
@@ -47,7 +91,7 @@ public class Prompt extends Commands {
         }
 
         TextInput model = TextInput.create(MODAL_MODEL_ID, "Language Model", TextInputStyle.SHORT)
-                .setValue(Settings.model)
+                .setValue(Settings.get(event.getGuild()).getModel())
                 .build();
 
         TextInput body = TextInput.create(MODAL_PROMPT_ID, "Prompt", TextInputStyle.PARAGRAPH)
@@ -68,6 +112,11 @@ public class Prompt extends Commands {
      * @param event
      */
     public void readModal(ModalInteractionEvent event) {
+        // acknowledge the interaction straight away - Discord fails it if it isn't acknowledged within 3 seconds
+        event.deferReply(true).queue();
+
+        Settings settings = Settings.get(event.getGuild());
+
         // Get the model (lowercase) and prompt from the modal.
         String model = event.getValues().stream()
                 .filter(v -> v.getId().equals(MODAL_MODEL_ID))
@@ -75,8 +124,8 @@ public class Prompt extends Commands {
 
         // Verify that the model is valid
         if(!GPTUtil.isValidModel(model)) {
-            event.reply("'" + model + "' is an Invalid model.\nValid models are: " + GPTUtil.listModels())
-                    .setEphemeral(true).queue();
+            event.getHook().editOriginal("'" + model + "' is an Invalid model.\nValid models are: " + GPTUtil.listModels())
+                    .queue();
             return;
         }
 
@@ -84,45 +133,108 @@ public class Prompt extends Commands {
                 .filter(v -> v.getId().equals(MODAL_PROMPT_ID))
                 .findFirst().get().getAsString();
 
-        // if the prompt is too long, cancel the command
-        int promptTokens = prompt.length() / 4 + Settings.promptCompletionTokens;
-        double promptCost = GPTUtil.tokensToUSD(promptTokens, model);
-        if(promptCost > Settings.maxCostPerAPIRequest) {
-            int maxTokens = GPTUtil.usdToTokens(Settings.maxCostPerAPIRequest, model) - Settings.promptCompletionTokens;
+        // if the prompt is too long (too expensive, or doesn't fit in the model's context), cancel the command
+        int maxTokens = GPTUtil.maxPromptTokens(model, settings.getPromptCompletionTokens(), settings.getMaxCostPerAPIRequest());
+        if(GPTUtil.countTokens(prompt) > maxTokens) {
             // include the prompt in the ephemeral reply so the data isn't lost
-            event.reply(String.format("The prompt is too long - the maximum prompt size for the %s model is %d tokens"
-                + " (roughly %d characters).%n%nGiven prompt:%n```%n%s%n```", model, maxTokens, maxTokens * 4, prompt))
-                    .setEphemeral(true).queue();
+            event.getHook().editOriginal(String.format("The prompt is too long - the maximum prompt size for the %s model"
+                + " is %d tokens (roughly %d characters).%n%nGiven prompt:%n```%n%s%n```", model, maxTokens, maxTokens * 4, prompt))
+                    .queue();
             return;
         }
 
-        // create a name for the thread
-        String threadNamePrompt = "Given the following prompt: \"" + prompt +
-                "\"\nA creative, yet very short title for the prompt is:";
-        String threadName = Settings.gptGeneratedThreadNames ? new GPTRequest.GPTRequestBuilder(
-                GPTUtil.convertToInstructModel(Settings.model), threadNamePrompt, 7, true)
-                .frequencyPenalty(.76).build().request()
-                : Settings.defaultThreadName;
+        // start the completion straight away (unless a near-duplicate prompt's is cached) - the thread is created while it's generated
+        long startTime = System.currentTimeMillis();
+        RequestContext context = RequestContext.of(event, 0);
+        long guildID = context.getGuildID();
+        boolean cacheable = PromptCache.isCached(settings, settings.getPromptTemperature());
+        Optional<List<String>> cachedCompletions = cacheable ? PromptCache.get(guildID, model,
+                settings.getPromptCompletionTokens(), settings.getPromptChoices(), prompt) : Optional.empty();
+        CompletableFuture<List<String>> completion;
+        if(cachedCompletions.isPresent()) {
+            completion = CompletableFuture.completedFuture(cachedCompletions.get());
+        }
+        else {
+            try {
+                completion = new GPTRequest.GPTRequestBuilder(model, prompt, settings.getPromptCompletionTokens())
+                        .temperature(settings.getPromptTemperature())
+                        .choices(settings.getPromptChoices())
+                        .context(context)
+                        .build().requestChoicesAsync(true);
+            } catch(BudgetExceededException e) {
+                event.getHook().editOriginal(e.getMessage()).queue();
+                return;
+            }
+            if(cacheable)
+                completion.thenAccept(texts -> PromptCache.put(guildID, model, settings.getPromptCompletionTokens(),
+                        settings.getPromptChoices(), prompt, texts));
+        }
 
-        // create a new discord thread
-        ThreadChannel threadChannel = event.getTextChannel().createThreadChannel(threadName).complete();
+        // create a new discord thread with a provisional name, which is replaced once a title has been generated
+        Span creatingThread = context.getSpan().child("discord.create_thread");
+        event.getTextChannel().createThreadChannel(settings.getDefaultThreadName()).queue(threadChannel -> {
+            creatingThread.end();
+            event.getHook().editOriginal("Thread created").queue();
 
-        // modal gives an error (in the Discord UI) if no reply is given
-        event.reply("Thread created").setEphemeral(true).queue();
+            threadChannel.sendTyping().deadline(System.currentTimeMillis()).queue();
 
-        threadChannel.sendTyping().deadline(System.currentTimeMillis()).queue();
+            if(settings.isGptGeneratedThreadNames()) {
+                String threadNamePrompt = "Given the following prompt: \"" + prompt +
+                        "\"\nA creative, yet very short title for the prompt is:";
+                try {
+                    new GPTRequest.GPTRequestBuilder(GPTUtil.convertToInstructModel(settings.getModel()), threadNamePrompt, 7, true)
+                            .frequencyPenalty(.76).context(context).priority(Priority.COSMETIC)
+                            .task(CompletionTask.TITLE).subject(prompt).build().requestAsync(false)
+                            .thenAccept(title -> renameThread(threadChannel, title))
+                            .exceptionally(e -> {
+                                if(e.getCause() instanceof RequestDroppedException)
+                                    log.info("Skipped generating a title for thread " + threadChannel.getId() + ": " + e.getCause().getMessage());
+                                else
+                                    log.error("Error generating a title for thread " + threadChannel.getId(), e);
+                                return null;
+                            });
+                } catch(BudgetExceededException e) {
+                    // the completion matters more than the title - the thread keeps its provisional name
+                }
+            }
 
-        String completion = new GPTRequest.GPTRequestBuilder(model, prompt, Settings.promptCompletionTokens)
-                .build().request(true);
-        completion = DiscordUtil.addDiscordUnderline(completion);
-        Message firstMsg = threadChannel.sendMessage(prompt + completion).complete();
+            completion.thenAccept(texts -> {
+                // add the thread to the map of threads created by /prompt, and render the prompt into it
+                PromptThread thread = new PromptThread(threadChannel.getIdLong(), model, prompt);
+                thread.concatenateChoices(texts.stream().map(DiscordUtil::addDiscordUnderline).toList());
+                threadMap.put(threadChannel.getIdLong(), thread);
+                queueRender(thread, threadChannel, settings.getPromptEditIntervalMillis());
+                log.info("/prompt thread " + threadChannel.getId() + " ready in " + (System.currentTimeMillis() - startTime) + " ms");
+            }).exceptionally(e -> {
+                log.error("Error generating the first completion for thread " + threadChannel.getId(), e);
+                sendNotice(threadChannel, "`The completion couldn't be generated.`");
+                return null;
+            });
+        }, e -> {
+            creatingThread.end(e);
+            // there's nowhere to put the completion - if it hasn't been sent yet, it isn't, and its charges are refunded
+            completion.cancel(false);
+            log.error("Error creating a /prompt thread", e);
+            event.getHook().editOriginal("The thread couldn't be created, please try again.").queue();
+        });
+    }
+
+    /**
+     * Replaces a thread's provisional name with a generated title
+     * @param threadChannel The thread to rename
+     * @param title The generated title - it's left unchanged if blank
+     */
+    private static void renameThread(ThreadChannel threadChannel, String title) {
+        title = title.strip().replaceAll("^\"|\"$", ""); // titles are often generated inside quotes
+        if(title.isBlank())
+            return;
 
-        // add the thread to the map of threads created by /prompt
-        threadMap.put(threadChannel.getIdLong(), new PromptThread(threadChannel.getIdLong(), model, firstMsg));
+        threadChannel.getManager().setName(title.substring(0, Math.min(title.length(), MAX_THREAD_NAME_LENGTH))).queue();
     }
 
     /**
-     * Called when a user sends a message in a thread created by /prompt
+     * Called when a user sends a message in a thread created by /prompt.  The message is appended, and the prompt
+     * continued, once the thread's earlier messages have been continued - see PromptThread.queueContinuation().
      * @param threadID The ID of the thread the message was sent in.
      * @param message The message that was sent.
      * @param event
@@ -130,39 +242,192 @@ public class Prompt extends Commands {
     public void registerMessage(long threadID, String message, MessageReceivedEvent event) {
         event.getMessage().delete().queue();
 
+        Settings settings = Settings.get(event.getGuild());
         PromptThread thread = threadMap.get(threadID);
+        RequestContext context = RequestContext.of(event);
+        thread.queueContinuation(() -> {
+            try {
+                return continuePrompt(thread, message, event, settings, context);
+            } catch(RuntimeException e) {
+                log.error("Error continuing the prompt in thread " + threadID, e);
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+    }
+
+    /**
+     * Appends a message to a /prompt thread's prompt, and requests its continuation
+     * @param context The request context of the message
+     * @return A future that completes once the completion has been appended to the prompt (or has failed)
+     */
+    private CompletableFuture<?> continuePrompt(PromptThread thread, String message, MessageReceivedEvent event,
+                                                Settings settings, RequestContext context) {
+        long threadID = thread.getThreadID();
         thread.concatenateToPrompt(message);
 
         // remove discord underlines from the prompt
+        Span assembly = context.getSpan().child("prompt.prompt_assembly");
         String prompt = thread.getPrompt().replaceAll("__", "");
+        assembly.setAttribute("characters", prompt.length()).end();
 
-        // if the prompt is too long, don't make the API request
-        int tokens = prompt.length() / 4 + Settings.promptCompletionTokens;
-        double promptCost = GPTUtil.tokensToUSD(tokens, thread.getModel());
-        if(promptCost > Settings.maxCostPerAPIRequest) {
-            int maxTokens = GPTUtil.usdToTokens(Settings.maxCostPerAPIRequest, thread.getModel()) - Settings.promptCompletionTokens;
-
-            event.getChannel().sendMessage(String.format("The prompt has gotten too long - the maximum prompt size for the %s"
+        // if the prompt is too long (too expensive, or doesn't fit in the model's context), don't make the API request
+        int maxTokens = GPTUtil.maxPromptTokens(thread.getModel(), settings.getPromptCompletionTokens(),
+                settings.getMaxCostPerAPIRequest());
+        if(GPTUtil.countTokens(prompt) > maxTokens) {
+            sendNotice(event.getChannel(), String.format("The prompt has gotten too long - the maximum prompt size for the %s"
                     + " model is %d tokens (roughly %d characters).  Edit the prompt using the /edit command.",
-                    thread.getModel(), maxTokens, maxTokens * 4)).queue();
-            return;
+                    thread.getModel(), maxTokens, maxTokens * 4));
+            return CompletableFuture.completedFuture(null);
         }
-        else { // Make an API request using the prompt, and add the completion to the first message in the thread
+        else { // Make an API request using the prompt, and add the completion to the messages rendering the prompt
             event.getChannel().sendTyping().deadline(System.currentTimeMillis()).queue();
 
-            String completion = new GPTRequest.GPTRequestBuilder(
-                    thread.getModel(), prompt, Settings.promptCompletionTokens,true)
-                    .build().request(true);
+            try {
+                return new GPTRequest.GPTRequestBuilder(thread.getModel(), prompt, settings.getPromptCompletionTokens(),true)
+                        .temperature(settings.getPromptTemperature())
+                        .choices(settings.getPromptChoices())
+                        .context(context)
+                        .build().requestChoicesAsync(true)
+                        .thenAccept(completions -> {
+                            thread.concatenateChoices(completions.stream().map(DiscordUtil::addDiscordUnderline).toList());
+                            queueRender(thread, event.getChannel(), settings.getPromptEditIntervalMillis());
+                        }).exceptionally(e -> {
+                            // keep the user's message in the prompt, so it's continued by the next message
+                            queueRender(thread, event.getChannel(), settings.getPromptEditIntervalMillis());
+                            if(e.getCause() instanceof ContextLengthExceededException) {
+                                // the thread's prompt has outgrown the model - no continuation can be requested
+                                sendNotice(event.getChannel(), "`" + e.getCause().getMessage() + "`");
+                            }
+                            else if(e.getCause() instanceof DeadlineExceededException
+                                    || e.getCause() instanceof RequestDroppedException) {
+                                sendNotice(event.getChannel(), "`The " + thread.getModel() + " model is too busy to "
+                                        + "continue the prompt right now - send another message to try again.`");
+                            }
+                            else {
+                                log.error("Error generating a completion for thread " + threadID, e);
+                                sendNotice(event.getChannel(), "`The completion couldn't be generated.`");
+                            }
+                            return null;
+                        });
+            } catch(BudgetExceededException e) {
+                // keep the user's message in the prompt, so it's continued once the budget allows
+                queueRender(thread, event.getChannel(), settings.getPromptEditIntervalMillis());
+                sendNotice(event.getChannel(), "`" + e.getMessage() + "`");
+                return CompletableFuture.completedFuture(null);
+            }
+        }
+    }
+
+    /**
+     * Sends a notice in a /prompt thread, with an emoji reaction allowing users to delete it (ReactionHandler)
+     * @param channel The thread's channel
+     * @param notice The notice's text
+     */
+    private static void sendNotice(MessageChannel channel, String notice) {
+        channel.sendMessage(notice).queue(message -> message.addReaction(Emoji.fromUnicode(ReactionHandler.trashEmoji)).queue());
+    }
 
-            completion = DiscordUtil.addDiscordUnderline(completion);
-            thread.concatenateToPrompt(completion);
-            thread.getMessage().editMessage(thread.getPrompt()).queue();
+    /**
+     * Called from ReactionHandler when ReactionHandler.nextChoiceEmoji is added to a message in a /prompt thread.
+     * Swaps the last completion in the thread's prompt for the next one it was chosen from - without an API request.
+     * @param threadID The ID of the thread
+     * @param messageID The ID of the message the reaction was added to - only the message the last completion ends in
+     *                  swaps it
+     * @param channel The thread's channel
+     * @param settings The guild's settings
+     * @return Whether there was an alternative to swap in
+     */
+    public static boolean nextChoice(long threadID, long messageID, MessageChannel channel, Settings settings) {
+        PromptThread thread = threadMap.get(threadID);
+        if(!thread.isLastPromptMessage(messageID) || !thread.nextChoice())
+            return false;
+
+        queueRender(thread, channel, settings.getPromptEditIntervalMillis());
+        return true;
+    }
+
+    /**
+     * Renders the thread's prompt into the thread, unless a render is already queued.  Renders are coalesced, so rapid
+     * completions produce at most one render per minRenderIntervalMillis.
+     * @param thread The thread whose prompt changed
+     * @param channel The thread's channel
+     * @param minRenderIntervalMillis The minimum time between the end of one render and the start of the next
+     */
+    private static void queueRender(PromptThread thread, MessageChannel channel, long minRenderIntervalMillis) {
+        long delay = thread.queueRender(minRenderIntervalMillis);
+        Span trace = Tracer.current(); // the render is traced as part of whatever queued it
+        if(delay >= 0)
+            renderScheduler.schedule(() -> render(thread, channel, minRenderIntervalMillis, trace), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Renders the thread's prompt across a chain of messages, each holding one chunk of at most
+     * DiscordUtil.MAX_MESSAGE_LENGTH characters.  Only chunks that changed since the last render are edited (normally
+     * just the last one), and messages are sent for any new chunks.
+     */
+    private static void render(PromptThread thread, MessageChannel channel, long minRenderIntervalMillis, Span trace) {
+        Span span = trace.child("prompt.render");
+        List<String> chunks = DiscordUtil.splitPreservingUnderline(thread.startRender(), DiscordUtil.MAX_MESSAGE_LENGTH);
+        List<String> renderedChunks = thread.getRenderedChunks();
+        span.setAttribute("chunks", chunks.size());
+
+        // chain the edits and sends, so new messages are sent in order
+        CompletableFuture<?> rendering = CompletableFuture.completedFuture(null);
+        for(int i = 0; i < chunks.size(); i++) {
+            int index = i;
+            String chunk = chunks.get(i);
+            if(index < renderedChunks.size() && !chunk.equals(renderedChunks.get(index))) {
+                long messageID = thread.getMessageID(index);
+                rendering = rendering.thenCompose(v ->
+                                Tracer.submit(channel.editMessageById(messageID, chunk), span, "discord.edit_message"))
+                        .thenAccept(msg -> thread.setRenderedChunk(index, messageID, chunk));
+            }
+            else if(index >= renderedChunks.size()) {
+                rendering = rendering.thenCompose(v -> Tracer.submit(channel.sendMessage(chunk), span, "discord.send_message"))
+                        .thenAccept(msg -> thread.setRenderedChunk(index, msg.getIdLong(), chunk));
+            }
         }
+        for(int i = chunks.size(); i < renderedChunks.size(); i++) {
+            long messageID = thread.getMessageID(i);
+            rendering = rendering.thenCompose(v ->
+                    Tracer.submit(channel.deleteMessageById(messageID), span, "discord.delete_message"));
+        }
+
+        rendering.whenComplete((v, e) -> {
+            span.end(e);
+            if(e != null)
+                log.error("Error rendering the prompt in thread " + thread.getThreadID(), e);
+            else {
+                thread.truncateRenderedChunks(chunks.size());
+                updateChoiceReaction(thread, channel, chunks.isEmpty() ? 0 : thread.getMessageID(chunks.size() - 1));
+            }
+
+            saveToCluster(thread);
+            if(thread.finishRender())
+                queueRender(thread, channel, minRenderIntervalMillis);
+        });
     }
 
-    @Override
-    public void addCommand(JDA jda) {
-        jda.upsertCommand(name, description).complete();
+    /**
+     * Offers the alternatives to the last completion with a reaction on the message it ends in - moving the reaction if
+     * that message changed, and removing it once there are no alternatives.  The reaction is only added once, rather
+     * than on every render.
+     * @param thread The thread, just rendered
+     * @param channel The thread's channel
+     * @param lastMessageID The last message the prompt is rendered across, or 0 if none
+     */
+    private static void updateChoiceReaction(PromptThread thread, MessageChannel channel, long lastMessageID) {
+        long reacted = thread.getChoiceReactionMessageID(), wanted = thread.hasChoices() ? lastMessageID : 0;
+        if(reacted == wanted)
+            return;
+
+        Emoji emoji = Emoji.fromUnicode(ReactionHandler.nextChoiceEmoji);
+        // the message may have been deleted since
+        if(reacted != 0)
+            channel.removeReactionById(reacted, emoji).queue(null, e -> {});
+        if(wanted != 0)
+            channel.addReactionById(wanted, emoji).queue();
+        thread.setChoiceReactionMessageID(wanted);
     }
 
     @Override
@@ -170,7 +435,79 @@ public class Prompt extends Commands {
         return super.description;
     }
 
+    /**
+     * Rebuilds a /prompt thread this worker doesn't know (e.g. after a restart) from its messages in Discord, and adds
+     * it to threadMap - see ThreadRehydrator.  The prompt is rejoined from the chain of messages it's rendered across:
+     * the bot's messages, except its notices (in backticks, or with a trash reaction to delete them).  Other threads the
+     * bot owns (e.g. a /chat thread that's been renamed, so Chat doesn't recognise it) are left alone.
+     * @param threadChannel The thread, which the bot owns
+     * @param history The thread's messages, oldest first
+     * @return Whether the thread is a /prompt thread - the prompt rendered in the bot's messages has an underlined
+     *         completion, and none of them starts with a chatbot's handle
+     */
+    public static boolean rehydrate(ThreadChannel threadChannel, List<Message> history) {
+        long selfID = threadChannel.getJDA().getSelfUser().getIdLong();
+        List<Message> chunks = history.stream()
+                .filter(message -> message.getAuthor().getIdLong() == selfID && !message.getType().isSystem())
+                .filter(message -> !isNotice(message))
+                .toList();
+        if(chunks.isEmpty() || chunks.stream().anyMatch(message -> CHAT_HANDLE.matcher(message.getContentRaw()).find()))
+            return false;
+
+        String prompt = DiscordUtil.joinPreservingUnderline(chunks.stream().map(Message::getContentRaw).toList());
+        if(!RENDERED_COMPLETION.matcher(prompt).find())
+            return false;
+        PromptThread thread = new PromptThread(threadChannel.getIdLong(), Settings.get(threadChannel.getGuild()).getModel(),
+                prompt);
+        for(int i = 0; i < chunks.size(); i++)
+            thread.setRenderedChunk(i, chunks.get(i).getIdLong(), chunks.get(i).getContentRaw());
+        threadMap.put(threadChannel.getIdLong(), thread);
+        saveToCluster(thread);
+        return true;
+    }
+
+    /** @return Whether the message is one of the bot's notices in a /prompt thread, rather than part of the prompt */
+    private static boolean isNotice(Message message) {
+        String content = message.getContentRaw();
+        return (content.length() > 1 && content.startsWith("`") && content.endsWith("`"))
+                || message.getReactions().stream().anyMatch(reaction ->
+                        reaction.getEmoji().getAsReactionCode().equals(ReactionHandler.trashEmoji) && reaction.isSelf());
+    }
+
+    /**
+     * @param threadID The ID of a thread
+     * @return Whether the thread was created by /prompt. In clustered mode, a thread this worker has just taken
+     *         ownership of is loaded from the cluster's ThreadStore.
+     */
     public static boolean isPromptThread(long threadID) {
-        return threadMap.containsKey(threadID);
+        return threadMap.containsKey(threadID) || (Cluster.isEnabled() && loadFromCluster(threadID));
+    }
+
+    /**
+     * @param threadID The ID of a thread created by /prompt
+     * @param messageID The ID of a message in the thread
+     * @return Whether the message is one of the messages the thread's prompt is rendered across
+     */
+    public static boolean isPromptMessage(long threadID, long messageID) {
+        return threadMap.get(threadID).isPromptMessage(messageID);
+    }
+
+    /** In clustered mode, saves the thread's state so another worker can take it over */
+    private static void saveToCluster(PromptThread thread) {
+        if(Cluster.isEnabled())
+            Cluster.getStore().save(thread.getThreadID(), thread.toData());
+    }
+
+    /**
+     * Loads a /prompt thread from the cluster's ThreadStore into threadMap
+     * @return Whether the thread was found in the ThreadStore, and loaded
+     */
+    private static boolean loadFromCluster(long threadID) {
+        Optional<DataObject> state = Cluster.loadThread(threadID, PromptThread.TYPE);
+        if(state.isEmpty())
+            return false;
+
+        threadMap.put(threadID, new PromptThread(state.get()));
+        return true;
     }
 }
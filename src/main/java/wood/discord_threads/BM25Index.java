@@ -0,0 +1,98 @@
+package wood.discord_threads;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only inverted index of a thread's messages, scored with Okapi BM25.  Adding a message only appends to the
+ * postings of its own terms, so indexing costs the same however long the thread is.  Not thread safe.
+ */
+public class BM25Index {
+
+    /** Term frequency saturation, and document length normalisation */
+    private static final double K1 = 1.2, B = .75;
+
+    private static final Pattern TERM = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    /** Each term mapped to its postings - pairs of (document, frequency of the term in it) */
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private int[] documentLengths = new int[16];
+    private int documents = 0;
+    private long totalLength = 0;
+
+    /**
+     * Indexes a document - documents are numbered in the order they're added, from 0
+     * @param text The document's text
+     */
+    public void add(String text) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        int length = 0;
+        Matcher terms = TERM.matcher(text.toLowerCase());
+        while(terms.find()) {
+            frequencies.merge(terms.group(), 1, Integer::sum);
+            length++;
+        }
+
+        int document = documents++;
+        if(document == documentLengths.length)
+            documentLengths = Arrays.copyOf(documentLengths, document * 2);
+        documentLengths[document] = length;
+        totalLength += length;
+        frequencies.forEach((term, frequency) -> postings.computeIfAbsent(term, t -> new Postings()).add(document, frequency));
+    }
+
+    /** @return The number of documents indexed */
+    public int size() {
+        return documents;
+    }
+
+    /**
+     * @param query The text to score the documents against
+     * @return The BM25 score of each document (by number) for the query - 0 for documents sharing no terms with it
+     */
+    public double[] score(String query) {
+        double[] scores = new double[documents];
+        if(documents == 0)
+            return scores;
+
+        double averageLength = Math.max(1, (double) totalLength / documents);
+        Set<String> queryTerms = new HashSet<>();
+        Matcher terms = TERM.matcher(query.toLowerCase());
+        while(terms.find())
+            queryTerms.add(terms.group());
+
+        for(String term : queryTerms) {
+            Postings termPostings = postings.get(term);
+            if(termPostings == null)
+                continue;
+            int documentFrequency = termPostings.size / 2;
+            double idf = Math.log(1 + (documents - documentFrequency + .5) / (documentFrequency + .5));
+            for(int i = 0; i < termPostings.size; i += 2) {
+                int document = termPostings.entries[i], frequency = termPostings.entries[i + 1];
+                double lengthNorm = K1 * (1 - B + B * documentLengths[document] / averageLength);
+                scores[document] += idf * frequency * (K1 + 1) / (frequency + lengthNorm);
+            }
+        }
+        return scores;
+    }
+
+    /** A term's postings, as a growable array of (document, frequency) pairs */
+    private static class Postings {
+        private int[] entries = new int[4];
+        private int size = 0;
+
+        private void add(int document, int frequency) {
+            if(size == entries.length)
+                entries = Arrays.copyOf(entries, size * 2);
+            entries[size++] = document;
+            entries[size++] = frequency;
+        }
+    }
+
+}
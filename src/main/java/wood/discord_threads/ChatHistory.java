@@ -0,0 +1,212 @@
+package wood.discord_threads;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages of a chat thread, each with the form it's sent to GPT-3 in, stored once in compact form.  A message's
+ * formatted form is normally its author's handle (e.g. "[name]> ") followed by the message - so the text is kept once,
+ * as UTF-8 in chunked byte arenas, and the handle as a small ID into a table of the thread's handles.  Anything else
+ * the formatted form has before the message (e.g. the chatbot's description before its greeting) is kept in the arena
+ * too.  Each message costs roughly 15 bytes besides its UTF-8 text.  Not thread safe.
+ */
+public class ChatHistory {
+
+    /** The size of the first arena chunk, and the most a chunk grows to (besides chunks holding one larger text) */
+    private static final int MIN_CHUNK_SIZE = 1 << 9, MAX_CHUNK_SIZE = 1 << 13;
+
+    /** A span of the arena, packed into a long as its chunk (20 bits), offset in the chunk (24 bits), and length */
+    private static final int OFFSET_BITS = 24, LENGTH_BITS = 20;
+    private static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    /** The message includes its author's handle - e.g. the chatbot's messages */
+    private static final byte HANDLE_IN_MESSAGE = 1;
+    /** The formatted form isn't the message with something before it - so it's kept whole, as the message's head */
+    private static final byte SEPARATE_FORMATTED = 2;
+
+    private static final short NO_AUTHOR = -1;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int chunkUsed = 0;
+
+    /** The handles of the thread's authors, and each one's ID (its index in handles) */
+    private final List<String> handles = new ArrayList<>();
+    private final Map<String, Short> handleIDs = new HashMap<>();
+
+    /** Each message's text (excluding its author's handle), author, flags, and the tokens of its formatted form */
+    private long[] spans = new long[16];
+    private short[] authors = new short[16];
+    private byte[] flags = new byte[16];
+    private int[] tokens = new int[16];
+    private int size = 0;
+
+    /** The span of what precedes the handle in a message's formatted form, for the few (normally only the first)
+     *  messages that have one */
+    private final Map<Integer, Long> heads = new HashMap<>();
+
+    /**
+     * Adds a message
+     * @param message The message's content
+     * @param formatted The message formatted for GPT-3
+     * @param formattedTokens The tokens in the formatted message
+     */
+    public void add(String message, String formatted, int formattedTokens) {
+        if(size == spans.length) {
+            int capacity = size * 2;
+            spans = Arrays.copyOf(spans, capacity);
+            authors = Arrays.copyOf(authors, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            tokens = Arrays.copyOf(tokens, capacity);
+        }
+
+        short author = NO_AUTHOR;
+        byte messageFlags = 0;
+        String body = message, head = "";
+        if(formatted.endsWith(message)) {
+            head = formatted.substring(0, formatted.length() - message.length());
+            if(isHandle(head) && intern(head) != NO_AUTHOR) {
+                // a user's message - "[name]> " + message
+                author = intern(head);
+                head = "";
+            }
+            else {
+                // the chatbot's messages start with its handle, which is also in their formatted form
+                int handleEnd = message.indexOf(ChatThread.handleNameSuffix) + ChatThread.handleNameSuffix.length();
+                if(handleEnd > ChatThread.handleNameSuffix.length() && isHandle(message.substring(0, handleEnd))
+                        && intern(message.substring(0, handleEnd)) != NO_AUTHOR) {
+                    author = intern(message.substring(0, handleEnd));
+                    body = message.substring(handleEnd);
+                    messageFlags = HANDLE_IN_MESSAGE;
+                }
+            }
+        }
+        else {
+            head = formatted;
+            messageFlags = SEPARATE_FORMATTED;
+        }
+
+        if(!head.isEmpty())
+            heads.put(size, store(head));
+        spans[size] = store(body);
+        authors[size] = author;
+        flags[size] = messageFlags;
+        tokens[size] = formattedTokens;
+        size++;
+    }
+
+    /** @return The number of messages */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param index The index of a message, in the order they were added
+     * @return The message's content
+     */
+    public String message(int index) {
+        String body = read(spans[index]);
+        return (flags[index] & HANDLE_IN_MESSAGE) != 0 ? handles.get(authors[index]) + body : body;
+    }
+
+    /**
+     * @param index The index of a message, in the order they were added
+     * @return The message formatted for GPT-3
+     */
+    public String formatted(int index) {
+        return appendFormatted(new StringBuilder(), index).toString();
+    }
+
+    /**
+     * Appends a message's formatted form to a StringBuilder, without building it as a String first
+     * @param builder The StringBuilder
+     * @param index The index of a message, in the order they were added
+     * @return The StringBuilder, for chaining
+     */
+    public StringBuilder appendFormatted(StringBuilder builder, int index) {
+        Long head = heads.get(index);
+        if(head != null)
+            builder.append(read(head));
+        if((flags[index] & SEPARATE_FORMATTED) != 0)
+            return builder;
+        if(authors[index] != NO_AUTHOR)
+            builder.append(handles.get(authors[index]));
+        return builder.append(read(spans[index]));
+    }
+
+    /**
+     * @param index The index of a message, in the order they were added
+     * @return The tokens in the message's formatted form
+     */
+    public int formattedTokens(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * @param max The most handles to return
+     * @return The distinct handles of the messages' authors, most recent author first
+     */
+    public List<String> recentHandles(int max) {
+        List<String> recent = new ArrayList<>();
+        boolean[] seen = new boolean[handles.size()];
+        for(int i = size - 1; i >= 0 && recent.size() < max && recent.size() < handles.size(); i--) {
+            if(authors[i] != NO_AUTHOR && !seen[authors[i]]) {
+                seen[authors[i]] = true;
+                recent.add(handles.get(authors[i]));
+            }
+        }
+        return recent;
+    }
+
+    /** @return Whether the text is a whole handle - handleNamePrefix + name + handleNameSuffix */
+    private static boolean isHandle(String text) {
+        return text.startsWith(ChatThread.handleNamePrefix) && text.endsWith(ChatThread.handleNameSuffix)
+                && text.length() > ChatThread.handleNamePrefix.length() + ChatThread.handleNameSuffix.length()
+                && text.indexOf(ChatThread.handleNameSuffix) == text.length() - ChatThread.handleNameSuffix.length();
+    }
+
+    /** @return The handle's ID, or NO_AUTHOR if the thread already has the most handles an ID can represent */
+    private short intern(String handle) {
+        Short id = handleIDs.get(handle);
+        if(id != null)
+            return id;
+        if(handles.size() > Short.MAX_VALUE)
+            return NO_AUTHOR;
+
+        id = (short) handles.size();
+        handles.add(handle);
+        handleIDs.put(handle, id);
+        return id;
+    }
+
+    /** @return The span of the arena the text was copied into, as UTF-8 */
+    private long store(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MAX_LENGTH)
+            throw new IllegalArgumentException("Can't store more than " + MAX_LENGTH + " bytes of text in a message");
+
+        // texts don't cross chunks - a text that doesn't fit in what's left of the last chunk starts a new one
+        if(chunks.isEmpty() || chunkUsed + bytes.length > chunks.get(chunks.size() - 1).length) {
+            int nextSize = chunks.isEmpty() ? MIN_CHUNK_SIZE
+                    : Math.min(MAX_CHUNK_SIZE, chunks.get(chunks.size() - 1).length * 2);
+            chunks.add(new byte[Math.max(nextSize, bytes.length)]);
+            chunkUsed = 0;
+        }
+
+        int chunk = chunks.size() - 1, offset = chunkUsed;
+        System.arraycopy(bytes, 0, chunks.get(chunk), offset, bytes.length);
+        chunkUsed += bytes.length;
+        return (long) chunk << (OFFSET_BITS + LENGTH_BITS) | (long) offset << LENGTH_BITS | bytes.length;
+    }
+
+    private String read(long span) {
+        int chunk = (int) (span >>> (OFFSET_BITS + LENGTH_BITS)),
+                offset = (int) (span >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1),
+                length = (int) span & MAX_LENGTH;
+        return new String(chunks.get(chunk), offset, length, StandardCharsets.UTF_8);
+    }
+
+}
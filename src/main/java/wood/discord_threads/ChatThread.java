@@ -1,17 +1,34 @@
 package wood.discord_threads;
 
 import lombok.Getter;
+import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.ThreadChannel;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
 import wood.Settings;
+import wood.jfr.ChatContextTrimEvent;
+import wood.scheduler.RequestContext;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
+import wood.util.GPTRequest;
 import wood.util.GPTUtil;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class ChatThread {
 
+    /** The value of the "type" key in the thread's serialized state */
+    public static final String TYPE = "chat";
+
     private final ThreadChannel threadChannel;
     @Getter private final long threadID;
+    @Getter private final long guildID;
     @Getter private final String model;
 
     /** The name of this chatbot */
@@ -20,45 +37,133 @@ public class ChatThread {
     /** The description of this chatbot */
     private final String chatbotDescription;
 
-    /** Raw string content of the discord messages */
-    private final List<String> messages = new ArrayList<>();
-
-    /** Discord messages formatted for GPT-3 to generate better responses */
-    private final List<String> gptFormattedMsgs = new ArrayList<>();
+    /** The raw content of the discord messages, and each formatted for GPT-3 to generate better responses */
+    private final ChatHistory history = new ChatHistory();
 
-    /** A list of gptFormattedMessages that fit within Settings.maxCostPerAPIRequest */
-    private final List<String> gptFormattedMsgsLimited = new ArrayList<>();
+    /** The formatted messages that fit within the guild's maxCostPerAPIRequest, and the model's context, are the first,
+     *  and every one from this index on - the messages in between have been trimmed */
+    private int firstUntrimmedMessage = 1;
 
-    /** The number of tokens inside gptFormattedMsgsLimited */
+    /** The number of tokens inside the formatted messages that fit within the limits */
     private int tokensInGPTFormattedMsgsLimited = 0;
 
     /** What precedes and follows names in the chat */
     public final static String handleNamePrefix = "[", handleNameSuffix = "]> ";
 
+    /** A line starting with a handle - another turn, after the chatbot's */
+    private static final Pattern OTHER_TURN = Pattern.compile("\n" + Pattern.quote(handleNamePrefix) + "[^\\n\\]]+"
+            + Pattern.quote(handleNameSuffix));
+
     /** The chatbot's name formatted with handleNamePrefix and handleNameSuffix */
     @Getter public final String chatbotDisplayName;
 
-    /** Whether the users have been notified that the prompt is being shortened to fit within Settings.maxCostPerAPIRequest limit */
+    /** (relevant context mode) An index of every message, added to as messages are registered - for threads restored
+     *  from saved state, it's built on first use */
+    private final BM25Index index = new BM25Index();
+
+    /** Whether the users have been notified that the prompt is being shortened to fit within the guild's maxCostPerAPIRequest limit */
     private boolean hasNotifiedUserOfPromptShortening = false;
 
+    /** (debounce mode) The number of messages received since the last reply started, which the next reply will answer */
+    private int unansweredMessages = 0;
+
+    /** (debounce mode) When the oldest unanswered message was received, in epoch milliseconds */
+    private long firstUnansweredMessageTime;
+
+    /** (debounce mode) The request context of the oldest unanswered message, whose deadline the reply must meet */
+    private RequestContext firstUnansweredMessageContext;
+
+    /** (debounce mode) Whether a reply is scheduled, or being generated */
+    private boolean replyQueued = false;
+
+    /**
+     * (debounce mode) The messages answered by a single reply
+     * @param count The number of messages
+     * @param firstReceivedTime When the oldest of the messages was received, in epoch milliseconds
+     * @param context The request context of the oldest of the messages
+     */
+    public record UnansweredMessages(int count, long firstReceivedTime, RequestContext context) {}
+
     public ChatThread(ThreadChannel threadChannel, String model, String chatBotName, String chatBotDescription) {
         this.threadChannel = threadChannel;
         this.threadID = threadChannel.getIdLong();
+        this.guildID = threadChannel.getGuild().getIdLong();
         this.model = model;
         this.chatbotName = chatBotName;
         this.chatbotDescription = chatBotDescription;
         this.chatbotDisplayName = handleNamePrefix + chatBotName + handleNameSuffix;
     }
 
-    public void registerMessage(String message, String gptFormattedMsg) {
-        messages.add(message);
-        gptFormattedMsgs.add(gptFormattedMsg);
-        gptFormattedMsgsLimited.add(gptFormattedMsg);
-        tokensInGPTFormattedMsgsLimited += GPTUtil.countTokens(gptFormattedMsg);
+    /**
+     * Restores a thread from the state saved by toData()
+     * @param threadChannel The thread's channel
+     * @param state The thread's serialized state
+     */
+    public ChatThread(ThreadChannel threadChannel, DataObject state) {
+        this(threadChannel, state.getString("model"), state.getString("chatbotName"), state.getString("chatbotDescription"));
+        DataArray messages = state.getArray("messages"), gptFormattedMsgs = state.getArray("gptFormattedMsgs"),
+                gptFormattedMsgsLimited = state.getArray("gptFormattedMsgsLimited");
+        for(int i = 0; i < messages.length(); i++) {
+            String gptFormattedMsg = gptFormattedMsgs.getString(i);
+            history.add(messages.getString(i), gptFormattedMsg, GPTUtil.countTokens(gptFormattedMsg));
+        }
+        // only messages after the first are trimmed, oldest first
+        this.firstUntrimmedMessage = Math.max(1, messages.length() - gptFormattedMsgsLimited.length() + 1);
+        this.tokensInGPTFormattedMsgsLimited = state.getInt("tokensInGPTFormattedMsgsLimited");
+        this.hasNotifiedUserOfPromptShortening = state.getBoolean("hasNotifiedUserOfPromptShortening");
+    }
+
+    /**
+     * Rebuilds a thread from its messages in Discord (see ThreadRehydrator) - registering them as Chat did, so the
+     * messages within the limits are trimmed to the same window
+     * @param threadChannel The thread's channel
+     * @param model The model to use in the thread
+     * @param chatbotName The chatbot's name
+     * @param chatbotDescription The chatbot's description
+     * @param greetingPrompt The prompt the greeting was generated from, ending with the chatbot's display name
+     * @param history The thread's messages, oldest first - the chatbot's notices, and system messages, are skipped
+     * @return The rebuilt thread
+     */
+    public static ChatThread fromHistory(ThreadChannel threadChannel, String model, String chatbotName,
+                                         String chatbotDescription, String greetingPrompt, List<Message> history) {
+        ChatThread thread = new ChatThread(threadChannel, model, chatbotName, chatbotDescription);
+        String greetingPreamble = greetingPrompt.substring(0, greetingPrompt.length() - thread.chatbotDisplayName.length());
+        long selfID = threadChannel.getJDA().getSelfUser().getIdLong();
+        synchronized(thread) {
+            thread.hasNotifiedUserOfPromptShortening = true; // the users were notified when the messages were sent
+            for(Message message : history) {
+                if(message.getType().isSystem())
+                    continue;
+                if(message.getAuthor().getIdLong() == selfID) {
+                    String content = message.getContentRaw();
+                    if(content.startsWith(thread.chatbotDisplayName))
+                        thread.registerMessage(content, thread.history.size() == 0 ? greetingPreamble + content : content);
+                }
+                else if(thread.history.size() > 0) {
+                    String content = message.getContentDisplay();
+                    thread.registerMessage(content, handleNamePrefix + message.getAuthor().getName() + handleNameSuffix + content);
+                }
+            }
+            thread.hasNotifiedUserOfPromptShortening = thread.firstUntrimmedMessage > 1;
+        }
+        return thread;
+    }
+
+    public synchronized void registerMessage(String message, String gptFormattedMsg) {
+        Span counting = Tracer.current().child("chat.count_tokens");
+        int gptFormattedMsgTokens = GPTUtil.countTokens(gptFormattedMsg);
+        history.add(message, gptFormattedMsg, gptFormattedMsgTokens);
+        tokensInGPTFormattedMsgsLimited += gptFormattedMsgTokens;
 
-        // keep removing the 2nd message from gptFormattedMsgsLimited until it costs under Settings.maxCostPerAPIRequest
-        while(Settings.maxCostPerAPIRequest < GPTUtil.tokensToUSD(tokensInGPTFormattedMsgsLimited, model)) {
-            tokensInGPTFormattedMsgsLimited -= GPTUtil.countTokens(gptFormattedMsgsLimited.remove(1)) + 1; // +1 for the \n between messages (\n ~= 1 token)
+        // keep trimming the oldest message after the first from the limited messages until the reply's prompt (and completion) costs
+        // under the guild's maxCostPerAPIRequest, and fits in the model's context
+        ChatContextTrimEvent trim = new ChatContextTrimEvent();
+        trim.begin();
+        int tokensBeforeTrim = tokensInGPTFormattedMsgsLimited, messagesRemoved = 0;
+        int historyBudget = getHistoryBudget(Settings.get(guildID));
+        while(tokensInGPTFormattedMsgsLimited > historyBudget && firstUntrimmedMessage < history.size()) {
+            tokensInGPTFormattedMsgsLimited -= history.formattedTokens(firstUntrimmedMessage++) + 1; // +1 for the \n between messages (\n ~= 1 token)
+            messagesRemoved++;
 
             // send only one notification per chat thread
             if(!hasNotifiedUserOfPromptShortening) {
@@ -67,14 +172,220 @@ public class ChatThread {
                 hasNotifiedUserOfPromptShortening = true;
             }
         }
+        trim.end();
+        if(messagesRemoved > 0 && trim.shouldCommit()) {
+            trim.threadID = threadID;
+            trim.messagesRemoved = messagesRemoved;
+            trim.tokensBefore = tokensBeforeTrim;
+            trim.tokensAfter = tokensInGPTFormattedMsgsLimited;
+            trim.commit();
+        }
+        if(Settings.get(guildID).isChatRelevantContext())
+            indexNewMessages();
+        counting.setAttribute("tokens", tokensInGPTFormattedMsgsLimited).end();
     }
 
     /**
-     * @return The chat history of this thread that doesn't exceed Settings.maxCostPerAPIRequest -
+     * @return The chat history of this thread that doesn't exceed the guild's maxCostPerAPIRequest or the model's context -
      *         if the chat history is too long, the oldest messages will have been removed (excluding the first)
      */
-    public String getChatHistoryWithinTokenLimit() {
-        return String.join("\n", gptFormattedMsgsLimited) + "\n";
+    public synchronized String getChatHistoryWithinTokenLimit() {
+        if(history.size() == 0)
+            return "\n";
+        StringBuilder chatHistory = history.appendFormatted(new StringBuilder(), 0).append('\n');
+        for(int i = firstUntrimmedMessage; i < history.size(); i++)
+            history.appendFormatted(chatHistory, i).append('\n');
+        return chatHistory.toString();
+    }
+
+    /**
+     * @return The chat history the next reply is generated from - if the guild's chatRelevantContext is set, see
+     *         getRelevantChatHistory(), else getChatHistoryWithinTokenLimit()
+     */
+    public synchronized String getChatHistoryForReply() {
+        Settings settings = Settings.get(guildID);
+        if(!settings.isChatRelevantContext())
+            return getChatHistoryWithinTokenLimit();
+        return getRelevantChatHistory(getHistoryBudget(settings), settings.getChatRecentContextShare());
+    }
+
+    /**
+     * @return The stop sequences for the chatbot's next reply - the chatbot's and the most recent participants' turns,
+     *         see stopSequences()
+     */
+    public synchronized List<String> getReplyStopSequences() {
+        List<String> handles = new ArrayList<>(List.of(chatbotDisplayName));
+        for(String handle : history.recentHandles(GPTRequest.MAX_STOP_SEQUENCES))
+            if(!handle.equals(chatbotDisplayName))
+                handles.add(handle);
+        return stopSequences(handles);
+    }
+
+    /**
+     * Completions in a chat often carry on past the chatbot's turn, writing the participants' next messages - which are
+     * paid for, waited for, then thrown away.  These stop sequences end a completion when one of the participants'
+     * turns starts a line - so the start of their handle isn't in the completion.
+     * @param handles The handles (handleNamePrefix + name + handleNameSuffix) of the chat's participants, most likely
+     *                to be written first
+     * @return A stop sequence for each of the first handles that fit in a request's stop sequences - or, if there are
+     *         none, one for the start of any handle
+     */
+    public static List<String> stopSequences(List<String> handles) {
+        if(handles.isEmpty())
+            return List.of("\n" + handleNamePrefix);
+        return handles.stream().limit(GPTRequest.MAX_STOP_SEQUENCES).map(handle -> "\n" + handle).toList();
+    }
+
+    /**
+     * @param completion A completion generated with stopSequences()
+     * @return The completion up to the first turn the stop sequences didn't end it at (e.g. of a name the model
+     *         invented) - a line starting with a whole handle
+     */
+    public static String trimOtherTurns(String completion) {
+        Matcher turn = OTHER_TURN.matcher(completion);
+        return turn.find() ? completion.substring(0, turn.start()).stripTrailing() : completion;
+    }
+
+    /**
+     * @param settings The guild's settings
+     * @return The most tokens the chat history can have - so the reply's prompt (the history and the chatbot's name)
+     *         and completion cost at most the guild's maxCostPerAPIRequest, and fit in the model's context
+     */
+    private int getHistoryBudget(Settings settings) {
+        return GPTUtil.maxPromptTokens(model, settings.getChatCompletionTokens(), settings.getMaxCostPerAPIRequest())
+                - GPTUtil.countTokens(chatbotDisplayName);
+    }
+
+    /**
+     * Packs the chat history into a token budget: the first message (the chatbot's description and greeting), then the
+     * most recent messages, up to a share of the budget, then the older messages scoring highest (by BM25) against the
+     * messages since the chatbot's last reply - the ones being replied to.
+     * @param budgetTokens The most tokens the history can have - the newest message is included regardless
+     * @param recentShare The fraction (0-1) of the budget the most recent messages can fill
+     * @return The selected messages, in their original order
+     */
+    public synchronized String getRelevantChatHistory(int budgetTokens, double recentShare) {
+        int size = history.size();
+        if(size == 0)
+            return "\n";
+        indexNewMessages();
+
+        boolean[] selected = new boolean[size];
+        selected[0] = true;
+        int used = tokens(0), recentLimit = used + (int) (budgetTokens * recentShare);
+
+        // the most recent messages
+        int firstRecent = size;
+        while(firstRecent > 1) {
+            int cost = tokens(firstRecent - 1);
+            if(firstRecent < size && (used + cost > recentLimit || used + cost > budgetTokens))
+                break;
+            used += cost;
+            selected[--firstRecent] = true;
+        }
+
+        // the older messages most relevant to the ones being replied to
+        StringBuilder query = new StringBuilder();
+        for(int i = size - 1; i > 0; i--) {
+            String message = history.message(i);
+            if(message.startsWith(chatbotDisplayName))
+                break;
+            query.append(message).append('\n');
+        }
+        double[] scores = index.score(query.toString());
+        List<Integer> candidates = IntStream.range(1, firstRecent).filter(i -> scores[i] > 0).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> scores[i]).reversed()).collect(Collectors.toList());
+        for(int candidate : candidates) {
+            int cost = tokens(candidate);
+            if(used + cost <= budgetTokens) {
+                used += cost;
+                selected[candidate] = true;
+            }
+        }
+
+        StringBuilder chatHistory = new StringBuilder();
+        for(int i = 0; i < size; i++)
+            if(selected[i])
+                history.appendFormatted(chatHistory, i).append('\n');
+        return chatHistory.toString();
+    }
+
+    /** @return The tokens the formatted message adds to the chat history (+1 for the \n after it) */
+    private int tokens(int message) {
+        return history.formattedTokens(message) + 1;
+    }
+
+    /** Adds the messages registered since the index was last updated to it */
+    private void indexNewMessages() {
+        for(int i = index.size(); i < history.size(); i++)
+            index.add(history.message(i));
+    }
+
+    /**
+     * (debounce mode) Records a user's message as needing a reply.
+     * @param context The message's request context
+     * @return Whether the caller should schedule a reply - false if a reply is already scheduled or being generated,
+     *         in which case the message will be answered by it, or by the reply queued after it finishes.
+     */
+    public synchronized boolean queueReply(RequestContext context) {
+        if(unansweredMessages++ == 0) {
+            firstUnansweredMessageTime = System.currentTimeMillis();
+            firstUnansweredMessageContext = context;
+        }
+
+        if(replyQueued)
+            return false;
+        replyQueued = true;
+        return true;
+    }
+
+    /**
+     * (debounce mode) Called when a scheduled reply starts generating.
+     * @return The messages the reply will answer - messages received from now on are left for the next reply.
+     */
+    public synchronized UnansweredMessages startReply() {
+        UnansweredMessages answered = new UnansweredMessages(unansweredMessages, firstUnansweredMessageTime,
+                firstUnansweredMessageContext);
+        unansweredMessages = 0;
+        return answered;
+    }
+
+    /**
+     * (debounce mode) Called when a reply has been sent (or failed).
+     * @return Whether messages arrived while the reply was being generated, and so another reply must be scheduled.
+     */
+    public synchronized boolean finishReply() {
+        replyQueued = unansweredMessages > 0;
+        return replyQueued;
+    }
+
+    /**
+     * @param from The index of the first message after the first to include
+     * @return The first formatted message (if any), then every one from the index on - how the history, and the
+     *         messages within the limits, are serialized
+     */
+    private List<String> formattedMessages(int from) {
+        List<String> formatted = new ArrayList<>();
+        if(history.size() > 0)
+            formatted.add(history.formatted(0));
+        for(int i = Math.max(1, from); i < history.size(); i++)
+            formatted.add(history.formatted(i));
+        return formatted;
+    }
+
+    /** @return This thread's state, which can be restored (possibly by another worker) with the DataObject constructor */
+    public synchronized DataObject toData() {
+        return DataObject.empty()
+                .put("type", TYPE)
+                .put("threadID", threadID)
+                .put("model", model)
+                .put("chatbotName", chatbotName)
+                .put("chatbotDescription", chatbotDescription)
+                .put("messages", DataArray.fromCollection(IntStream.range(0, history.size()).mapToObj(history::message).toList()))
+                .put("gptFormattedMsgs", DataArray.fromCollection(formattedMessages(0)))
+                .put("gptFormattedMsgsLimited", DataArray.fromCollection(formattedMessages(firstUntrimmedMessage)))
+                .put("tokensInGPTFormattedMsgsLimited", tokensInGPTFormattedMsgsLimited)
+                .put("hasNotifiedUserOfPromptShortening", hasNotifiedUserOfPromptShortening);
     }
 
 }
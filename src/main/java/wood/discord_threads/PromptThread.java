@@ -2,12 +2,22 @@ package wood.discord_threads;
 
 import lombok.Getter;
 import lombok.Setter;
-import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.jfr.PromptGrowthEvent;
 import wood.util.StringUtil;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
 //TODO make thread data persistent
 public class PromptThread {
 
+    /** The value of the "type" key in the thread's serialized state */
+    public static final String TYPE = "prompt";
+
     @Getter
     private final long threadID;
 
@@ -16,28 +26,255 @@ public class PromptThread {
     private String model;
 
     /** The ever-changing prompt; both the user's input, and GPT-3 completions are appended to this. */
-    @Getter private String prompt;
+    @Getter private volatile String prompt;
+
+    /** The completions the last continuation of the prompt was chosen from - empty once the prompt has changed since */
+    private List<String> choices = List.of();
+
+    /** Which of choices is in the prompt, and the length of the prompt before it */
+    private int choice = 0, choiceOffset = 0;
+
+    /** The IDs of the chain of messages the prompt is rendered across, in order */
+    private final List<Long> messageIDs = new ArrayList<>();
+
+    /** The content of each message in messageIDs, as it was last rendered */
+    private final List<String> renderedChunks = new ArrayList<>();
+
+    /** The message the bot's next choice reaction is on, or 0 if none */
+    @Getter private long choiceReactionMessageID = 0;
+
+    /** Whether a render of the prompt is scheduled or in progress */
+    private boolean renderQueued = false;
+
+    /** Whether the prompt has changed since the last render started */
+    private boolean promptChangedSinceRender = false;
+
+    /** When the last render finished, in epoch milliseconds */
+    private long lastRenderTime = 0;
 
-    /** The Message object of the first message in this thread */
-    @Getter private final Message message;
+    /** Completes once the last queued continuation of the prompt has been appended (or has failed) */
+    private CompletableFuture<Void> lastContinuation = CompletableFuture.completedFuture(null);
 
-    public PromptThread(long threadID, String model, Message message) {
+    /**
+     * @param threadID The ID of the thread
+     * @param model The model to use in the thread
+     * @param prompt The initial prompt - it's rendered into the thread by Prompt
+     */
+    public PromptThread(long threadID, String model, String prompt) {
         this.threadID = threadID;
         this.model = model;
-        this.prompt = message.getContentRaw();
-        this.message = message;
+        this.prompt = prompt;
+    }
+
+    /**
+     * Restores a thread from the state saved by toData()
+     * @param state The thread's serialized state
+     */
+    public PromptThread(DataObject state) {
+        this.threadID = state.getLong("threadID");
+        this.model = state.getString("model");
+        this.prompt = state.getString("prompt");
+        DataArray messageIDs = state.getArray("messageIDs"), renderedChunks = state.getArray("renderedChunks");
+        for(int i = 0; i < messageIDs.length(); i++) {
+            this.messageIDs.add(messageIDs.getLong(i));
+            this.renderedChunks.add(renderedChunks.getString(i));
+        }
+        state.optArray("choices").ifPresent(choices -> {
+            List<String> completions = new ArrayList<>();
+            for(int i = 0; i < choices.length(); i++)
+                completions.add(choices.getString(i));
+            this.choices = List.copyOf(completions);
+            this.choice = state.getInt("choice");
+            this.choiceOffset = state.getInt("choiceOffset");
+        });
+        this.choiceReactionMessageID = state.getLong("choiceReactionMessageID", 0);
     }
 
     /**
      * Concatenates the given text to the prompt. Both the user's input and GPT-3 completions are appended.
      * @param text The text to append to the prompt
      */
-    public void concatenateToPrompt(String text) {
+    public synchronized void concatenateToPrompt(String text) {
+        choices = List.of(); // the last continuation is no longer at the end of the prompt
+        PromptGrowthEvent event = new PromptGrowthEvent();
+        int previousLength = prompt.length();
+
         // if prompt doesn't end with a space or newline, and text starts with an alphabetic character, add a space between them
         if(!StringUtil.endsWith(prompt, "[\\s\\n]") && StringUtil.startsWith(text, "[a-zA-Z]"))
             prompt += " " + text;
         else
             prompt += text;
+
+        if(event.shouldCommit()) {
+            event.threadID = threadID;
+            event.addedCharacters = prompt.length() - previousLength;
+            event.promptCharacters = prompt.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * Concatenates the first of a continuation's completions to the prompt, keeping the rest to swap in with nextChoice()
+     * @param completions The completions the continuation can be chosen from, best first
+     */
+    public synchronized void concatenateChoices(List<String> completions) {
+        int offset = prompt.length();
+        concatenateToPrompt(completions.get(0));
+        choices = List.copyOf(completions);
+        choice = 0;
+        choiceOffset = offset;
+    }
+
+    /**
+     * Replaces the last continuation of the prompt with the next completion it could be chosen from, cycling back to
+     * the first after the last
+     * @return Whether the prompt changed - false if there's no alternative, or the prompt has changed since
+     */
+    public synchronized boolean nextChoice() {
+        if(choices.size() < 2)
+            return false;
+
+        List<String> completions = choices;
+        int next = (choice + 1) % completions.size(), offset = choiceOffset;
+        prompt = prompt.substring(0, offset);
+        concatenateToPrompt(completions.get(next));
+        choices = completions;
+        choice = next;
+        choiceOffset = offset;
+        return true;
+    }
+
+    /**
+     * Runs a continuation of the prompt once the ones queued before it have finished, so each is generated from the
+     * prompt the one before it left - messages sent while a completion is generated wait for it to be appended
+     * @param continuation Appends a message to the prompt and requests its completion - returning a future that
+     *                     completes once the completion has been appended (or has failed)
+     * @return A future that completes once the continuation has finished - it never fails
+     */
+    public synchronized CompletableFuture<Void> queueContinuation(Supplier<CompletableFuture<?>> continuation) {
+        CompletableFuture<Void> next = lastContinuation.thenCompose(v -> continuation.get()).handle((v, e) -> null);
+        lastContinuation = next;
+        return next;
+    }
+
+    /** @return Whether the last continuation of the prompt has alternatives nextChoice() can swap in */
+    public synchronized boolean hasChoices() {
+        return choices.size() > 1;
+    }
+
+    /**
+     * @param messageID The ID of a message in this thread
+     * @return Whether the message is the last of the messages the prompt is rendered across - which the last
+     *         continuation ends in, so its alternatives are offered on it
+     */
+    public synchronized boolean isLastPromptMessage(long messageID) {
+        return !messageIDs.isEmpty() && messageIDs.get(messageIDs.size() - 1) == messageID;
+    }
+
+    /**
+     * Records which message the bot's next choice reaction is on
+     * @param messageID The message, or 0 if the reaction has been removed
+     */
+    public synchronized void setChoiceReactionMessageID(long messageID) {
+        choiceReactionMessageID = messageID;
+    }
+
+    /**
+     * @param messageID The ID of a message in this thread
+     * @return Whether the message is one of the messages the prompt is rendered across
+     */
+    public synchronized boolean isPromptMessage(long messageID) {
+        return messageIDs.contains(messageID);
+    }
+
+    /**
+     * Records that the prompt has changed, and needs to be rendered.
+     * @param minRenderIntervalMillis The minimum time between the end of one render and the start of the next
+     * @return The delay (ms) after which the caller should render the prompt, or -1 if a render is already
+     *         queued - in which case the change will be included in it, or in the render queued after it finishes.
+     */
+    public synchronized long queueRender(long minRenderIntervalMillis) {
+        promptChangedSinceRender = true;
+        if(renderQueued)
+            return -1;
+
+        renderQueued = true;
+        return Math.max(0, lastRenderTime + minRenderIntervalMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * Called when a queued render starts.
+     * @return The prompt to render
+     */
+    public synchronized String startRender() {
+        promptChangedSinceRender = false;
+        return prompt;
+    }
+
+    /**
+     * Called when a render has finished (or failed).
+     * @return Whether the prompt changed during the render, and so another render must be queued.
+     */
+    public synchronized boolean finishRender() {
+        lastRenderTime = System.currentTimeMillis();
+        renderQueued = promptChangedSinceRender;
+        return renderQueued;
+    }
+
+    /** @return The content of each message the prompt is rendered across, as it was last rendered. */
+    public synchronized List<String> getRenderedChunks() {
+        return List.copyOf(renderedChunks);
+    }
+
+    /**
+     * @param index The index of a message in the chain the prompt is rendered across
+     * @return The ID of the message
+     */
+    public synchronized long getMessageID(int index) {
+        return messageIDs.get(index);
+    }
+
+    /**
+     * Records the content of a message in the chain the prompt is rendered across.
+     * @param index The index of the message - if it's the size of the chain, the message is added to the end
+     * @param messageID The ID of the message
+     * @param chunk The content the message was rendered with
+     */
+    public synchronized void setRenderedChunk(int index, long messageID, String chunk) {
+        if(index == messageIDs.size()) {
+            messageIDs.add(messageID);
+            renderedChunks.add(chunk);
+        }
+        else {
+            messageIDs.set(index, messageID);
+            renderedChunks.set(index, chunk);
+        }
+    }
+
+    /**
+     * Removes messages from the end of the chain the prompt is rendered across, e.g. once the prompt has shrunk.
+     * @param size The number of messages to keep
+     */
+    public synchronized void truncateRenderedChunks(int size) {
+        while(messageIDs.size() > size) {
+            messageIDs.remove(messageIDs.size() - 1);
+            renderedChunks.remove(renderedChunks.size() - 1);
+        }
+    }
+
+    /** @return This thread's state, which can be restored (possibly by another worker) with the DataObject constructor */
+    public synchronized DataObject toData() {
+        return DataObject.empty()
+                .put("type", TYPE)
+                .put("threadID", threadID)
+                .put("model", model)
+                .put("prompt", prompt)
+                .put("messageIDs", DataArray.fromCollection(messageIDs))
+                .put("renderedChunks", DataArray.fromCollection(renderedChunks))
+                .put("choices", DataArray.fromCollection(choices))
+                .put("choice", choice)
+                .put("choiceOffset", choiceOffset)
+                .put("choiceReactionMessageID", choiceReactionMessageID);
     }
 
 }
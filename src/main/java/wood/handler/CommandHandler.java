@@ -5,59 +5,120 @@ import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.events.interaction.command.SlashCommandInteractionEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import net.dv8tion.jda.api.interactions.commands.Command;
+import net.dv8tion.jda.api.interactions.commands.build.CommandData;
 import wood.Main;
+import wood.cluster.Cluster;
 import wood.commands.Chat;
 import wood.commands.Commands;
+import wood.commands.Dump;
 import wood.commands.Model;
 import wood.commands.Prompt;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class CommandHandler extends ListenerAdapter {
 
-    public static final String MODEL_CMD = "model", PROMPT_CMD = "prompt", CHAT_CMD = "chat";
+    public static final String MODEL_CMD = "model", PROMPT_CMD = "prompt", CHAT_CMD = "chat", DUMP_CMD = "dump";
+
+    /** Where the hash of the last command definitions registered with Discord is stored */
+    public static final String COMMANDS_HASH_FILE = "commands_hash.txt";
 
     public static final Map<String, Commands> commandMap = new HashMap<>() {{
             put(MODEL_CMD, new Model());
             put(PROMPT_CMD, new Prompt());
             put(CHAT_CMD, new Chat());
+            put(DUMP_CMD, new Dump());
         }};
 
     @Override
     public void onSlashCommandInteraction(SlashCommandInteractionEvent event) {
-        new Thread(() ->
-                commandMap.get(event.getName())
-                        .runCommand(event.getUser().getIdLong(), event)
-        ).start();
+        // in clustered mode, only the worker owning the channel replies to the command
+        if(!Cluster.owns(event.getChannel().getIdLong())) return;
+
+        // the commands only queue their Discord requests, so they run on the event thread like the other handlers
+        commandMap.get(event.getName()).runCommand(event.getUser().getIdLong(), event);
     }
 
     /**
-     * Checks which commands are registered on the Discord server,
-     * registering any new ones, and unregistering any old ones.
+     * Registers every command in commandMap with Discord in a single bulk update, replacing (and so unregistering)
+     * any old ones. The update is skipped when the hash of the command definitions matches the hash stored
+     * in COMMANDS_HASH_FILE by the last successful update.
      */
     public static void checkAndSetSlashCommands() {
         JDA jda = Main.jda;
-        List<Command> detectedCommands = jda.retrieveCommands().complete();
-        List<String> detectedCommandNames = detectedCommands.stream()
-                .map(cmd -> cmd.getName())
+        List<CommandData> commandData = commandMap.values().stream()
+                .map(Commands::getCommandData)
+                .sorted(Comparator.comparing(CommandData::getName))
                 .collect(Collectors.toList());
 
-        // Add commands that are not in detectedCommands
-        commandMap.keySet().stream()
-                .filter(cmdName -> !detectedCommandNames.contains(cmdName))
-                .forEach(cmdName -> {
-                    commandMap.get(cmdName).addCommand(jda);
-                    log.info("Added new slash command: " + cmdName);
-                });
-
-        // Remove commands that are no longer in commandMap
-        detectedCommands.stream()
-                .filter(cmd -> !commandMap.containsKey(cmd.getName()))
-                .forEach(cmd -> {
-                    jda.deleteCommandById(cmd.getId()).complete();
-                    log.info("Removed slash command: " + cmd.getName());
-                });
+        String hash = hashCommands(jda.getSelfUser().getApplicationId(), commandData);
+        if(readCommandsHashFile().filter(hash::equals).isPresent()) {
+            log.info("Slash commands are unchanged - skipping registration");
+            return;
+        }
+
+        jda.updateCommands().addCommands(commandData).queue(commands -> {
+            writeCommandsHashFile(hash);
+            log.info("Registered slash commands: " + commands.stream().map(Command::getName).collect(Collectors.toList()));
+        }, e -> log.error("Error registering slash commands", e));
+    }
+
+    /**
+     * @param applicationID The bot's application ID - commands are registered per application, so a different bot
+     *                      token must never match the hash of another bot's commands
+     * @param commandData The command definitions, in a stable order
+     * @return A SHA-256 hash (hex) of the command definitions
+     */
+    private static String hashCommands(String applicationID, List<CommandData> commandData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(applicationID.getBytes(StandardCharsets.UTF_8));
+            commandData.forEach(data -> digest.update(data.toData().toJson()));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // every Java platform is required to support SHA-256
+        }
+    }
+
+    /**
+     * @return Optional.empty() if COMMANDS_HASH_FILE doesn't exist (or is empty),
+     *      otherwise it'll return COMMANDS_HASH_FILE's contents
+     */
+    private static Optional<String> readCommandsHashFile() {
+        File hashFile = new File(COMMANDS_HASH_FILE);
+
+        if(hashFile.exists()) {
+            try {
+                List<String> lines = Files.readAllLines(hashFile.toPath());
+                if(lines.size() > 0)
+                    return Optional.of(lines.get(0).trim());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return Optional.empty();
+    }
+
+    /**
+     * Overwrite COMMANDS_HASH_FILE if it exists, or create it if it doesn't
+     * @param hash The hash of the registered command definitions
+     */
+    private static void writeCommandsHashFile(String hash) {
+        try(PrintWriter pw = new PrintWriter(COMMANDS_HASH_FILE)) {
+            pw.print(hash);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+package wood.handler;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the snowflake IDs of the messages and interactions handled recently, so an event delivered twice (e.g.
+ * replayed when the gateway session resumes, or received by two listeners) is only handled once - a duplicate would
+ * pay for a second completion, and send a second reply.  IDs are kept in buckets by the time in the snowflake (not the
+ * time it arrived), so both deliveries of an event always land in the same bucket.  Only the last BUCKETS buckets are
+ * kept - each is cleared when it's reused for a newer minute - and each holds at most MAX_BUCKET_SIZE IDs, so memory
+ * is bounded however busy the bot is.  Events whose bucket has gone (or is full) are let through - the guard fails
+ * open, so the number let through unguarded (logged periodically, with the duplicates suppressed) is the sign that it
+ * has stopped working.
+ */
+@Slf4j
+public class DuplicateEventGuard {
+
+    /** How long (ms) each bucket covers, and how many are kept - so duplicates are caught for 15-16 minutes */
+    private static final long BUCKET_MILLIS = 60_000;
+    private static final int BUCKETS = 16;
+
+    /** The initial size of each bucket's table, and the most IDs a bucket holds (its table is twice that) */
+    private static final int INITIAL_BUCKET_SIZE = 256, MAX_BUCKET_SIZE = 1 << 15;
+
+    private static final long EMPTY = 0;
+
+    /** How often the counters are logged (if any changed) */
+    private static final long STATS_LOG_INTERVAL_MINUTES = 5;
+
+    /** Which minute (since Discord's epoch, as are the milliseconds in a snowflake's top 42 bits) each bucket
+     *  currently holds, or -1 if none */
+    private static final long[] bucketMinutes = new long[BUCKETS];
+
+    /** Each bucket's open-addressed table of IDs, and how many it holds */
+    private static final long[][] tables = new long[BUCKETS][];
+    private static final int[] sizes = new int[BUCKETS];
+
+    private static final AtomicLong suppressedMessages = new AtomicLong(), suppressedInteractions = new AtomicLong(),
+            unguarded = new AtomicLong();
+
+    /** The unguarded and suppressed (messages and interactions) counts when they were last logged - only used by the
+     *  stats thread */
+    private static long loggedUnguarded = 0, loggedSuppressed = 0;
+
+    static {
+        Arrays.fill(bucketMinutes, -1);
+
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "duplicate-event-stats");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(DuplicateEventGuard::logStats, STATS_LOG_INTERVAL_MINUTES, STATS_LOG_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param messageID The ID of a received message
+     * @return Whether the message is being handled for the first time - false if it's a duplicate, which is counted
+     */
+    public static boolean firstMessage(long messageID) {
+        if(firstSeen(messageID))
+            return true;
+        suppressedMessages.incrementAndGet();
+        log.info("Suppressed duplicate delivery of message " + messageID);
+        return false;
+    }
+
+    /**
+     * @param interactionID The ID of a received interaction (e.g. a modal submission)
+     * @return Whether the interaction is being handled for the first time - false if it's a duplicate, which is counted
+     */
+    public static boolean firstInteraction(long interactionID) {
+        if(firstSeen(interactionID))
+            return true;
+        suppressedInteractions.incrementAndGet();
+        log.info("Suppressed duplicate delivery of interaction " + interactionID);
+        return false;
+    }
+
+    /** @return The number of duplicate message deliveries suppressed */
+    public static long getSuppressedMessages() {
+        return suppressedMessages.get();
+    }
+
+    /** @return The number of duplicate interaction deliveries suppressed */
+    public static long getSuppressedInteractions() {
+        return suppressedInteractions.get();
+    }
+
+    /** @return The number of events let through without being remembered - their bucket had gone, or was full */
+    public static long getUnguarded() {
+        return unguarded.get();
+    }
+
+    /** Logs the counters if any changed since they were last logged - as a warning if events were let through unguarded */
+    private static void logStats() {
+        long suppressed = getSuppressedMessages() + getSuppressedInteractions(), unguardedNow = getUnguarded();
+        if(suppressed == loggedSuppressed && unguardedNow == loggedUnguarded)
+            return;
+
+        String stats = String.format("Duplicate events: %d messages and %d interactions suppressed, %d events let through "
+                        + "unguarded (%d in the last %d minutes)", getSuppressedMessages(), getSuppressedInteractions(),
+                unguardedNow, unguardedNow - loggedUnguarded, STATS_LOG_INTERVAL_MINUTES);
+        if(unguardedNow > loggedUnguarded)
+            log.warn(stats + " - their buckets had gone, or were full, so duplicates of them wouldn't be caught");
+        else
+            log.info(stats);
+        loggedSuppressed = suppressed;
+        loggedUnguarded = unguardedNow;
+    }
+
+    /**
+     * Records the ID as seen
+     * @param snowflake A snowflake ID
+     * @return Whether it hadn't been seen before (or can't be remembered)
+     */
+    private static synchronized boolean firstSeen(long snowflake) {
+        long minute = (snowflake >>> 22) / BUCKET_MILLIS;
+        int bucket = (int) (minute % BUCKETS);
+        if(bucketMinutes[bucket] < minute) { // the bucket held an older minute (or none) - reuse it
+            bucketMinutes[bucket] = minute;
+            tables[bucket] = new long[INITIAL_BUCKET_SIZE * 2];
+            sizes[bucket] = 0;
+        }
+        else if(bucketMinutes[bucket] > minute) { // older than every bucket kept
+            unguarded.incrementAndGet();
+            return true;
+        }
+
+        long[] table = tables[bucket];
+        int mask = table.length - 1;
+        for(int slot = (int) mix(snowflake) & mask; table[slot] != EMPTY; slot = (slot + 1) & mask)
+            if(table[slot] == snowflake)
+                return false;
+
+        if(sizes[bucket] == MAX_BUCKET_SIZE) {
+            unguarded.incrementAndGet();
+            return true;
+        }
+        if(++sizes[bucket] > table.length / 2)
+            table = tables[bucket] = grow(table);
+        insert(table, snowflake);
+        return true;
+    }
+
+    /** @return A table twice the size, with the same IDs */
+    private static long[] grow(long[] table) {
+        long[] grown = new long[table.length * 2];
+        for(long id : table)
+            if(id != EMPTY)
+                insert(grown, id);
+        return grown;
+    }
+
+    private static void insert(long[] table, long snowflake) {
+        int mask = table.length - 1, slot = (int) mix(snowflake) & mask;
+        while(table[slot] != EMPTY)
+            slot = (slot + 1) & mask;
+        table[slot] = snowflake;
+    }
+
+    /** Spreads the bits of a snowflake, whose low bits (worker, process, and increment) are poorly distributed */
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+
+}
@@ -1,11 +1,15 @@
 package wood.handler;
 
-import net.dv8tion.jda.api.entities.emoji.Emoji;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import wood.cluster.Cluster;
 import wood.commands.Chat;
 import wood.commands.Prompt;
-import wood.util.DiscordUtil;
+import wood.jfr.HandlerDispatchEvent;
+import wood.replay.Recording;
+import wood.replay.TrafficRecorder;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
 
 
 public class MessageHandler extends ListenerAdapter {
@@ -21,26 +25,56 @@ public class MessageHandler extends ListenerAdapter {
 
     @Override
     public void onMessageReceived(MessageReceivedEvent event) {
-        if(event.getAuthor().isBot()) {
-            boolean isInPromptThread = event.getChannelType().isThread() &&
-                    Prompt.isPromptThread(event.getThreadChannel().getIdLong());
-            boolean isEphemeral = event.getMessage().isEphemeral();
-
-            // if the bot that sent a message is in a /prompt thread, and it both isn't the first message and isn't ephemeral,
-            // add emoji reaction allowing user to delete it (ReactionHandler).
-            if(isInPromptThread && !isEphemeral && !DiscordUtil.isFirstMessageInThread(event, event.getMessage())) {
-                event.getMessage().addReaction(Emoji.fromUnicode(ReactionHandler.trashEmoji)).queue();
-            }
-            return;
-        }
+        if(event.getAuthor().isBot()) return;
+
+        // in clustered mode, each thread is handled only by the worker that owns it
+        if(!Cluster.owns(event.getChannel().getIdLong())) return;
+
+        // a message delivered twice (e.g. replayed on resume) would otherwise be paid for, and replied to, twice
+        if(!DuplicateEventGuard.firstMessage(event.getMessageIdLong())) return;
+
+        if(TrafficRecorder.isRecording())
+            TrafficRecorder.recordEvent(Recording.Kind.MESSAGE, event.isFromGuild() ? event.getGuild().getIdLong() : 0,
+                    event.getChannel().getIdLong(), event.getAuthor().getIdLong(), event.getMessage().getContentRaw().length());
+
+        handle(event, true);
+    }
+
+    /**
+     * Handles the message in the /prompt or /chat thread it was sent in, if any
+     * @param event The message's event
+     * @param rehydrate Whether a thread owned by the bot that isn't known as either should be rebuilt from its
+     *                  history (e.g. after a restart), then the message handled - false once it has been
+     */
+    private void handle(MessageReceivedEvent event, boolean rehydrate) {
+        HandlerDispatchEvent dispatch = new HandlerDispatchEvent();
+        dispatch.begin();
+        dispatch.dispatchedTo = "none";
 
         // If a user sends a message in a /prompt thread, handle it in the Prompt class
         // else if sent inside a /chat thread, handle it in the Chat class.
-        if(event.getChannelType().isThread() && Prompt.isPromptThread(event.getThreadChannel().getIdLong())) {
-            promptCmd.registerMessage(event.getThreadChannel().getIdLong(), event.getMessage().getContentDisplay(), event);
-        }
-        else if(event.getChannelType().isThread() && Chat.isChatThread(event.getThreadChannel().getIdLong())) {
-            chatCmd.registerMessage(event.getThreadChannel().getIdLong(), event.getMessage().getContentDisplay(), event);
+        try {
+            if(event.getChannelType().isThread() && Prompt.isPromptThread(event.getThreadChannel().getIdLong())) {
+                dispatch.dispatchedTo = "prompt";
+                promptCmd.registerMessage(event.getThreadChannel().getIdLong(), event.getMessage().getContentDisplay(), event);
+            }
+            else if(event.getChannelType().isThread() && Chat.isChatThread(event.getThreadChannel().getIdLong())) {
+                dispatch.dispatchedTo = "chat";
+                chatCmd.registerMessage(event.getThreadChannel().getIdLong(), event.getMessage().getContentDisplay(), event);
+            }
+            else if(rehydrate && event.getChannelType().isThread() && ThreadRehydrator.canRehydrate(event.getThreadChannel())) {
+                dispatch.dispatchedTo = "rehydrate";
+                Span trace = Tracer.current();
+                ThreadRehydrator.rehydrate(event.getThreadChannel(), event.getMessageIdLong(), () -> {
+                    try(Tracer.Scope scope = Tracer.activate(trace)) {
+                        handle(event, false);
+                    }
+                });
+            }
+        } finally {
+            dispatch.handler = "MessageHandler";
+            dispatch.channelID = event.getChannel().getIdLong();
+            dispatch.commit();
         }
     }
 
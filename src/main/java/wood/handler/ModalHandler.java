@@ -3,8 +3,12 @@ package wood.handler;
 import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.events.interaction.ModalInteractionEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import wood.cluster.Cluster;
 import wood.commands.Chat;
 import wood.commands.Prompt;
+import wood.jfr.HandlerDispatchEvent;
+import wood.replay.Recording;
+import wood.replay.TrafficRecorder;
 
 @Slf4j
 public class ModalHandler extends ListenerAdapter {
@@ -19,14 +23,34 @@ public class ModalHandler extends ListenerAdapter {
 
     @Override
     public void onModalInteraction(ModalInteractionEvent event) {
-        if(event.getModalId().equals(Prompt.MODAL_ID)) {
-            promptCmd.readModal(event);
-        }
-        else if(event.getModalId().equals(Chat.MODAL_ID)) {
-            chatCmd.readModal(event);
-        }
-        else {
-            log.error("Unknown modal ID: " + event.getModalId());
+        // in clustered mode, the worker owning the channel creates the thread - which may then be owned by another worker
+        if(!Cluster.owns(event.getChannel().getIdLong())) return;
+
+        // a submission delivered twice would otherwise create two threads, each with a paid completion
+        if(!DuplicateEventGuard.firstInteraction(event.getInteraction().getIdLong())) return;
+
+        if(TrafficRecorder.isRecording())
+            TrafficRecorder.recordEvent(Recording.Kind.MODAL, event.getGuild() == null ? 0 : event.getGuild().getIdLong(),
+                    event.getChannel().getIdLong(), event.getUser().getIdLong(),
+                    event.getValues().stream().mapToInt(value -> value.getAsString().length()).sum());
+
+        HandlerDispatchEvent dispatch = new HandlerDispatchEvent();
+        dispatch.begin();
+        try {
+            if(event.getModalId().equals(Prompt.MODAL_ID)) {
+                promptCmd.readModal(event);
+            }
+            else if(event.getModalId().equals(Chat.MODAL_ID)) {
+                chatCmd.readModal(event);
+            }
+            else {
+                log.error("Unknown modal ID: " + event.getModalId());
+            }
+        } finally {
+            dispatch.handler = "ModalHandler";
+            dispatch.channelID = event.getChannel().getIdLong();
+            dispatch.dispatchedTo = event.getModalId();
+            dispatch.commit();
         }
     }
 
@@ -0,0 +1,106 @@
+package wood.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.hooks.InterfacedEventManager;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dispatches events to the handlers, and reports any handler that blocks the event thread - e.g. with a
+ * RestAction.complete(), which parks it for a Discord round trip while every event queued behind it waits.  A thread
+ * that has been handling one event for over STALL_THRESHOLD_MS is logged with its stack trace, so the blocking call
+ * can be found.  Each event starts a (sampled) trace, which is the current span while it's handled.  Also logs event
+ * throughput, the number of stalled events, and the live thread count.
+ */
+@Slf4j
+public class NonBlockingEventManager extends InterfacedEventManager {
+
+    /** How often event throughput is logged */
+    private static final long THROUGHPUT_LOG_INTERVAL_MINUTES = 5;
+
+    /** How long handling one event can take before the thread handling it is reported as blocked */
+    private static final long STALL_THRESHOLD_MS = 500;
+
+    /** How often the threads handling events are checked for stalls */
+    private static final long STALL_CHECK_INTERVAL_MS = 250;
+
+    private final LongAdder events = new LongAdder(), stalls = new LongAdder();
+
+    /** The event each thread is handling */
+    private final Map<Thread, Handling> handling = new ConcurrentHashMap<>();
+
+    public NonBlockingEventManager() {
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "event-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        monitor.scheduleAtFixedRate(this::logThroughput, THROUGHPUT_LOG_INTERVAL_MINUTES, THROUGHPUT_LOG_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+        monitor.scheduleAtFixedRate(this::checkStalls, STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void handle(GenericEvent event) {
+        events.increment();
+        Thread thread = Thread.currentThread();
+        Handling current = new Handling(event.getClass().getSimpleName(), System.currentTimeMillis());
+        handling.put(thread, current);
+        Span trace = Tracer.startTrace("discord." + current.eventName);
+        try(Tracer.Scope scope = Tracer.activate(trace)) {
+            super.handle(event);
+        } finally {
+            trace.end();
+            handling.remove(thread);
+            if(current.stalled)
+                log.warn(current.eventName + " was handled in " + (System.currentTimeMillis() - current.startTime) + " ms");
+        }
+    }
+
+    /** Logs each thread that has been handling the same event for over STALL_THRESHOLD_MS - once per event */
+    private void checkStalls() {
+        long now = System.currentTimeMillis();
+        handling.forEach((thread, current) -> {
+            if(current.stalled || now - current.startTime < STALL_THRESHOLD_MS)
+                return;
+
+            current.stalled = true;
+            stalls.increment();
+            StringBuilder stack = new StringBuilder();
+            for(StackTraceElement element : thread.getStackTrace())
+                stack.append("\n\tat ").append(element);
+            log.warn("Thread " + thread.getName() + " has been handling " + current.eventName + " for "
+                    + (now - current.startTime) + " ms - a handler is blocking it:" + stack);
+        });
+    }
+
+    private void logThroughput() {
+        double perSecond = events.sumThenReset() / (THROUGHPUT_LOG_INTERVAL_MINUTES * 60.0);
+        log.info(String.format("Events: %.2f/s over the last %d minutes, %d stalled, %d live threads",
+                perSecond, THROUGHPUT_LOG_INTERVAL_MINUTES, stalls.sumThenReset(), Thread.activeCount()));
+    }
+
+    /** An event being handled */
+    private static class Handling {
+        private final String eventName;
+        private final long startTime;
+
+        /** Whether the event has been reported as stalled */
+        private volatile boolean stalled;
+
+        private Handling(String eventName, long startTime) {
+            this.eventName = eventName;
+            this.startTime = startTime;
+        }
+    }
+
+}
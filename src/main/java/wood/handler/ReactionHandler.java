@@ -1,28 +1,63 @@
 package wood.handler;
 
-import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.message.react.MessageReactionAddEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import wood.Settings;
+import wood.cluster.Cluster;
 import wood.commands.Prompt;
-import wood.util.DiscordUtil;
+import wood.jfr.HandlerDispatchEvent;
+import wood.replay.Recording;
+import wood.replay.TrafficRecorder;
 
 public class ReactionHandler extends ListenerAdapter {
 
     public static final String trashEmoji = "\uD83D\uDDD1";
 
+    /** Swaps the last completion of a /prompt thread for the next one it was chosen from (Settings.promptChoices) */
+    public static final String nextChoiceEmoji = "\uD83D\uDD04";
+
     @Override
     public void onMessageReactionAdd(MessageReactionAddEvent event) {
-        if(event.getUser().isBot()) return;
+        // without the member cache (the lean profile) the user isn't sent with the event - then only ignore this bot
+        User user = event.getUser();
+        boolean isBot = user != null ? user.isBot() : event.getUserIdLong() == event.getJDA().getSelfUser().getIdLong();
+        if(isBot || !Cluster.owns(event.getChannel().getIdLong())) return;
+
+        if(TrafficRecorder.isRecording())
+            TrafficRecorder.recordEvent(Recording.Kind.REACTION, event.isFromGuild() ? event.getGuild().getIdLong() : 0,
+                    event.getChannel().getIdLong(), event.getUserIdLong(), 0);
+
+        HandlerDispatchEvent dispatch = new HandlerDispatchEvent();
+        dispatch.begin();
+        dispatch.dispatchedTo = "none";
 
-        boolean isTrashEmoji = event.getReaction().getEmoji().getAsReactionCode().equals(trashEmoji);
+        String emoji = event.getReaction().getEmoji().getAsReactionCode();
+        boolean isTrashEmoji = emoji.equals(trashEmoji);
         boolean isInPromptThread = event.getChannelType().isThread() &&
                 Prompt.isPromptThread(event.getThreadChannel().getIdLong());
 
-        Message msgReactedTo = event.getChannel().retrieveMessageById(event.getMessageId()).complete();
-
-        // If the reaction is inside a /prompt thread, is trash emoji, and isn't the first message in the thread, delete the message.
-        if (isInPromptThread && isTrashEmoji && !DiscordUtil.isFirstMessageInThread(event, msgReactedTo)) {
-            event.getChannel().retrieveMessageById(event.getMessageId()).complete().delete().queue();
+        // If the reaction is inside a /prompt thread, is trash emoji, and isn't on the prompt itself, delete the message.
+        if (isInPromptThread && isTrashEmoji && !Prompt.isPromptMessage(event.getChannel().getIdLong(), event.getMessageIdLong())) {
+            dispatch.dispatchedTo = "delete";
+            event.getChannel().deleteMessageById(event.getMessageId()).queue();
+        }
+        // If the reaction is inside a /prompt thread, and is the next choice emoji, swap in the next completion
+        else if(isInPromptThread && emoji.equals(nextChoiceEmoji)) {
+            if(Prompt.nextChoice(event.getChannel().getIdLong(), event.getMessageIdLong(), event.getChannel(),
+                    Settings.get(event.getGuild()))) {
+                dispatch.dispatchedTo = "nextChoice";
+                // remove the user's reaction, so it can be added again for the choice after - without the member
+                // cache, the user is fetched by their ID to remove it
+                if(user != null)
+                    event.getReaction().removeReaction(user).queue();
+                else
+                    event.retrieveUser().flatMap(reactor -> event.getReaction().removeReaction(reactor)).queue();
+            }
         }
+
+        dispatch.handler = "ReactionHandler";
+        dispatch.channelID = event.getChannel().getIdLong();
+        dispatch.commit();
     }
 }
@@ -0,0 +1,219 @@
+package wood.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageHistory;
+import net.dv8tion.jda.api.entities.ThreadChannel;
+import net.dv8tion.jda.api.requests.RestAction;
+import wood.commands.Chat;
+import wood.commands.Prompt;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rebuilds the /prompt and /chat threads this worker doesn't know - e.g. every thread, after a restart - from their
+ * messages in Discord, the first time a message is sent in one.  The thread's history (from its first message, which
+ * decides its type) is read in up to MAX_SEGMENTS_PER_THREAD time ranges at once, each paged through with
+ * MessageHistory, then handed to Chat.rehydrate() and Prompt.rehydrate().  Messages sent while a thread is rebuilt
+ * wait for it, and are then handled in order.  However many threads are rebuilt at once (e.g. just after a restart),
+ * at most MAX_CONCURRENT_FETCHES pages are fetched at a time, so the rebuilds can't exhaust Discord's rate limits.
+ */
+@Slf4j
+public class ThreadRehydrator {
+
+    /** The most messages Discord returns in a page of history */
+    private static final int PAGE_SIZE = 100;
+
+    /** The most time ranges of one thread's history fetched at once */
+    private static final int MAX_SEGMENTS_PER_THREAD = 4;
+
+    /** The most pages of history fetched at once, across all threads - others wait for one to finish */
+    private static final int MAX_CONCURRENT_FETCHES = 4;
+
+    /** The most threads remembered as not rebuildable - the set is cleared when it grows past this */
+    private static final int MAX_UNRECOGNIZED_THREADS = 10_000;
+
+    /** The threads being rebuilt, each with the work waiting for it - in the order it arrived */
+    private static final Map<Long, List<Runnable>> rehydrating = new HashMap<>();
+
+    /** The threads whose history showed they aren't /prompt or /chat threads, so aren't fetched again */
+    private static final Set<Long> unrecognized = ConcurrentHashMap.newKeySet();
+
+    private static int fetchesInFlight = 0;
+    private static final Queue<Runnable> waitingFetches = new ArrayDeque<>();
+
+    /**
+     * @param threadChannel A thread that isn't a known /prompt or /chat thread
+     * @return Whether it might be one - it's owned by the bot, and isn't known not to be
+     */
+    public static boolean canRehydrate(ThreadChannel threadChannel) {
+        return threadChannel.isOwner() && !unrecognized.contains(threadChannel.getIdLong());
+    }
+
+    /**
+     * Rebuilds the thread from its history (unless it's already being rebuilt), then runs the work waiting for it
+     * @param threadChannel A thread for which canRehydrate() is true
+     * @param beforeMessageID The ID of the message that needs the thread - only the history before it is rebuilt,
+     *                        since it'll be handled by then
+     * @param then What to run once the thread has been rebuilt (or failed to be) - e.g. handling the message
+     */
+    public static void rehydrate(ThreadChannel threadChannel, long beforeMessageID, Runnable then) {
+        long threadID = threadChannel.getIdLong();
+        synchronized(rehydrating) {
+            List<Runnable> waiting = rehydrating.get(threadID);
+            if(waiting != null) {
+                waiting.add(then);
+                return;
+            }
+            rehydrating.put(threadID, new ArrayList<>(List.of(then)));
+        }
+
+        Span span = Tracer.current().child("rehydrate_thread");
+        long start = System.currentTimeMillis();
+        fetchHistory(threadChannel, beforeMessageID, span).whenComplete((history, e) -> {
+            try {
+                if(e != null) {
+                    span.end(e);
+                    log.error("Error reading the history of thread " + threadID + " to rebuild it", e);
+                }
+                else
+                    rebuild(threadChannel, history, span, start);
+            } finally {
+                // the waiting work runs even if the thread couldn't be rebuilt, and later messages can try again
+                List<Runnable> waiting;
+                synchronized(rehydrating) {
+                    waiting = rehydrating.remove(threadID);
+                }
+                for(Runnable work : waiting) {
+                    try {
+                        work.run();
+                    } catch(RuntimeException workException) {
+                        log.error("Error handling a message that waited for thread " + threadID + " to be rebuilt",
+                                workException);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Rebuilds the thread from its history, as a /chat or /prompt thread - or remembers it's neither */
+    private static void rebuild(ThreadChannel threadChannel, List<Message> history, Span span, long start) {
+        long threadID = threadChannel.getIdLong();
+        boolean rebuilt;
+        try {
+            rebuilt = Chat.rehydrate(threadChannel, history) || Prompt.rehydrate(threadChannel, history);
+        } catch(RuntimeException e) {
+            span.end(e);
+            log.error("Error rebuilding thread " + threadID + " from " + history.size() + " messages", e);
+            return;
+        }
+
+        span.setAttribute("messages", history.size()).end();
+        if(rebuilt)
+            log.info("Rebuilt thread " + threadID + " from " + history.size() + " messages in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        else {
+            if(unrecognized.size() >= MAX_UNRECOGNIZED_THREADS)
+                unrecognized.clear();
+            unrecognized.add(threadID);
+        }
+    }
+
+    /**
+     * @return A future of the thread's messages before the message, oldest first - its history is split into time
+     *         ranges (by the time in the messages' snowflakes) which are read in parallel
+     */
+    private static CompletableFuture<List<Message>> fetchHistory(ThreadChannel threadChannel, long beforeMessageID, Span span) {
+        // the thread's messages are all after its own ID (Discord's count of them is approximate)
+        long first = threadChannel.getIdLong();
+        int segments = Math.max(1, Math.min(MAX_SEGMENTS_PER_THREAD,
+                (threadChannel.getMessageCount() + PAGE_SIZE - 1) / PAGE_SIZE));
+        long firstMillis = first >>> 22, rangeMillis = Math.max(0, (beforeMessageID >>> 22) - firstMillis);
+
+        List<CompletableFuture<List<Message>>> parts = new ArrayList<>();
+        for(int i = 0; i < segments; i++) {
+            long after = i == 0 ? first : (firstMillis + rangeMillis * i / segments) << 22;
+            long before = i == segments - 1 ? beforeMessageID : (firstMillis + rangeMillis * (i + 1) / segments) << 22;
+            parts.add(fetchSegment(threadChannel, after, before, new ArrayList<>(), span));
+        }
+
+        return CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).thenApply(v -> {
+            List<Message> history = new ArrayList<>();
+            parts.forEach(part -> history.addAll(part.join()));
+            history.sort(Comparator.comparingLong(Message::getIdLong));
+            return history;
+        });
+    }
+
+    /**
+     * Pages through the thread's messages after one ID, and before another
+     * @param messages The messages read so far, which the page's are added to
+     * @return A future of the messages
+     */
+    private static CompletableFuture<List<Message>> fetchSegment(ThreadChannel threadChannel, long after, long before,
+                                                                 List<Message> messages, Span span) {
+        return fetch(MessageHistory.getHistoryAfter(threadChannel, Long.toUnsignedString(after)).limit(PAGE_SIZE), span)
+                .thenCompose(history -> {
+                    List<Message> page = history.getRetrievedHistory();
+                    long newest = after;
+                    for(Message message : page) {
+                        if(message.getIdLong() < before)
+                            messages.add(message);
+                        newest = Math.max(newest, message.getIdLong());
+                    }
+                    if(page.size() < PAGE_SIZE || newest >= before)
+                        return CompletableFuture.completedFuture(messages);
+                    return fetchSegment(threadChannel, newest, before, messages, span);
+                });
+    }
+
+    /**
+     * Submits the request once fewer than MAX_CONCURRENT_FETCHES are in flight
+     * @return A future of the request's result
+     */
+    private static <T> CompletableFuture<T> fetch(RestAction<T> action, Span span) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Runnable submit = () -> Tracer.submit(action, span, "discord.message_history").whenComplete((value, e) -> {
+            finishFetch();
+            if(e != null)
+                result.completeExceptionally(e);
+            else
+                result.complete(value);
+        });
+
+        synchronized(waitingFetches) {
+            if(fetchesInFlight == MAX_CONCURRENT_FETCHES) {
+                waitingFetches.add(submit);
+                return result;
+            }
+            fetchesInFlight++;
+        }
+        submit.run();
+        return result;
+    }
+
+    /** Frees a fetch's place for the next waiting fetch */
+    private static void finishFetch() {
+        Runnable next;
+        synchronized(waitingFetches) {
+            next = waitingFetches.poll();
+            if(next == null) {
+                fetchesInFlight--;
+                return;
+            }
+        }
+        next.run();
+    }
+
+}
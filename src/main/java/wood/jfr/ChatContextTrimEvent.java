@@ -0,0 +1,25 @@
+package wood.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A /chat thread's history being trimmed to keep its prompt within the guild's maxCostPerAPIRequest. */
+@Name("wood.ChatContextTrim")
+@Label("Chat Context Trim")
+@Category({"DiscordGPT3", "Threads"})
+public class ChatContextTrimEvent extends jdk.jfr.Event {
+
+    @Label("Thread ID")
+    public long threadID;
+
+    @Label("Messages Removed")
+    public int messagesRemoved;
+
+    @Label("Tokens Before")
+    public int tokensBefore;
+
+    @Label("Tokens After")
+    public int tokensAfter;
+
+}
@@ -0,0 +1,22 @@
+package wood.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A handler dispatching a Discord event or interaction - timed until the handler returns. */
+@Name("wood.HandlerDispatch")
+@Label("Handler Dispatch")
+@Category({"DiscordGPT3", "Discord"})
+public class HandlerDispatchEvent extends jdk.jfr.Event {
+
+    @Label("Handler")
+    public String handler;
+
+    @Label("Channel ID")
+    public long channelID;
+
+    @Label("Dispatched To")
+    public String dispatchedTo;
+
+}
@@ -0,0 +1,28 @@
+package wood.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** An OpenAI API request, timed from when it's sent until its response (or error) is received. */
+@Name("wood.OpenAIRequest")
+@Label("OpenAI Request")
+@Category({"DiscordGPT3", "OpenAI"})
+public class OpenAIRequestEvent extends jdk.jfr.Event {
+
+    @Label("Model")
+    public String model;
+
+    @Label("Prompt Tokens")
+    @Description("The approximate number of tokens in the prompt")
+    public int promptTokens;
+
+    @Label("Max Tokens")
+    public int maxTokens;
+
+    @Label("Outcome")
+    @Description("'ok', or the class of the exception the request failed with")
+    public String outcome;
+
+}
@@ -0,0 +1,24 @@
+package wood.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Text being appended to a /prompt thread's prompt. */
+@Name("wood.PromptGrowth")
+@Label("Prompt Growth")
+@Category({"DiscordGPT3", "Threads"})
+public class PromptGrowthEvent extends jdk.jfr.Event {
+
+    @Label("Thread ID")
+    public long threadID;
+
+    @Label("Added Characters")
+    public int addedCharacters;
+
+    @Label("Prompt Characters")
+    @Description("The length of the prompt after the text was appended")
+    public int promptCharacters;
+
+}
@@ -0,0 +1,132 @@
+package wood.ledger;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only ledger of the usage of every OpenAI API request.  record() only adds to a lock-free queue; a single
+ * background writer appends the records to a memory-mapped file in LEDGER_DIR, starting a new file each time one
+ * fills up (and each time the bot starts).  Read the ledger with UsageLedgerReader.
+ */
+@Slf4j
+public class UsageLedger {
+
+    public static final String LEDGER_DIR = "ledger";
+    public static final String FILE_PREFIX = "usage_", FILE_EXTENSION = ".bin";
+
+    /** The size each ledger file is mapped at - 1 million records */
+    private static final long FILE_BYTES = 1_000_000L * UsageRecord.RECORD_BYTES;
+
+    /** How long the writer waits for records before flushing the file to disk */
+    private static final long IDLE_FLUSH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss-SSS");
+
+    private static final Queue<UsageRecord> queue = new ConcurrentLinkedQueue<>();
+
+    private static final Thread writer = new Thread(UsageLedger::write, "usage-ledger");
+
+    /** The file being written, and its mapping - guarded by the class's lock */
+    private static FileChannel channel;
+    private static MappedByteBuffer buffer;
+
+    /** Whether the ledger has been closed at shutdown - guarded by the class's lock */
+    private static boolean closed = false;
+
+    static {
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(UsageLedger::close, "usage-ledger-shutdown"));
+    }
+
+    /** @param record The usage of an OpenAI API request, to append to the ledger */
+    public static void record(UsageRecord record) {
+        queue.offer(record);
+        LockSupport.unpark(writer);
+    }
+
+    private static void write() {
+        boolean unflushed = false;
+        while(true) {
+            UsageRecord record = queue.poll();
+            if(record == null) {
+                if(unflushed)
+                    flush();
+                unflushed = false;
+                LockSupport.parkNanos(IDLE_FLUSH_NANOS);
+                continue;
+            }
+
+            try {
+                if(!append(record))
+                    return;
+                unflushed = true;
+            } catch(IOException e) {
+                log.error("Error writing to the usage ledger - a record was lost", e);
+                LockSupport.parkNanos(IDLE_FLUSH_NANOS); // don't spin if e.g. the disk is full
+            }
+        }
+    }
+
+    /** @return Whether the record was appended - false once the ledger has been closed */
+    private static synchronized boolean append(UsageRecord record) throws IOException {
+        if(closed)
+            return false;
+        if(buffer == null || buffer.remaining() < UsageRecord.RECORD_BYTES)
+            rotate();
+        record.write(buffer);
+        return true;
+    }
+
+    private static synchronized void flush() {
+        if(buffer != null)
+            buffer.force();
+    }
+
+    /** Closes the current ledger file (if any), and maps a new one */
+    private static void rotate() throws IOException {
+        closeFile();
+        Path dir = Files.createDirectories(Path.of(LEDGER_DIR));
+        Path file = dir.resolve(FILE_PREFIX + LocalDateTime.now().format(FILE_TIMESTAMP) + FILE_EXTENSION);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+        log.info("Writing usage to '" + file.toAbsolutePath() + "'");
+    }
+
+    /** Flushes the current file, and truncates it to the records written */
+    private static void closeFile() throws IOException {
+        if(channel == null)
+            return;
+        buffer.force();
+        channel.truncate(buffer.position());
+        channel.close();
+        channel = null;
+        buffer = null;
+    }
+
+    /** Writes the records still queued, then closes the current file */
+    private static synchronized void close() {
+        try {
+            UsageRecord record;
+            while((record = queue.poll()) != null)
+                append(record);
+            closeFile();
+        } catch(IOException e) {
+            log.error("Error closing the usage ledger", e);
+        }
+        closed = true;
+    }
+
+}
@@ -0,0 +1,133 @@
+package wood.ledger;
+
+import lombok.Getter;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Aggregates the usage ledger from the command line:
+ * <pre>
+ * java -cp DiscordGPT3.jar wood.ledger.UsageLedgerReader [-ledger &lt;dir&gt;] [-from yyyy-MM-dd] [-to yyyy-MM-dd]
+ *                                                        [-by guild|user|thread|model|day]
+ * </pre>
+ * Dates are UTC, and both inclusive.  Each file is memory-mapped and scanned field by field, without decoding whole
+ * records, so a month of usage is aggregated in seconds.
+ */
+public class UsageLedgerReader {
+
+    private static final String USAGE = "Usage: [-ledger <dir>] [-from yyyy-MM-dd] [-to yyyy-MM-dd] [-by guild|user|thread|model|day]";
+
+    /** Each way records can be grouped, mapped to the function reading a record's group */
+    private static final Map<String, BiFunction<MappedByteBuffer, Integer, String>> groupings = Map.of(
+            "guild", (buffer, offset) -> Long.toString(buffer.getLong(offset + 8)),
+            "user", (buffer, offset) -> Long.toString(buffer.getLong(offset + 16)),
+            "thread", (buffer, offset) -> Long.toString(buffer.getLong(offset + 24)),
+            "model", UsageRecord::model,
+            "day", (buffer, offset) -> LocalDate.ofInstant(Instant.ofEpochMilli(UsageRecord.timestamp(buffer, offset)),
+                    ZoneOffset.UTC).toString());
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Path.of(UsageLedger.LEDGER_DIR);
+        long from = 0, to = Long.MAX_VALUE;
+        String by = "guild";
+        for(int i = 0; i < args.length; i++) {
+            if(i+1 == args.length)
+                throw new IllegalArgumentException("error: " + args[i] + " requires an argument. " + USAGE);
+            switch(args[i].toLowerCase()) {
+                case "-ledger":
+                    dir = Path.of(args[++i]);
+                    break;
+                case "-from":
+                    from = LocalDate.parse(args[++i]).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                    break;
+                case "-to":
+                    to = LocalDate.parse(args[++i]).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                    break;
+                case "-by":
+                    by = args[++i].toLowerCase();
+                    if(!groupings.containsKey(by))
+                        throw new IllegalArgumentException("error: can't group by '" + by + "'. " + USAGE);
+                    break;
+                default:
+                    throw new IllegalArgumentException("error: unknown argument '" + args[i] + "'. " + USAGE);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        Map<String, Totals> totals = aggregate(dir, from, to, groupings.get(by));
+        print(by, totals);
+        System.out.printf("%nAggregated %d records in %d ms%n",
+                totals.values().stream().mapToLong(t -> t.requests).sum(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @param dir The ledger directory
+     * @param from The earliest timestamp to include (epoch ms)
+     * @param to The timestamp after the latest to include (epoch ms)
+     * @param grouping Reads the group of the record at an offset
+     * @return Each group mapped to the totals of its records
+     */
+    public static Map<String, Totals> aggregate(Path dir, long from, long to,
+                                                BiFunction<MappedByteBuffer, Integer, String> grouping) throws IOException {
+        List<Path> files;
+        try(Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(f -> f.getFileName().toString().startsWith(UsageLedger.FILE_PREFIX)
+                    && f.getFileName().toString().endsWith(UsageLedger.FILE_EXTENSION)).sorted().collect(Collectors.toList());
+        }
+
+        Map<String, Totals> totals = new HashMap<>();
+        for(Path file : files) {
+            try(FileChannel channel = FileChannel.open(file)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int records = (int) (channel.size() / UsageRecord.RECORD_BYTES);
+                for(int i = 0; i < records; i++) {
+                    int offset = i * UsageRecord.RECORD_BYTES;
+                    long timestamp = UsageRecord.timestamp(buffer, offset);
+                    if(timestamp == 0) // the unwritten end of a file that wasn't closed cleanly
+                        break;
+                    if(timestamp < from || timestamp >= to)
+                        continue;
+
+                    Totals group = totals.computeIfAbsent(grouping.apply(buffer, offset), g -> new Totals());
+                    group.requests++;
+                    group.promptTokens += buffer.getInt(offset + 40);
+                    group.completionTokens += buffer.getInt(offset + 44);
+                    group.latencyMillis += buffer.getInt(offset + 48);
+                    group.costMicroUSD += buffer.getLong(offset + 32);
+                }
+            }
+        }
+        return totals;
+    }
+
+    private static void print(String by, Map<String, Totals> totals) {
+        System.out.printf("%-24s %10s %14s %14s %12s %12s%n", by, "requests", "prompt tokens", "compl. tokens",
+                "avg latency", "cost (USD)");
+        totals.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, Totals> e) -> e.getValue().costMicroUSD).reversed())
+                .forEach(e -> System.out.printf("%-24s %10d %14d %14d %10d ms %12.4f%n", e.getKey(), e.getValue().requests,
+                        e.getValue().promptTokens, e.getValue().completionTokens,
+                        e.getValue().latencyMillis / e.getValue().requests, e.getValue().costMicroUSD / 1e6));
+    }
+
+    /** The totals of a group of records */
+    @Getter
+    public static class Totals {
+        private long requests, promptTokens, completionTokens, latencyMillis, costMicroUSD;
+    }
+
+}
@@ -0,0 +1,77 @@
+package wood.ledger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The usage of a single OpenAI API request, as stored in the usage ledger - a fixed-width RECORD_BYTES record:
+ * <pre>
+ * offset  size  field
+ *      0     8  timestamp (epoch ms) - 0 marks the unwritten end of a ledger file
+ *      8     8  guild ID
+ *     16     8  user ID
+ *     24     8  thread ID
+ *     32     8  cost (millionths of a USD)
+ *     40     4  prompt tokens
+ *     44     4  completion tokens
+ *     48     4  latency (ms)
+ *     52    44  model (ASCII, zero padded)
+ * </pre>
+ * @param timestamp When the request finished, in epoch milliseconds
+ * @param guildID The ID of the guild the request was made for, or 0 if none
+ * @param userID The ID of the user the request was made for, or 0 if none
+ * @param threadID The ID of the thread the request was made for, or 0 if none
+ * @param model The language model
+ * @param promptTokens The (approximate) number of tokens in the prompt
+ * @param completionTokens The (approximate) number of tokens in the completion
+ * @param latencyMillis How long the request took
+ * @param costMicroUSD What the request cost, in millionths of a USD
+ */
+public record UsageRecord(long timestamp, long guildID, long userID, long threadID, String model, int promptTokens,
+                          int completionTokens, int latencyMillis, long costMicroUSD) {
+
+    public static final int RECORD_BYTES = 96;
+    private static final int MODEL_OFFSET = 52, MODEL_BYTES = RECORD_BYTES - MODEL_OFFSET;
+
+    /** Writes this record at the buffer's position, and advances it by RECORD_BYTES */
+    public void write(ByteBuffer buffer) {
+        byte[] modelBytes = model.getBytes(StandardCharsets.US_ASCII);
+        buffer.putLong(timestamp)
+                .putLong(guildID)
+                .putLong(userID)
+                .putLong(threadID)
+                .putLong(costMicroUSD)
+                .putInt(promptTokens)
+                .putInt(completionTokens)
+                .putInt(latencyMillis)
+                .put(modelBytes, 0, Math.min(modelBytes.length, MODEL_BYTES))
+                .put(new byte[MODEL_BYTES - Math.min(modelBytes.length, MODEL_BYTES)]);
+    }
+
+    /**
+     * @param buffer A buffer of records
+     * @param offset The offset of a record in the buffer
+     * @return The record at the offset, without changing the buffer's position
+     */
+    public static UsageRecord read(ByteBuffer buffer, int offset) {
+        return new UsageRecord(timestamp(buffer, offset), buffer.getLong(offset + 8), buffer.getLong(offset + 16),
+                buffer.getLong(offset + 24), model(buffer, offset), buffer.getInt(offset + 40), buffer.getInt(offset + 44),
+                buffer.getInt(offset + 48), buffer.getLong(offset + 32));
+    }
+
+    /** @return The timestamp of the record at the offset - reading a single field avoids decoding the whole record */
+    public static long timestamp(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset);
+    }
+
+    /** @return The model of the record at the offset */
+    public static String model(ByteBuffer buffer, int offset) {
+        byte[] modelBytes = new byte[MODEL_BYTES];
+        buffer.get(offset + MODEL_OFFSET, modelBytes);
+        int length = 0;
+        while(length < MODEL_BYTES && modelBytes[length] != 0)
+            length++;
+        return new String(modelBytes, 0, length, StandardCharsets.US_ASCII);
+    }
+
+}
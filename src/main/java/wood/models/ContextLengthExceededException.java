@@ -0,0 +1,11 @@
+package wood.models;
+
+/** Thrown when a request's prompt alone doesn't fit in its model's context, so the request isn't sent - or the API
+ *  rejected it for not fitting, since GPTUtil.countTokens is only an estimate. */
+public class ContextLengthExceededException extends RuntimeException {
+
+    public ContextLengthExceededException(String message) {
+        super(message);
+    }
+
+}
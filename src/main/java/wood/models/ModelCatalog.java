@@ -0,0 +1,114 @@
+package wood.models;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.util.GPTRequest;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * The language models the bot can use, with their prices, context lengths, and concurrency limits - loaded from
+ * ModelCatalogService.CATALOG_FILE, or the defaults below until it's loaded.
+ */
+@Slf4j
+public class ModelCatalog {
+
+    /** The catalog used until (or unless) the catalog file is loaded */
+    public static final List<ModelInfo> DEFAULT_MODELS = List.of(
+            new ModelInfo(GPTRequest.davinci, List.of(), GPTRequest.inDavinci, .06, 2049, 0),
+            new ModelInfo(GPTRequest.curie, List.of(), GPTRequest.inCurie, .006, 2049, 0),
+            new ModelInfo(GPTRequest.babbage, List.of(), GPTRequest.inBabbage, .0012, 2049, 0),
+            new ModelInfo(GPTRequest.ada, List.of(), GPTRequest.inAda, .0008, 2049, 0),
+            new ModelInfo(GPTRequest.inDavinci, List.of("text-davinci-001"), GPTRequest.inDavinci, .06, 4097, 0),
+            new ModelInfo(GPTRequest.inCurie, List.of(), GPTRequest.inCurie, .006, 2049, 0),
+            new ModelInfo(GPTRequest.inBabbage, List.of(), GPTRequest.inBabbage, .0012, 2049, 0),
+            new ModelInfo(GPTRequest.inAda, List.of(), GPTRequest.inAda, .0008, 2049, 0));
+
+    /** Each model by name, in catalog order */
+    private static volatile Map<String, ModelInfo> models = index(DEFAULT_MODELS);
+
+    /** The models get() has warned aren't in the catalog - so each is only logged once */
+    private static final Set<String> missingModels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param model A model's name (case-sensitive)
+     * @return The model - or if it isn't in the catalog (e.g. it was removed, but a thread or guild still uses it), a
+     *         stand-in with the catalog's highest price and shortest context, so it's never under-budgeted
+     */
+    public static ModelInfo get(String model) {
+        Map<String, ModelInfo> catalog = models;
+        ModelInfo info = catalog.get(model);
+        if(info != null)
+            return info;
+
+        if(missingModels.add(model))
+            log.warn("The " + model + " model isn't in the model catalog - using the highest price and shortest context "
+                    + "of the catalog's models for it");
+        ModelInfo first = catalog.values().iterator().next();
+        return new ModelInfo(model, List.of(), first.instructModel(),
+                catalog.values().stream().mapToDouble(ModelInfo::usdPer1kTokens).max().orElseThrow(),
+                catalog.values().stream().mapToInt(ModelInfo::contextTokens).min().orElseThrow(), 0);
+    }
+
+    /**
+     * @param model A model's name (case-sensitive)
+     * @return Whether the model is in the catalog
+     */
+    public static boolean contains(String model) {
+        return models.containsKey(model);
+    }
+
+    /**
+     * @param nameOrAlias A model's name or one of its aliases (case-insensitive)
+     * @return The model, if it's in the catalog
+     */
+    public static Optional<ModelInfo> resolve(String nameOrAlias) {
+        return models.values().stream()
+                .filter(model -> model.name().equalsIgnoreCase(nameOrAlias)
+                        || model.aliases().stream().anyMatch(alias -> alias.equalsIgnoreCase(nameOrAlias)))
+                .findFirst();
+    }
+
+    /** @return The names of the models, in catalog order */
+    public static List<String> names() {
+        return List.copyOf(models.keySet());
+    }
+
+    /**
+     * Replaces the catalog
+     * @param catalog The models
+     * @throws IllegalArgumentException if a model's instructModel isn't in the catalog, or its price or context length
+     *                                  isn't positive
+     */
+    public static void publish(List<ModelInfo> catalog) {
+        Map<String, ModelInfo> indexed = index(catalog);
+        for(ModelInfo model : catalog) {
+            if(!indexed.containsKey(model.instructModel()))
+                throw new IllegalArgumentException("The instructModel of " + model.name() + " isn't in the catalog: "
+                        + model.instructModel());
+            if(model.usdPer1kTokens() <= 0 || model.contextTokens() <= 0)
+                throw new IllegalArgumentException("The price and context length of " + model.name() + " must be positive");
+        }
+        models = indexed;
+    }
+
+    /** @return The catalog, in the format of the catalog file */
+    public static DataObject toData() {
+        return DataObject.empty().put("models", DataArray.fromCollection(
+                models.values().stream().map(ModelInfo::toData).collect(Collectors.toList())));
+    }
+
+    private static Map<String, ModelInfo> index(List<ModelInfo> catalog) {
+        Map<String, ModelInfo> indexed = new LinkedHashMap<>();
+        catalog.forEach(model -> indexed.put(model.name(), model));
+        return indexed;
+    }
+
+}
@@ -0,0 +1,64 @@
+package wood.models;
+
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A language model in the ModelCatalog
+ * @param name The model's name in the OpenAI API
+ * @param aliases Other names /model accepts for it (case-insensitive)
+ * @param instructModel The name of the instruct series model equivalent to it (itself, if it is one) - used for titles
+ * @param usdPer1kTokens The price of 1000 tokens (prompt and completion)
+ * @param contextTokens The most tokens a request's prompt and completion can have together
+ * @param concurrencyLimit The most requests to it that can be in flight at once, or 0 to use the
+ *                         defaultModelConcurrencyLimit setting - a modelConcurrencyLimits setting overrides either
+ */
+public record ModelInfo(String name, List<String> aliases, String instructModel, double usdPer1kTokens,
+                        int contextTokens, int concurrencyLimit) {
+
+    /**
+     * @param json The model's entry in the catalog file
+     * @throws IllegalArgumentException if the entry is missing its name, price, or context length
+     */
+    public static ModelInfo fromData(DataObject json) {
+        if(!json.hasKey("name") || !json.hasKey("usdPer1kTokens") || !json.hasKey("contextTokens"))
+            throw new IllegalArgumentException("Every model needs a name, usdPer1kTokens, and contextTokens: " + json);
+        DataArray aliases = json.optArray("aliases").orElseGet(DataArray::empty);
+        return new ModelInfo(json.getString("name"),
+                IntStream.range(0, aliases.length()).mapToObj(aliases::getString).collect(Collectors.toUnmodifiableList()),
+                json.getString("instructModel", json.getString("name")), json.getDouble("usdPer1kTokens"),
+                json.getInt("contextTokens"), json.getInt("concurrencyLimit", 0));
+    }
+
+    /** @return The model's entry in the catalog file */
+    public DataObject toData() {
+        return DataObject.empty()
+                .put("name", name)
+                .put("aliases", DataArray.fromCollection(aliases))
+                .put("instructModel", instructModel)
+                .put("usdPer1kTokens", usdPer1kTokens)
+                .put("contextTokens", contextTokens)
+                .put("concurrencyLimit", concurrencyLimit);
+    }
+
+    /**
+     * @param tokens A number of tokens
+     * @return The USD the tokens cost
+     */
+    public double tokensToUSD(int tokens) {
+        return tokens * usdPer1kTokens / 1000;
+    }
+
+    /**
+     * @param usd An amount of USD
+     * @return The number of tokens the USD buys
+     */
+    public int usdToTokens(double usd) {
+        return (int) (usd / usdPer1kTokens * 1000);
+    }
+
+}
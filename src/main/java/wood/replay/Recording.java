@@ -0,0 +1,122 @@
+package wood.replay;
+
+import lombok.Getter;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A traffic recording written by TrafficRecorder - a gzipped stream of tagged entries after a header:
+ * <pre>
+ * header:     int MAGIC, short VERSION, long start (epoch ms)
+ * event:      byte EVENT_TAG, long offset (ms), byte kind, long guild, long channel, long user, int content length
+ * completion: byte COMPLETION_TAG, long offset (ms), long guild, long user, long thread, UTF model, byte priority,
+ *             int prompt tokens, int max tokens, long deadline (ms after offset, or -1), long latency (ms, or -1),
+ *             int completion length, byte outcome
+ * </pre>
+ * IDs are pseudonymised by the recorder, and no message or completion text is kept - only its length.
+ */
+@Getter
+public class Recording {
+
+    static final int MAGIC = 0x57525043;
+    static final short VERSION = 1;
+    static final byte EVENT_TAG = 1, COMPLETION_TAG = 2;
+
+    /** The handler inputs recorded */
+    public enum Kind { MESSAGE, MODAL, REACTION }
+
+    /** How a recorded completion request ended */
+    public enum Outcome { OK, FAILED, DROPPED, SHED }
+
+    /**
+     * A message, modal submission, or reaction passed to its handler
+     * @param offsetMillis When it was handled, in ms after the recording started
+     * @param kind Which handler it was passed to
+     * @param guildID The (pseudonymised) guild, or 0 if none
+     * @param channelID The (pseudonymised) channel
+     * @param userID The (pseudonymised) user
+     * @param contentLength The length of the message, or of the modal's values (0 for reactions)
+     */
+    public record Event(long offsetMillis, Kind kind, long guildID, long channelID, long userID, int contentLength) {}
+
+    /**
+     * A completion request made with GPTRequest.requestAsync()
+     * @param offsetMillis When it was submitted, in ms after the recording started
+     * @param guildID The (pseudonymised) guild of its context, or 0 if none
+     * @param userID The (pseudonymised) user of its context, or 0 if none
+     * @param threadID The (pseudonymised) thread of its context, or 0 if none
+     * @param model The model requested
+     * @param priority The ordinal of its Priority
+     * @param promptTokens The number of tokens in its prompt
+     * @param maxTokens Its maxTokens
+     * @param deadlineMillis How long after submission its deadline was, or -1 if it had none
+     * @param latencyMillis How long the API call took, or -1 if it was never made
+     * @param completionLength The length of the completion, or 0 if it failed
+     * @param outcome How it ended
+     */
+    public record Completion(long offsetMillis, long guildID, long userID, long threadID, String model, int priority,
+                             int promptTokens, int maxTokens, long deadlineMillis, long latencyMillis,
+                             int completionLength, Outcome outcome) {}
+
+    /** When the recording started, in epoch milliseconds */
+    private final long startMillis;
+
+    /** The recorded handler inputs, in order of offset */
+    private final List<Event> events;
+
+    /** The recorded completion requests, in order of offset (they're written as they finish) */
+    private final List<Completion> completions;
+
+    private Recording(long startMillis, List<Event> events, List<Completion> completions) {
+        this.startMillis = startMillis;
+        this.events = events;
+        this.completions = completions;
+    }
+
+    /**
+     * @param file A recording written by TrafficRecorder
+     * @return The recording - if it was cut off (e.g. the bot was killed), the entries before the cut
+     * @throws IOException if the file can't be read, or isn't a recording
+     */
+    public static Recording read(Path file) throws IOException {
+        List<Event> events = new ArrayList<>();
+        List<Completion> completions = new ArrayList<>();
+        long start;
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if(in.readInt() != MAGIC || in.readShort() != VERSION)
+                throw new IOException("'" + file + "' isn't a version " + VERSION + " traffic recording");
+            start = in.readLong();
+
+            try {
+                while(true) {
+                    byte tag = in.readByte();
+                    if(tag == EVENT_TAG)
+                        events.add(new Event(in.readLong(), Kind.values()[in.readByte()], in.readLong(), in.readLong(),
+                                in.readLong(), in.readInt()));
+                    else if(tag == COMPLETION_TAG)
+                        completions.add(new Completion(in.readLong(), in.readLong(), in.readLong(), in.readLong(),
+                                in.readUTF(), in.readByte(), in.readInt(), in.readInt(), in.readLong(), in.readLong(),
+                                in.readInt(), Outcome.values()[in.readByte()]));
+                    else
+                        throw new IOException("Unknown entry tag " + tag + " in '" + file + "'");
+                }
+            } catch(EOFException e) {
+                // the end of the recording, or a cut off entry
+            }
+        }
+
+        events.sort(Comparator.comparingLong(Event::offsetMillis));
+        completions.sort(Comparator.comparingLong(Completion::offsetMillis));
+        return new Recording(start, events, completions);
+    }
+
+}
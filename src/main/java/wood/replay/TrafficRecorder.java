@@ -0,0 +1,183 @@
+package wood.replay;
+
+import lombok.extern.slf4j.Slf4j;
+import wood.scheduler.DeadlineExceededException;
+import wood.scheduler.RequestContext;
+import wood.scheduler.RequestDroppedException;
+import wood.util.GPTRequest;
+import wood.util.GPTUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the inputs of MessageHandler, ModalHandler and ReactionHandler, and every completion request with its
+ * timing and outcome, to the file given by -record <file> - which TrafficReplayer can replay against a stubbed OpenAI
+ * API.  IDs are pseudonymised with a key that's random per recording (so guilds, users and threads stay distinct),
+ * and text is reduced to its length.  Nothing is recorded unless -record is given.
+ */
+@Slf4j
+public class TrafficRecorder {
+
+    /** Guards out, and is null unless recording */
+    private static final Object lock = new Object();
+    private static DataOutputStream out;
+
+    private static volatile boolean recording = false;
+    private static long startMillis;
+    private static long idKey;
+
+    /**
+     * Starts recording if -record <file> is given
+     * @param args Command line arguments
+     * @throws IllegalArgumentException if -record is given without a file
+     * @throws IOException if the file already exists, or can't be created
+     */
+    public static void load(String[] args) throws IllegalArgumentException, IOException {
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-record")) {
+                if(i+1 == args.length || args[i+1].startsWith("-"))
+                    throw new IllegalArgumentException("error: -record requires the file to record traffic to. "
+                            + "Usage: -record <file>");
+                start(Path.of(args[i + 1]));
+            }
+        }
+    }
+
+    private static void start(Path file) throws IOException {
+        synchronized(lock) {
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(
+                    Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16)));
+            startMillis = System.currentTimeMillis();
+            idKey = new SecureRandom().nextLong();
+            out.writeInt(Recording.MAGIC);
+            out.writeShort(Recording.VERSION);
+            out.writeLong(startMillis);
+        }
+        recording = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(TrafficRecorder::stop, "traffic-recorder-shutdown"));
+        log.info("Recording traffic to '" + file.toAbsolutePath() + "'");
+    }
+
+    /** Finishes the recording - it's only complete once this has run (at shutdown) */
+    public static void stop() {
+        recording = false;
+        synchronized(lock) {
+            if(out == null)
+                return;
+            try {
+                out.close();
+            } catch(IOException e) {
+                log.error("Error finishing the traffic recording", e);
+            }
+            out = null;
+        }
+    }
+
+    /** @return Whether traffic is being recorded */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Records a handler's input
+     * @param kind Which handler it was passed to
+     * @param guildID The guild it's from, or 0 if none
+     * @param channelID The channel it's from
+     * @param userID The user it's from
+     * @param contentLength The length of the message, or of the modal's values (0 for reactions)
+     */
+    public static void recordEvent(Recording.Kind kind, long guildID, long channelID, long userID, int contentLength) {
+        if(!recording)
+            return;
+        synchronized(lock) {
+            if(out == null)
+                return;
+            try {
+                out.writeByte(Recording.EVENT_TAG);
+                out.writeLong(System.currentTimeMillis() - startMillis);
+                out.writeByte(kind.ordinal());
+                out.writeLong(pseudonymise(guildID));
+                out.writeLong(pseudonymise(channelID));
+                out.writeLong(pseudonymise(userID));
+                out.writeInt(contentLength);
+            } catch(IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * Records a finished completion request
+     * @param request The request
+     * @param submittedMillis When requestAsync() was called, in epoch milliseconds
+     * @param output The request's output, or null if it failed
+     * @param error Why the request failed, or null if it succeeded
+     */
+    public static void recordCompletion(GPTRequest request, long submittedMillis, String output, Throwable error) {
+        if(!recording)
+            return;
+        RequestContext context = request.getContext();
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        Recording.Outcome outcome = cause == null ? Recording.Outcome.OK
+                : cause instanceof RequestDroppedException ? Recording.Outcome.DROPPED
+                : cause instanceof DeadlineExceededException ? Recording.Outcome.SHED
+                : Recording.Outcome.FAILED;
+        int promptTokens = GPTUtil.countTokens(request.getPrompt());
+
+        synchronized(lock) {
+            if(out == null)
+                return;
+            try {
+                out.writeByte(Recording.COMPLETION_TAG);
+                out.writeLong(submittedMillis - startMillis);
+                out.writeLong(pseudonymise(context.getGuildID()));
+                out.writeLong(pseudonymise(context.getUserID()));
+                out.writeLong(pseudonymise(context.getThreadID()));
+                out.writeUTF(request.getModel());
+                out.writeByte(request.getPriority().ordinal());
+                out.writeInt(promptTokens);
+                out.writeInt(request.getMaxTokens());
+                out.writeLong(context.getDeadline() == Long.MAX_VALUE ? -1 : context.getDeadline() - submittedMillis);
+                out.writeLong(request.getLatencyMillis());
+                out.writeInt(output == null ? 0 : output.length());
+                out.writeByte(outcome.ordinal());
+            } catch(IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /**
+     * @param id A Discord ID, or 0 for none
+     * @return The ID pseudonymised with this recording's key (0 stays 0) - a bijection, so distinct IDs stay distinct
+     */
+    private static long pseudonymise(long id) {
+        if(id == 0)
+            return 0;
+        // the splitmix64 finalizer
+        long z = id ^ idKey;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z = z ^ (z >>> 31);
+        return z == 0 ? 1 : z;
+    }
+
+    /** Stops recording after a write fails - guarded by lock */
+    private static void fail(IOException e) {
+        log.error("Error writing the traffic recording - recording stopped", e);
+        recording = false;
+        try {
+            out.close();
+        } catch(IOException ignored) {}
+        out = null;
+    }
+
+}
@@ -0,0 +1,357 @@
+package wood.replay;
+
+import lombok.Getter;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.scheduler.DeadlineExceededException;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.scheduler.RequestDroppedException;
+import wood.util.GPTRequest;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Replays a recording written by TrafficRecorder from the command line, and compares the results to a baseline:
+ * <pre>
+ * java -cp DiscordGPT3.jar wood.replay.TrafficReplayer -recording &lt;file&gt; [-speed &lt;x&gt;]
+ *                                                      [-baseline &lt;file&gt; [-saveBaseline] [-tolerance &lt;percent&gt;]]
+ * </pre>
+ * Each recorded completion request is submitted through GPTRequest.requestAsync() - and so the OpenAIScheduler - at its
+ * recorded offset, with its recorded context, priority, model, and token counts, and answered by a stub that takes the
+ * recorded API latency.  At -speed x, the offsets, latencies and deadlines are all divided by x, and measured latencies
+ * multiplied by x, so results at any speed are in recorded milliseconds.  Budgets are disabled, since they're windowed
+ * in wall clock time.
+ * <p>
+ * This replays the OpenAI traffic the handlers generate, not the handlers themselves: MessageHandler, ModalHandler
+ * and ReactionHandler take JDA events, which can't be built without a gateway session, and answer them with REST
+ * calls that need one - so the recorded handler inputs are only summarised, and the replay enters at requestAsync().
+ * It's also paced by the wall clock rather than a virtual one, since the OpenAIScheduler and the deadlines it sheds
+ * by are, so no two runs are identical.  With the stub's latencies fixed by the recording they stay within a few ms of
+ * each other, which MIN_LATENCY_REGRESSION_MILLIS absorbs.  src/test/resources/replay has a recording of synthetic
+ * traffic (see SyntheticTrafficRecording) and its baseline at 1x, to check scheduler changes against.
+ * <p>
+ * With -saveBaseline the results are written to the baseline file, otherwise they're compared to it, and the exit code
+ * is 1 if latency, or the number of successful requests, regressed by more than the tolerance (default 10%).
+ */
+public class TrafficReplayer {
+
+    private static final String USAGE = "Usage: -recording <file> [-speed <x>] [-baseline <file> [-saveBaseline] "
+            + "[-tolerance <percent>]]";
+
+    /** Latency differences smaller than this (in recorded ms) are never counted as regressions - they're noise */
+    private static final long MIN_LATENCY_REGRESSION_MILLIS = 5;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path recordingFile = null, baselineFile = null;
+        double speed = 1, tolerance = .1;
+        boolean saveBaseline = false;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-saveBaseline")) {
+                saveBaseline = true;
+                continue;
+            }
+            if(i+1 == args.length)
+                throw new IllegalArgumentException("error: " + args[i] + " requires an argument. " + USAGE);
+            switch(args[i].toLowerCase()) {
+                case "-recording":
+                    recordingFile = Path.of(args[++i]);
+                    break;
+                case "-speed":
+                    speed = Double.parseDouble(args[++i]);
+                    if(speed <= 0)
+                        throw new IllegalArgumentException("error: -speed must be positive. " + USAGE);
+                    break;
+                case "-baseline":
+                    baselineFile = Path.of(args[++i]);
+                    break;
+                case "-tolerance":
+                    tolerance = Double.parseDouble(args[++i]) / 100;
+                    break;
+                default:
+                    throw new IllegalArgumentException("error: unknown argument '" + args[i] + "'. " + USAGE);
+            }
+        }
+        if(recordingFile == null)
+            throw new IllegalArgumentException("error: -recording is required. " + USAGE);
+
+        Recording recording = Recording.read(recordingFile);
+        summariseEvents(recording);
+        Results results = replay(recording, speed);
+        results.print();
+
+        if(baselineFile == null)
+            return;
+        if(saveBaseline) {
+            Files.writeString(baselineFile, results.toData().toPrettyString());
+            System.out.println("\nSaved the baseline to '" + baselineFile + "'");
+        }
+        else if(compare(DataObject.fromJson(Files.readAllBytes(baselineFile)), results, tolerance)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replays a recording's completion requests, and waits for all of them to finish
+     * @param recording The recording
+     * @param speed How many times faster than recorded to replay
+     * @return The latency and outcome of each priority class's requests
+     */
+    public static Results replay(Recording recording, double speed) throws InterruptedException {
+        Settings.publish(new Settings(DataObject.empty().put("userUSDBudget", 0).put("guildUSDBudget", 0)
+                .put("threadUSDBudget", 0).put("userTokenBudget", 0).put("guildTokenBudget", 0)
+                .put("threadTokenBudget", 0), new Settings()), Map.of());
+
+        // requests that were never sent when recorded take their model's mean recorded latency
+        Map<String, Double> meanLatencies = recording.getCompletions().stream()
+                .filter(completion -> completion.latencyMillis() >= 0)
+                .collect(Collectors.groupingBy(Recording.Completion::model,
+                        Collectors.averagingLong(Recording.Completion::latencyMillis)));
+
+        Map<GPTRequest, Recording.Completion> inFlight = new ConcurrentHashMap<>();
+        CompletionBackends.setOverride(new CompletionBackend() {
+            @Override
+            public String complete(GPTRequest request) {
+                Recording.Completion recorded = inFlight.get(request);
+                long latency = recorded.latencyMillis() >= 0 ? recorded.latencyMillis()
+                        : Math.round(meanLatencies.getOrDefault(recorded.model(), 0.0));
+                try {
+                    Thread.sleep((long) (latency / speed));
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if(recorded.outcome() == Recording.Outcome.FAILED)
+                    throw new RuntimeException("Replayed API failure");
+                return "x".repeat(recorded.completionLength());
+            }
+
+            @Override
+            public boolean isBilled() {
+                return false;
+            }
+        });
+
+        Results results = new Results(speed);
+        CountDownLatch finished = new CountDownLatch(recording.getCompletions().size());
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "replay-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long start = System.nanoTime();
+        for(Recording.Completion recorded : recording.getCompletions()) {
+            clock.schedule(() -> {
+                long deadline = recorded.deadlineMillis() < 0 ? Long.MAX_VALUE
+                        : System.currentTimeMillis() + (long) (recorded.deadlineMillis() / speed);
+                Priority priority = Priority.values()[recorded.priority()];
+                GPTRequest request = new GPTRequest.GPTRequestBuilder(recorded.model(),
+                        "x".repeat(recorded.promptTokens() * 4), recorded.maxTokens())
+                        .context(new RequestContext(recorded.guildID(), recorded.userID(), recorded.threadID(), deadline))
+                        .priority(priority)
+                        .build();
+                inFlight.put(request, recorded);
+
+                long submitted = System.nanoTime();
+                try {
+                    request.requestAsync(false).whenComplete((output, e) -> {
+                        inFlight.remove(request);
+                        results.record(priority, e, (long) ((System.nanoTime() - submitted) / 1e6 * speed));
+                        finished.countDown();
+                    });
+                } catch(RuntimeException e) {
+                    inFlight.remove(request);
+                    results.record(priority, e, 0);
+                    finished.countDown();
+                }
+            }, (long) (recorded.offsetMillis() * 1e6 / speed), TimeUnit.NANOSECONDS);
+        }
+
+        finished.await();
+        clock.shutdown();
+        CompletionBackends.setOverride(null);
+        results.durationMillis = (long) ((System.nanoTime() - start) / 1e6 * speed);
+        return results;
+    }
+
+    /**
+     * Prints any regressions of the results from the baseline
+     * @param baseline Results saved by -saveBaseline
+     * @param results The results of this replay
+     * @param tolerance The fraction a metric may regress by before it's reported
+     * @return Whether anything regressed
+     */
+    private static boolean compare(DataObject baseline, Results results, double tolerance) {
+        System.out.println();
+        if(baseline.getDouble("speed") != results.speed)
+            System.out.println("warning: the baseline was replayed at " + baseline.getDouble("speed") + "x, and this at "
+                    + results.speed + "x - the results may not be comparable");
+
+        boolean regressed = false;
+        DataObject baselineClasses = baseline.getObject("priorities");
+        for(Priority priority : Priority.values()) {
+            if(!baselineClasses.hasKey(priority.name()))
+                continue;
+            DataObject before = baselineClasses.getObject(priority.name()), after = results.get(priority).toData();
+            for(String percentile : List.of("p50", "p95", "p99")) {
+                long was = before.getLong(percentile), is = after.getLong(percentile);
+                if(is > was * (1 + tolerance) && is - was >= MIN_LATENCY_REGRESSION_MILLIS) {
+                    System.out.printf("REGRESSION: %s %s latency %d ms -> %d ms%n", priority, percentile, was, is);
+                    regressed = true;
+                }
+            }
+            long okBefore = before.getLong("ok"), okAfter = after.getLong("ok");
+            if(okAfter < okBefore * (1 - tolerance)) {
+                System.out.printf("REGRESSION: %s successful requests %d -> %d%n", priority, okBefore, okAfter);
+                regressed = true;
+            }
+        }
+        double throughputBefore = baseline.getDouble("throughput"), throughputAfter = results.getThroughput();
+        if(throughputAfter < throughputBefore * (1 - tolerance)) {
+            System.out.printf("REGRESSION: throughput %.2f/s -> %.2f/s%n", throughputBefore, throughputAfter);
+            regressed = true;
+        }
+
+        System.out.println(regressed ? "Regressed from the baseline" : "No regressions from the baseline");
+        return regressed;
+    }
+
+    private static void summariseEvents(Recording recording) {
+        List<Recording.Event> events = recording.getEvents();
+        long span = events.isEmpty() ? 0 : events.get(events.size() - 1).offsetMillis();
+        System.out.printf("Recording: %d handler inputs over %.1f minutes, %d completion requests%n",
+                events.size(), span / 60_000.0, recording.getCompletions().size());
+        for(Recording.Kind kind : Recording.Kind.values()) {
+            long count = events.stream().filter(event -> event.kind() == kind).count();
+            System.out.printf("  %-9s %8d  (%.2f/s)%n", kind.name().toLowerCase(), count, span == 0 ? 0 : count * 1000.0 / span);
+        }
+        System.out.println();
+    }
+
+    /** The results of a replay */
+    public static class Results {
+
+        /** How many times faster than recorded the replay ran */
+        @Getter private final double speed;
+
+        /** How long the replay took, in recorded milliseconds */
+        @Getter private long durationMillis;
+
+        private final Map<Priority, ClassResults> classes = new EnumMap<>(Priority.class);
+
+        private Results(double speed) {
+            this.speed = speed;
+            for(Priority priority : Priority.values())
+                classes.put(priority, new ClassResults());
+        }
+
+        /**
+         * @param priority A priority class
+         * @return The results of the class's requests
+         */
+        public ClassResults get(Priority priority) {
+            return classes.get(priority);
+        }
+
+        /** @return Successful requests per recorded second */
+        public double getThroughput() {
+            long ok = classes.values().stream().mapToLong(ClassResults::getOk).sum();
+            return durationMillis == 0 ? 0 : ok * 1000.0 / durationMillis;
+        }
+
+        private void record(Priority priority, Throwable error, long latencyMillis) {
+            classes.get(priority).record(error, latencyMillis);
+        }
+
+        private void print() {
+            System.out.printf("Replayed at %sx in %.1f recorded seconds - %.2f successful requests/s%n%n",
+                    speed, durationMillis / 1000.0, getThroughput());
+            System.out.printf("%-12s %8s %8s %8s %8s %8s %9s %9s %9s %9s%n",
+                    "class", "requests", "ok", "dropped", "shed", "failed", "p50 ms", "p95 ms", "p99 ms", "max ms");
+            classes.forEach((priority, results) -> {
+                if(results.latencies.isEmpty())
+                    return;
+                System.out.printf("%-12s %8d %8d %8d %8d %8d %9d %9d %9d %9d%n", priority, results.latencies.size(),
+                        results.ok, results.dropped, results.shed, results.failed, results.percentile(.5),
+                        results.percentile(.95), results.percentile(.99), results.percentile(1));
+            });
+        }
+
+        private DataObject toData() {
+            DataObject priorities = DataObject.empty();
+            classes.forEach((priority, results) -> priorities.put(priority.name(), results.toData()));
+            return DataObject.empty()
+                    .put("speed", speed)
+                    .put("durationMillis", durationMillis)
+                    .put("throughput", getThroughput())
+                    .put("priorities", priorities);
+        }
+
+    }
+
+    /** The results of one priority class's requests */
+    @Getter
+    public static class ClassResults {
+
+        private long ok, dropped, shed, failed;
+
+        /** The latency of each request, from submission until it finished, in recorded milliseconds */
+        private final List<Long> latencies = new ArrayList<>();
+
+        private synchronized void record(Throwable error, long latencyMillis) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if(cause == null)
+                ok++;
+            else if(cause instanceof RequestDroppedException)
+                dropped++;
+            else if(cause instanceof DeadlineExceededException)
+                shed++;
+            else
+                failed++;
+            latencies.add(latencyMillis);
+        }
+
+        /**
+         * @param fraction 0-1
+         * @return The latency (recorded ms) the fraction of requests finished within
+         */
+        public synchronized long percentile(double fraction) {
+            if(latencies.isEmpty())
+                return 0;
+            List<Long> sorted = new ArrayList<>(latencies);
+            Collections.sort(sorted);
+            return sorted.get(Math.max(0, (int) Math.ceil(fraction * sorted.size()) - 1));
+        }
+
+        private synchronized DataObject toData() {
+            return DataObject.empty()
+                    .put("requests", latencies.size())
+                    .put("ok", ok)
+                    .put("dropped", dropped)
+                    .put("shed", shed)
+                    .put("failed", failed)
+                    .put("p50", percentile(.5))
+                    .put("p95", percentile(.95))
+                    .put("p99", percentile(.99))
+                    .put("max", percentile(1));
+        }
+
+    }
+
+}
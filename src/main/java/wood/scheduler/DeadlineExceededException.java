@@ -0,0 +1,10 @@
+package wood.scheduler;
+
+/** Thrown (inside a future) when an OpenAI API request is shed because it can no longer finish before its deadline. */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,145 @@
+package wood.scheduler;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * A weighted fair queue across guilds.  Each guild with queued items has a virtual finish tag - the virtual time at
+ * which its next item would finish if every active guild were served at a rate proportional to its weight - and the
+ * guild with the earliest tag is served next.  Within a guild, each thread has its own sub-queue, in the given order
+ * (e.g. earliest deadline first), and the threads take turns.  Adding and polling are O(log n) in the number of guilds
+ * with queued items (and of items queued for the thread).  Not thread-safe.
+ * @param <T> The type of the queued items
+ */
+public class FairQueue<T> {
+
+    /** The finish tag of the item served most recently */
+    private double virtualTime = 0;
+
+    /** Each guild with queued items */
+    private final Map<Long, GuildQueue> guilds = new HashMap<>();
+
+    /** The guilds with queued items, by finish tag */
+    private final TreeSet<GuildQueue> byFinishTag = new TreeSet<>(
+            Comparator.comparingDouble((GuildQueue guild) -> guild.finishTag).thenComparingLong(guild -> guild.guildID));
+
+    /** The order of the items queued for each thread */
+    private final Comparator<T> threadOrder;
+
+    private int size = 0;
+
+    /** @param threadOrder The order each thread's items are served in - it should be consistent with the order they're
+     *                     added in when it can't tell them apart, since they're otherwise served in any order */
+    public FairQueue(Comparator<T> threadOrder) {
+        this.threadOrder = threadOrder;
+    }
+
+    /**
+     * @param guildID The ID of the guild the item is for
+     * @param threadID The ID of the thread the item is for - items for the same thread are served in threadOrder
+     * @param weight The guild's weight (> 0) - a guild with twice the weight of another is served twice as often
+     * @param item The item to queue
+     */
+    public void add(long guildID, long threadID, double weight, T item) {
+        GuildQueue guild = guilds.get(guildID);
+        if(guild == null) {
+            // a guild that was idle starts now, rather than being credited for the time it was idle
+            guild = new GuildQueue(guildID, weight);
+            guild.finishTag = virtualTime + 1 / weight;
+            guilds.put(guildID, guild);
+            guild.add(threadID, item);
+            byFinishTag.add(guild);
+        }
+        else {
+            guild.weight = weight;
+            guild.add(threadID, item);
+        }
+        size++;
+    }
+
+    /** @return The next item in fair order, without removing it - or null if the queue is empty */
+    public T peek() {
+        return byFinishTag.isEmpty() ? null : byFinishTag.first().peek();
+    }
+
+    /**
+     * Removes the next item in fair order.
+     * @return The item, or null if the queue is empty
+     */
+    public T poll() {
+        GuildQueue guild = byFinishTag.pollFirst();
+        if(guild == null)
+            return null;
+
+        T item = guild.poll();
+        size--;
+        // tags only move forward - a guild that was idle has a tag ahead of those already queued
+        virtualTime = Math.max(virtualTime, guild.finishTag);
+        if(guild.isEmpty()) {
+            guilds.remove(guild.guildID);
+        }
+        else {
+            guild.finishTag += 1 / guild.weight;
+            byFinishTag.add(guild);
+        }
+        return item;
+    }
+
+    /** @return The number of queued items */
+    public int size() {
+        return size;
+    }
+
+    private class GuildQueue {
+        private final long guildID;
+        private double weight;
+        private double finishTag;
+
+        /** Each thread's sub-queue */
+        private final Map<Long, PriorityQueue<T>> threads = new HashMap<>();
+
+        /** The threads with queued items, in the order they take turns */
+        private final ArrayDeque<Long> turns = new ArrayDeque<>();
+
+        private GuildQueue(long guildID, double weight) {
+            this.guildID = guildID;
+            this.weight = weight;
+        }
+
+        private void add(long threadID, T item) {
+            PriorityQueue<T> thread = threads.get(threadID);
+            if(thread == null) {
+                thread = new PriorityQueue<>(threadOrder);
+                threads.put(threadID, thread);
+                turns.addLast(threadID);
+            }
+            thread.add(item);
+        }
+
+        /** @return The first item of the thread whose turn it is */
+        private T peek() {
+            return threads.get(turns.peekFirst()).peek();
+        }
+
+        /** @return The first item of the thread whose turn it is - the thread's next item waits for the guild's others */
+        private T poll() {
+            long threadID = turns.pollFirst();
+            PriorityQueue<T> thread = threads.get(threadID);
+            T item = thread.poll();
+            if(thread.isEmpty())
+                threads.remove(threadID);
+            else
+                turns.addLast(threadID);
+            return item;
+        }
+
+        private boolean isEmpty() {
+            return turns.isEmpty();
+        }
+    }
+
+}
@@ -0,0 +1,369 @@
+package wood.scheduler;
+
+import lombok.extern.slf4j.Slf4j;
+import wood.Settings;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every OpenAI API request made with GPTRequest.requestAsync() flows through here.  Requests are dispatched by
+ * priority class, and within a class by weighted fair queuing across guilds (see FairQueue) - each model has its own
+ * fair queue, since each has its own capacity - to a fixed pool of workers, with at most the model's concurrency limit
+ * (from the global Settings) in flight per model, of which lower classes may only use a share.  Within a thread,
+ * requests are dispatched earliest deadline first.  A request that can no longer finish before its deadline - judged
+ * from the model's recent latency - is failed with a DeadlineExceededException instead of being sent, so no one pays
+ * for a completion that won't be seen.
+ */
+@Slf4j
+public class OpenAIScheduler {
+
+    /** The number of API requests that can be in flight at once, across all models */
+    public static final int WORKER_THREADS = 16;
+
+    /** The assumed latency of a model before any of its requests have finished */
+    private static final double INITIAL_LATENCY_ESTIMATE_MS = 2000;
+
+    /** How much weight each finished request is given in a model's latency estimate */
+    private static final double LATENCY_SMOOTHING = .2;
+
+    /** How often the queue wait times of each priority class are logged (if any requests were dispatched) */
+    private static final long STATS_LOG_INTERVAL_MINUTES = 5;
+
+    /** Guards the queues and the in flight counts, and is waited on by idle workers */
+    private static final Object lock = new Object();
+
+    /** The order of each thread's jobs - earliest deadline first, then first come first served */
+    private static final Comparator<Job<?>> BY_DEADLINE =
+            Comparator.comparingLong((Job<?> job) -> job.context.getDeadline()).thenComparingLong(job -> job.sequence);
+
+    /** Each priority class's queued jobs, for each model - guarded by lock.  Shed jobs are left in them, and skipped. */
+    private static final Map<Priority, Map<String, FairQueue<Job<?>>>> queues = new EnumMap<>(Priority.class);
+
+    /** Each model's queued jobs across all priority classes, by deadline - so the ones that are late are found
+     *  without a scan, even while the model has no capacity.  Guarded by lock. */
+    private static final Map<String, TreeSet<Job<?>>> queuedByDeadline = new HashMap<>();
+
+    /** Numbers the jobs in the order they're submitted */
+    private static final AtomicLong submitted = new AtomicLong();
+
+    /** The number of jobs queued for each model, in each priority class - guarded by lock */
+    private static final Map<Priority, Map<String, Integer>> queuedPerModel = new EnumMap<>(Priority.class);
+
+    /** The number of requests in flight for each model - guarded by lock */
+    private static final Map<String, Integer> inFlight = new HashMap<>();
+
+    /** Each model's exponentially weighted moving average latency, in milliseconds */
+    private static final Map<String, Double> latencyEstimates = new ConcurrentHashMap<>();
+
+    /** The number of requests shed because they couldn't finish before their deadline */
+    private static final AtomicLong shed = new AtomicLong();
+
+    /** The time each priority class's requests have spent queued */
+    private static final Map<Priority, QueueWaitStats> queueWaits = new EnumMap<>(Priority.class);
+
+    static {
+        for(Priority priority : Priority.values()) {
+            queues.put(priority, new HashMap<>());
+            queuedPerModel.put(priority, new HashMap<>());
+            queueWaits.put(priority, new QueueWaitStats());
+        }
+
+        for(int i = 0; i < WORKER_THREADS; i++) {
+            Thread worker = new Thread(OpenAIScheduler::work, "openai-worker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "openai-stats");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleAtFixedRate(OpenAIScheduler::logQueueWaits, STATS_LOG_INTERVAL_MINUTES, STATS_LOG_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    /**
+     * Queues an API request.
+     * @param context Who the request is for, and its deadline
+     * @param priority The request's priority class
+     * @param model The model the request is for - used to limit concurrency, and estimate how long it will take
+     * @param request Makes the (blocking) API request
+     * @return A future of the request's result - failed with a DeadlineExceededException if the request was shed, or a
+     *         RequestDroppedException if it's of a class that's dropped when the model is saturated, and it was
+     */
+    public static <T> CompletableFuture<T> submit(RequestContext context, Priority priority, String model, Callable<T> request) {
+        Job<T> job = new Job<>(context, priority, model, request);
+        job.queueSpan.setAttribute("model", model).setAttribute("priority", priority.name());
+        if(isLate(job)) {
+            shed(job);
+            return job.future;
+        }
+
+        double weight = Math.max(.01, Settings.get(context.getGuildID()).getFairQueueWeight());
+        synchronized(lock) {
+            if(!priority.isDroppedWhenSaturated() || !isSaturated(job)) {
+                queues.get(priority).computeIfAbsent(model, m -> new FairQueue<>(BY_DEADLINE))
+                        .add(context.getGuildID(), context.getThreadID(), weight, job);
+                queuedByDeadline.computeIfAbsent(model, m -> new TreeSet<>(BY_DEADLINE)).add(job);
+                queuedPerModel.get(priority).merge(model, 1, Integer::sum);
+                lock.notify();
+                return job.future;
+            }
+        }
+
+        // the future's callbacks run outside the lock, so they can't hold up the workers
+        queueWaits.get(priority).dropped.incrementAndGet();
+        RequestDroppedException dropped = new RequestDroppedException(
+                "The " + model + " model is saturated, so the " + priority + " request wasn't sent");
+        job.queueSpan.end(dropped);
+        job.future.completeExceptionally(dropped);
+        return job.future;
+    }
+
+    /** @return The number of requests shed so far because they couldn't finish before their deadline. */
+    public static long getShedCount() {
+        return shed.get();
+    }
+
+    /**
+     * @param priority A priority class
+     * @return The mean time (ms) the class's requests have waited in the queue before being dispatched
+     */
+    public static double getMeanQueueWaitMillis(Priority priority) {
+        return queueWaits.get(priority).getMean();
+    }
+
+    /**
+     * @param priority A priority class
+     * @return The longest time (ms) one of the class's requests has waited in the queue before being dispatched
+     */
+    public static long getMaxQueueWaitMillis(Priority priority) {
+        return queueWaits.get(priority).max.get();
+    }
+
+    private static void work() {
+        while(true) {
+            Job<?> job;
+            try {
+                job = take();
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            try {
+                run(job);
+            } finally {
+                // no other worker is woken for the capacity this frees - this one takes the next job itself
+                synchronized(lock) {
+                    inFlight.merge(job.model, -1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for, and removes, the first queued job - highest priority class first, then in fair order - whose model has
+     * capacity for it.  Jobs that can no longer finish before their deadline are shed along the way - after
+     * releasing the lock, since their futures' callbacks run on this thread.
+     * @return A job that has been counted as in flight
+     */
+    private static Job<?> take() throws InterruptedException {
+        while(true) {
+            Job<?> late;
+            synchronized(lock) {
+                while((late = pollLate()) == null) {
+                    Job<?> job = poll();
+                    if(job != null) {
+                        inFlight.merge(job.model, 1, Integer::sum);
+                        queueWaits.get(job.priority).record(System.currentTimeMillis() - job.submitTime);
+                        job.queueSpan.end();
+                        return job;
+                    }
+                    // wake up when the next queued job becomes late, if nothing can be dispatched before then
+                    long untilLate = millisUntilNextLate();
+                    if(untilLate == Long.MAX_VALUE)
+                        lock.wait();
+                    else
+                        lock.wait(Math.max(1, untilLate));
+                }
+            }
+            shed(late);
+        }
+    }
+
+    /**
+     * @return The first queued job that can be dispatched now - the highest priority class first, then of the class's
+     *         models with capacity, the one whose next job in fair order was submitted first - or null if none.
+     *         O(log n) in the number of guilds with queued jobs, for each model with queued jobs.  Hold lock.
+     */
+    private static Job<?> poll() {
+        for(Priority priority : Priority.values()) {
+            FairQueue<Job<?>> next = null;
+            for(Map.Entry<String, FairQueue<Job<?>>> model : queues.get(priority).entrySet()) {
+                FairQueue<Job<?>> queue = model.getValue();
+                while(queue.peek() != null && queue.peek().shed)
+                    queue.poll();
+                if(queue.peek() != null && hasCapacity(model.getKey(), priority)
+                        && (next == null || queue.peek().sequence < next.peek().sequence))
+                    next = queue;
+            }
+            if(next != null) {
+                Job<?> job = next.poll();
+                queuedByDeadline.get(job.model).remove(job);
+                queuedPerModel.get(priority).merge(job.model, -1, Integer::sum);
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes a queued job that can no longer finish before its deadline - it stays in its FairQueue, marked as shed.
+     * @return The job, or null if none is late.  Hold lock.
+     */
+    private static Job<?> pollLate() {
+        for(TreeSet<Job<?>> jobs : queuedByDeadline.values()) {
+            if(!jobs.isEmpty() && isLate(jobs.first())) {
+                Job<?> job = jobs.pollFirst();
+                job.shed = true;
+                queuedPerModel.get(job.priority).merge(job.model, -1, Integer::sum);
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /** @return The milliseconds until the first queued job becomes late, or Long.MAX_VALUE if none will.  Hold lock. */
+    private static long millisUntilNextLate() {
+        long until = Long.MAX_VALUE;
+        for(Map.Entry<String, TreeSet<Job<?>>> model : queuedByDeadline.entrySet()) {
+            if(model.getValue().isEmpty() || model.getValue().first().context.getDeadline() == Long.MAX_VALUE)
+                continue;
+            double estimate = latencyEstimates.getOrDefault(model.getKey(), INITIAL_LATENCY_ESTIMATE_MS);
+            until = Math.min(until, model.getValue().first().context.getRemainingMillis() - (long) estimate);
+        }
+        return until;
+    }
+
+    /** @return Whether the model has capacity for a request of the priority class.  Hold lock. */
+    private static boolean hasCapacity(String model, Priority priority) {
+        int modelLimit = Settings.get().getModelConcurrencyLimit(model);
+        return inFlight.getOrDefault(model, 0) < priority.getConcurrencyLimit(modelLimit);
+    }
+
+    /**
+     * @return Whether the job would have to wait for its model - counting the requests in flight, and those queued in
+     *         the same or a higher priority class.  Hold lock.
+     */
+    private static boolean isSaturated(Job<?> job) {
+        int modelLimit = Settings.get().getModelConcurrencyLimit(job.model);
+        int queuedAhead = 0;
+        for(Priority priority : Priority.values())
+            if(priority.compareTo(job.priority) <= 0)
+                queuedAhead += queuedPerModel.get(priority).getOrDefault(job.model, 0);
+        return inFlight.getOrDefault(job.model, 0) + queuedAhead >= job.priority.getConcurrencyLimit(modelLimit);
+    }
+
+    /** Runs the job - its callbacks run here too, with the job's trace as the current span */
+    private static <T> void run(Job<T> job) {
+        // a job cancelled while it was queued (e.g. the thread it was for couldn't be created) isn't sent
+        if(job.future.isCancelled())
+            return;
+        try(Tracer.Scope scope = Tracer.activate(job.context.getSpan())) {
+            Span call = job.context.getSpan().child("openai.completion").setAttribute("model", job.model);
+            long start = System.currentTimeMillis();
+            T result;
+            try {
+                result = job.request.call();
+            } catch(Throwable e) {
+                call.end(e);
+                job.future.completeExceptionally(e);
+                return;
+            }
+            call.end();
+            latencyEstimates.merge(job.model, (double) (System.currentTimeMillis() - start),
+                    (estimate, latency) -> estimate + LATENCY_SMOOTHING * (latency - estimate));
+            job.future.complete(result);
+        }
+    }
+
+    /** @return Whether the job can no longer finish before its deadline, judged from its model's recent latency */
+    private static boolean isLate(Job<?> job) {
+        return job.context.getRemainingMillis() < latencyEstimates.getOrDefault(job.model, INITIAL_LATENCY_ESTIMATE_MS);
+    }
+
+    /** Fails a job that can't finish before its deadline.  Don't hold lock - the future's callbacks run here. */
+    private static void shed(Job<?> job) {
+        double estimate = latencyEstimates.getOrDefault(job.model, INITIAL_LATENCY_ESTIMATE_MS);
+        shed.incrementAndGet();
+        log.warn(String.format("Shed a %s request for thread %d - %d ms left before its deadline, but the model takes ~%.0f ms",
+                job.model, job.context.getThreadID(), job.context.getRemainingMillis(), estimate));
+        DeadlineExceededException late = new DeadlineExceededException(
+                "The request can't finish before its deadline, so it wasn't sent");
+        job.queueSpan.end(late);
+        job.future.completeExceptionally(late);
+    }
+
+    /** Logs the queue wait times of each priority class, if any requests were dispatched since the last log */
+    private static void logQueueWaits() {
+        StringBuilder stats = new StringBuilder();
+        for(Map.Entry<Priority, QueueWaitStats> entry : queueWaits.entrySet()) {
+            QueueWaitStats wait = entry.getValue();
+            if(wait.count.get() > 0 || wait.dropped.get() > 0)
+                stats.append(String.format("%n%s: %d dispatched, %.0f ms mean wait, %d ms max wait, %d dropped",
+                        entry.getKey(), wait.count.get(), wait.getMean(), wait.max.get(), wait.dropped.get()));
+        }
+        if(!stats.isEmpty())
+            log.info("OpenAI request queue waits:" + stats);
+    }
+
+    /** The time a priority class's requests have spent queued */
+    private static class QueueWaitStats {
+        private final AtomicLong count = new AtomicLong(), totalMillis = new AtomicLong(), max = new AtomicLong(),
+                dropped = new AtomicLong();
+
+        private void record(long waitMillis) {
+            count.incrementAndGet();
+            totalMillis.addAndGet(waitMillis);
+            max.accumulateAndGet(waitMillis, Math::max);
+        }
+
+        private double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : (double) totalMillis.get() / n;
+        }
+    }
+
+    private static class Job<T> {
+        private final RequestContext context;
+        private final Priority priority;
+        private final String model;
+        private final Callable<T> request;
+        private final long submitTime = System.currentTimeMillis();
+        private final long sequence = submitted.incrementAndGet();
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        /** Whether the job was shed while queued - it's skipped when its FairQueue reaches it.  Guarded by lock. */
+        private boolean shed;
+
+        /** The time the job spends queued */
+        private final Span queueSpan;
+
+        private Job(RequestContext context, Priority priority, String model, Callable<T> request) {
+            this.queueSpan = context.getSpan().child("openai.queue");
+            this.context = context;
+            this.priority = priority;
+            this.model = model;
+            this.request = request;
+        }
+    }
+
+}
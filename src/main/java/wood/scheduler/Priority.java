@@ -0,0 +1,34 @@
+package wood.scheduler;
+
+import lombok.Getter;
+
+/** The priority classes of OpenAI API requests, highest first.  Requests of a higher class are always dispatched first. */
+public enum Priority {
+    /** A reply someone is waiting for - e.g. a /prompt completion, or a /chat reply */
+    INTERACTIVE(1, false),
+    /** A /chat chatbot's greeting */
+    GREETING(1, false),
+    /** Nice to have, but nothing breaks without it - e.g. a generated thread title */
+    COSMETIC(.75, true),
+    /** Work no one is waiting for */
+    BACKGROUND(.5, false);
+
+    /** The fraction of a model's concurrency limit requests of this class may use, leaving the rest for higher classes */
+    private final double capacityShare;
+
+    /** Whether requests of this class are dropped, rather than queued, when their share of the model is in use */
+    @Getter private final boolean droppedWhenSaturated;
+
+    Priority(double capacityShare, boolean droppedWhenSaturated) {
+        this.capacityShare = capacityShare;
+        this.droppedWhenSaturated = droppedWhenSaturated;
+    }
+
+    /**
+     * @param modelConcurrencyLimit The maximum number of requests to the model that can be in flight at once
+     * @return The maximum number of requests to the model that can be in flight when one of this class is dispatched
+     */
+    public int getConcurrencyLimit(int modelConcurrencyLimit) {
+        return Math.max(1, (int) (modelConcurrencyLimit * capacityShare));
+    }
+}
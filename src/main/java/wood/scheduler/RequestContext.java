@@ -0,0 +1,82 @@
+package wood.scheduler;
+
+import lombok.Getter;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
+import net.dv8tion.jda.api.interactions.Interaction;
+import wood.Settings;
+import wood.tracing.Span;
+import wood.tracing.Tracer;
+
+/** Who an OpenAI API request is made for, and when its result is no longer useful. */
+@Getter
+public class RequestContext {
+
+    /** A context for requests that aren't made for anyone in particular (e.g. testing the API key) */
+    public static final RequestContext NONE = new RequestContext(0, 0, 0, Long.MAX_VALUE);
+
+    /** Discord interaction tokens (used to reply to a deferred interaction) expire after 15 minutes */
+    private static final long INTERACTION_TOKEN_LIFETIME_MS = 15 * 60 * 1000;
+
+    /** The ID of the guild the request is made for, or 0 if none */
+    private final long guildID;
+
+    /** The ID of the user the request is made for, or 0 if none */
+    private final long userID;
+
+    /** The ID of the thread the request is made for, or 0 if none */
+    private final long threadID;
+
+    /** When the result stops being useful (e.g. no one will see it), in epoch milliseconds */
+    private final long deadline;
+
+    /** The span of the event or interaction the request is made for - Span.NOOP if it isn't traced */
+    private final Span span;
+
+    public RequestContext(long guildID, long userID, long threadID, long deadline) {
+        this(guildID, userID, threadID, deadline, Span.NOOP);
+    }
+
+    public RequestContext(long guildID, long userID, long threadID, long deadline, Span span) {
+        this.guildID = guildID;
+        this.userID = userID;
+        this.threadID = threadID;
+        this.deadline = deadline;
+        this.span = span;
+    }
+
+    /**
+     * @param interaction A modal or slash command interaction, which has been (or will be) deferred
+     * @param threadID The ID of the thread the request is for, or 0 if none
+     * @return A context whose deadline is the guild's replyDeadlineMillis after the interaction was created,
+     *         and never after the interaction's token expires - in the trace of the event being handled.
+     */
+    public static RequestContext of(Interaction interaction, long threadID) {
+        long created = interaction.getTimeCreated().toInstant().toEpochMilli();
+        long deadline = Math.min(created + Settings.get(interaction.getGuild()).getReplyDeadlineMillis(),
+                created + INTERACTION_TOKEN_LIFETIME_MS);
+        return new RequestContext(guildIdOf(interaction.getGuild()), interaction.getUser().getIdLong(), threadID, deadline,
+                Tracer.current());
+    }
+
+    /**
+     * @param event A message sent in a thread
+     * @return A context whose deadline is the guild's replyDeadlineMillis after the message was sent - in the trace
+     *         of the event being handled.
+     */
+    public static RequestContext of(MessageReceivedEvent event) {
+        long sent = event.getMessage().getTimeCreated().toInstant().toEpochMilli();
+        return new RequestContext(guildIdOf(event.getGuild()), event.getAuthor().getIdLong(), event.getChannel().getIdLong(),
+                sent + Settings.get(event.getGuild()).getReplyDeadlineMillis(), Tracer.current());
+    }
+
+    /** @return The milliseconds left until the deadline (negative once it has passed). */
+    public long getRemainingMillis() {
+        return deadline == Long.MAX_VALUE ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
+    }
+
+    private static long guildIdOf(Guild guild) {
+        return guild == null ? 0 : guild.getIdLong();
+    }
+
+}
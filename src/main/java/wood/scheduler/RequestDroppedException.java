@@ -0,0 +1,10 @@
+package wood.scheduler;
+
+/** Thrown (inside a future) when a low priority OpenAI API request is dropped because its model is saturated. */
+public class RequestDroppedException extends RuntimeException {
+
+    public RequestDroppedException(String message) {
+        super(message);
+    }
+
+}
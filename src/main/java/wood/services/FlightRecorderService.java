@@ -0,0 +1,86 @@
+package wood.services;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import lombok.extern.slf4j.Slf4j;
+import wood.jfr.ChatContextTrimEvent;
+import wood.jfr.HandlerDispatchEvent;
+import wood.jfr.OpenAIRequestEvent;
+import wood.jfr.PromptGrowthEvent;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Optional;
+
+/**
+ * Runs a continuous Java Flight Recorder recording - JFR's default (low overhead) settings, plus the bot's own events -
+ * kept in a ring buffer of at most -jfr <max size in MB>, which can be dumped to RECORDINGS_DIR on demand.
+ */
+@Slf4j
+public class FlightRecorderService {
+
+    public static final String RECORDINGS_DIR = "recordings";
+
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd_HH-mm-ss");
+
+    private static Recording recording;
+
+    /**
+     * Starts the continuous recording if -jfr <max size in MB> is given
+     * @param args Command line arguments
+     * @throws IllegalArgumentException if -jfr is given without a positive size
+     * @throws IOException if JFR's default configuration can't be read
+     * @throws ParseException if JFR's default configuration can't be parsed
+     */
+    public static void load(String[] args) throws IllegalArgumentException, IOException, ParseException {
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-jfr")) {
+                // if -jfr both isn't the last argument, and the next argument is a size
+                if(i+1 != args.length && args[i+1].matches("[1-9][0-9]*"))
+                    start(Long.parseLong(args[i + 1]) * 1024 * 1024);
+                else
+                    throw new IllegalArgumentException("error: -jfr requires the maximum size of the recording in MB. "
+                            + "Usage: -jfr <max size in MB>");
+            }
+        }
+    }
+
+    private static void start(long maxSizeBytes) throws IOException, ParseException {
+        recording = new Recording(Configuration.getConfiguration("default"));
+        recording.setName("DiscordGPT3");
+        recording.setToDisk(true);
+        recording.setMaxSize(maxSizeBytes);
+        recording.enable(OpenAIRequestEvent.class);
+        recording.enable(HandlerDispatchEvent.class);
+        recording.enable(ChatContextTrimEvent.class);
+        recording.enable(PromptGrowthEvent.class);
+        recording.start();
+        log.info("Started a continuous flight recording of at most " + maxSizeBytes / (1024 * 1024) + " MB");
+    }
+
+    /** @return Whether a continuous recording is running */
+    public static boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * Writes the contents of the recording's ring buffer to a new file in RECORDINGS_DIR - the recording continues
+     * @return The file written, or empty if no recording is running
+     * @throws IOException if the file can't be written
+     */
+    public static Optional<Path> dump() throws IOException {
+        if(recording == null)
+            return Optional.empty();
+
+        Path dir = Files.createDirectories(Path.of(RECORDINGS_DIR));
+        Path file = dir.resolve("discordgpt3_" + LocalDateTime.now().format(FILE_TIMESTAMP) + ".jfr");
+        recording.dump(file);
+        log.info("Flight recording dumped to '" + file.toAbsolutePath() + "'");
+        return Optional.of(file);
+    }
+
+}
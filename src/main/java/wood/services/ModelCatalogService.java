@@ -0,0 +1,50 @@
+package wood.services;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.models.ModelCatalog;
+import wood.models.ModelInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Loads the ModelCatalog from CATALOG_FILE, e.g.
+ * <pre>{"models": [{"name": "text-davinci-002", "aliases": ["text-davinci-001"], "instructModel": "text-davinci-002",
+ *              "usdPer1kTokens": 0.06, "contextTokens": 4097, "concurrencyLimit": 8}]}</pre>
+ * Changes are applied on restart.
+ */
+@Slf4j
+public class ModelCatalogService {
+
+    public static final String CATALOG_FILE = "models.json";
+
+    /**
+     * Loads and publishes the catalog in CATALOG_FILE, creating it with the default catalog if it doesn't exist
+     * @throws IOException if the file can't be read or created
+     * @throws IllegalArgumentException if the catalog is invalid
+     */
+    public static void load() throws IOException {
+        Path catalogFile = Path.of(CATALOG_FILE).toAbsolutePath();
+        if(!Files.exists(catalogFile)) {
+            ModelCatalog.publish(ModelCatalog.DEFAULT_MODELS);
+            Files.writeString(catalogFile, ModelCatalog.toData().toPrettyString());
+            log.info("Default model catalog saved to '" + catalogFile + "'");
+            return;
+        }
+
+        DataArray models = DataObject.fromJson(Files.readAllBytes(catalogFile)).getArray("models");
+        List<ModelInfo> catalog = IntStream.range(0, models.length())
+                .mapToObj(i -> ModelInfo.fromData(models.getObject(i))).collect(Collectors.toList());
+        if(catalog.isEmpty())
+            throw new IllegalArgumentException("'" + catalogFile + "' has no models");
+        ModelCatalog.publish(catalog);
+        log.info("Loaded " + catalog.size() + " models from '" + catalogFile + "'");
+    }
+
+}
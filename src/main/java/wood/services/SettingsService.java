@@ -0,0 +1,214 @@
+package wood.services;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+import wood.cluster.Cluster;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads Settings from SETTINGS_FILE, and watches the file so edits are applied without a restart.
+ * The file holds the global settings, and a "guilds" object mapping guild IDs to the settings they override, e.g.
+ * <pre>{"model": "text-davinci-002", "guilds": {"123456789012345678": {"model": "curie"}}}</pre>
+ * In clustered mode, the guild settings changed by commands (e.g. /model) are saved to SHARED_SETTINGS_FILE in the
+ * cluster's directory instead, in the same "guilds" format, and every worker applies them over its SETTINGS_FILE.
+ */
+@Slf4j
+public class SettingsService {
+
+    public static final String SETTINGS_FILE = "settings.json";
+
+    /** Edits made by saving a file often arrive as several modify events - they're read once they settle */
+    private static final long RELOAD_DELAY_MS = 100;
+
+    /** (clustered mode) The file in the cluster's directory holding the guild settings changed by commands */
+    public static final String SHARED_SETTINGS_FILE = "guild-settings.json";
+
+    /** Guards writes to SETTINGS_FILE, so concurrent /model commands don't lose each other's changes */
+    private static final Object fileLock = new Object();
+
+    /** (clustered mode) When SHARED_SETTINGS_FILE was last modified when it was read, or null if it didn't exist */
+    private static volatile FileTime sharedSettingsModified = null;
+
+    /**
+     * Loads and publishes the settings in SETTINGS_FILE (creating it with the default settings if it doesn't exist),
+     * then starts watching it for changes.
+     * @throws IOException if the file can't be created, or the watcher can't be started
+     */
+    public static void load() throws IOException {
+        Path settingsFile = Path.of(SETTINGS_FILE).toAbsolutePath();
+        if(!Files.exists(settingsFile)) {
+            writeSettingsFile(new Settings().toData().put("guilds", DataObject.empty()));
+            log.info("Default settings saved to '" + settingsFile + "'");
+        }
+
+        publish(readSettings());
+        watch(settingsFile);
+        if(Cluster.isEnabled())
+            pollSharedSettings();
+    }
+
+    /**
+     * Overrides a guild's model, saving it to SETTINGS_FILE (or in clustered mode, SHARED_SETTINGS_FILE - so every
+     * worker uses it) and publishing it straight away.
+     * @param guildID The ID of the guild
+     * @param model The model the guild should use by default
+     * @throws IOException if the settings can't be read or written
+     */
+    public static void setGuildModel(long guildID, String model) throws IOException {
+        synchronized(fileLock) {
+            if(Cluster.isEnabled()) {
+                // other workers may be writing the file too
+                Path sharedSettingsFile = Cluster.getDirectory().resolve(SHARED_SETTINGS_FILE);
+                try(FileChannel lockFile = FileChannel.open(sharedSettingsFile.resolveSibling(SHARED_SETTINGS_FILE + ".lock"),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE); FileLock lock = lockFile.lock()) {
+                    DataObject json = readSharedSettingsFile();
+                    writeFile(sharedSettingsFile, setGuildSetting(json, guildID, "model", model));
+                }
+            }
+            else
+                writeFile(Path.of(SETTINGS_FILE).toAbsolutePath(),
+                        setGuildSetting(readSettingsFile(), guildID, "model", model));
+
+            publish(readSettings());
+        }
+    }
+
+    /** @return The settings json, with the guild's setting set */
+    private static DataObject setGuildSetting(DataObject json, long guildID, String key, Object value) {
+        DataObject guilds = json.optObject("guilds").orElseGet(DataObject::empty);
+        DataObject guild = guilds.optObject(Long.toString(guildID)).orElseGet(DataObject::empty);
+        return json.put("guilds", guilds.put(Long.toString(guildID), guild.put(key, value)));
+    }
+
+    /**
+     * Builds and publishes the global and per-guild settings.
+     * @param json The contents of SETTINGS_FILE
+     */
+    private static void publish(DataObject json) {
+        Settings global = new Settings(json, new Settings());
+        Map<Long, Settings> guilds = new HashMap<>();
+        json.optObject("guilds").ifPresent(guildsJson -> guildsJson.keys().forEach(guildID ->
+                guilds.put(Long.parseLong(guildID), new Settings(guildsJson.getObject(guildID), global))));
+
+        Settings.publish(global, guilds);
+    }
+
+    /** Starts a daemon thread that reloads the settings whenever settingsFile changes */
+    private static void watch(Path settingsFile) throws IOException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        settingsFile.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread watcher = new Thread(() -> {
+            while(true) {
+                try {
+                    WatchKey key = watchService.take();
+                    boolean settingsChanged = key.pollEvents().stream()
+                            .anyMatch(e -> settingsFile.getFileName().equals(e.context()));
+                    key.reset();
+
+                    if(settingsChanged) {
+                        Thread.sleep(RELOAD_DELAY_MS);
+                        watchService.poll(); // drop the rest of the burst of events from the same save
+
+                        synchronized(fileLock) {
+                            publish(readSettings());
+                        }
+                        log.info("Settings reloaded from '" + settingsFile + "'");
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // keep the last valid settings published, e.g. if the file was saved with a JSON syntax error
+                    log.error("Error reloading settings from '" + settingsFile + "': " + e.getMessage());
+                }
+            }
+        }, "settings-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * (clustered mode) Starts a daemon thread that reloads the settings whenever SHARED_SETTINGS_FILE changes - it's
+     * polled, since file watching doesn't work on every shared file system
+     */
+    private static void pollSharedSettings() {
+        Path sharedSettingsFile = Cluster.getDirectory().resolve(SHARED_SETTINGS_FILE);
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "shared-settings-poller");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleWithFixedDelay(() -> {
+            try {
+                FileTime modified = Files.exists(sharedSettingsFile) ? Files.getLastModifiedTime(sharedSettingsFile) : null;
+                if(modified == null || modified.equals(sharedSettingsModified))
+                    return;
+                synchronized(fileLock) {
+                    publish(readSettings());
+                }
+                log.info("Settings reloaded from '" + sharedSettingsFile + "'");
+            } catch (Exception e) {
+                log.error("Error reloading settings from '" + sharedSettingsFile + "': " + e.getMessage());
+            }
+        }, Cluster.HEARTBEAT_INTERVAL_MS, Cluster.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return The contents of SETTINGS_FILE - in clustered mode, with SHARED_SETTINGS_FILE's guild settings applied */
+    private static DataObject readSettings() throws IOException {
+        DataObject json = readSettingsFile();
+        if(!Cluster.isEnabled())
+            return json;
+
+        DataObject guilds = json.optObject("guilds").orElseGet(DataObject::empty);
+        readSharedSettingsFile().optObject("guilds").ifPresent(sharedGuilds -> sharedGuilds.keys().forEach(guildID -> {
+            DataObject guild = guilds.optObject(guildID).orElseGet(DataObject::empty);
+            DataObject sharedGuild = sharedGuilds.getObject(guildID);
+            sharedGuild.keys().forEach(key -> guild.put(key, sharedGuild.get(key)));
+            guilds.put(guildID, guild);
+        }));
+        return json.put("guilds", guilds);
+    }
+
+    /** @return The contents of SETTINGS_FILE */
+    private static DataObject readSettingsFile() throws IOException {
+        return DataObject.fromJson(Files.readAllBytes(Path.of(SETTINGS_FILE)));
+    }
+
+    /** @return (clustered mode) The contents of SHARED_SETTINGS_FILE, or an empty object if it doesn't exist */
+    private static DataObject readSharedSettingsFile() throws IOException {
+        Path sharedSettingsFile = Cluster.getDirectory().resolve(SHARED_SETTINGS_FILE);
+        if(!Files.exists(sharedSettingsFile)) {
+            sharedSettingsModified = null;
+            return DataObject.empty();
+        }
+        sharedSettingsModified = Files.getLastModifiedTime(sharedSettingsFile);
+        return DataObject.fromJson(Files.readAllBytes(sharedSettingsFile));
+    }
+
+    /**
+     * Overwrite SETTINGS_FILE if it exists, or create it if it doesn't
+     * @param json The settings to write
+     */
+    private static void writeSettingsFile(DataObject json) throws IOException {
+        writeFile(Path.of(SETTINGS_FILE).toAbsolutePath(), json);
+    }
+
+    /** Overwrites (or creates) a settings file */
+    private static void writeFile(Path file, DataObject json) throws IOException {
+        // write to a temporary file first, so the watcher never reads a half written file
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        Files.writeString(tmp, json.toPrettyString());
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,117 @@
+package wood.tracing;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A timed operation within a trace.  Spans of unsampled traces are Span.NOOP, whose methods do nothing, so tracing
+ * costs next to nothing for them.  A sampled span is exported by SpanExporter when it ends.
+ */
+@Getter
+public class Span {
+
+    /** The span of every unsampled trace - records nothing */
+    public static final Span NOOP = new Span();
+
+    /** 16 bytes and 8 bytes, in lowercase hex - as OTLP expects */
+    private final String traceID, spanID;
+
+    /** The ID of the parent span, or null for the root span of a trace */
+    private final String parentSpanID;
+
+    private final String name;
+    private final long startEpochNanos;
+    private final long startNanoTime;
+    private long endEpochNanos;
+
+    /** Attributes describing the operation (e.g. the model of an OpenAI API request) */
+    private final Map<String, Object> attributes;
+
+    /** The error the operation failed with, or null if it succeeded (or hasn't ended) */
+    private String error;
+
+    private boolean ended = false;
+
+    private Span() {
+        traceID = spanID = parentSpanID = name = null;
+        startEpochNanos = startNanoTime = 0;
+        attributes = Collections.emptyMap();
+    }
+
+    Span(String traceID, String parentSpanID, String name) {
+        this.traceID = traceID;
+        this.spanID = randomHex(8);
+        this.parentSpanID = parentSpanID;
+        this.name = name;
+        Instant now = Instant.now();
+        this.startEpochNanos = now.getEpochSecond() * 1_000_000_000 + now.getNano();
+        this.startNanoTime = System.nanoTime();
+        this.attributes = new LinkedHashMap<>();
+    }
+
+    /**
+     * @param name The name of the operation
+     * @return A span for an operation within this one, started now - NOOP if this span isn't sampled
+     */
+    public Span child(String name) {
+        return isSampled() ? new Span(traceID, spanID, name) : NOOP;
+    }
+
+    /**
+     * @param key The attribute's name
+     * @param value A String, number, or boolean
+     * @return This span, for chaining
+     */
+    public synchronized Span setAttribute(String key, Object value) {
+        if(isSampled())
+            attributes.put(key, value);
+        return this;
+    }
+
+    /** Ends the span, and exports it.  Only the first call has any effect. */
+    public void end() {
+        end(null);
+    }
+
+    /**
+     * Ends the span, and exports it.  Only the first call has any effect.
+     * @param error The error the operation failed with, or null if it succeeded
+     */
+    public void end(Throwable error) {
+        if(!isSampled())
+            return;
+        synchronized(this) {
+            if(ended)
+                return;
+            ended = true;
+            endEpochNanos = startEpochNanos + (System.nanoTime() - startNanoTime);
+            if(error != null)
+                this.error = error.getClass().getSimpleName() + ": " + error.getMessage();
+        }
+        SpanExporter.export(this);
+    }
+
+    /** @return Whether this span's trace was sampled, and so it will be exported */
+    public boolean isSampled() {
+        return this != NOOP;
+    }
+
+    /** @return A new trace's root span */
+    static Span startTrace(String name) {
+        return new Span(randomHex(16), null, name);
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i = 0; i < bytes; i += 8)
+            hex.append(String.format("%016x", random.nextLong()));
+        return hex.substring(0, bytes * 2);
+    }
+
+}
@@ -0,0 +1,148 @@
+package wood.tracing;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes ended spans to TRACE_DIR/spans.jsonl on a background thread - one OTLP/JSON ExportTraceServiceRequest per
+ * line, so the file can be replayed into an OpenTelemetry collector.  The file is rotated once it reaches
+ * MAX_FILE_BYTES, keeping MAX_ROTATED_FILES old files.  Spans are dropped, rather than slowing the bot, if the
+ * writer falls behind.
+ */
+@Slf4j
+public class SpanExporter {
+
+    public static final String TRACE_DIR = "traces";
+    private static final String FILE_NAME = "spans", FILE_EXTENSION = ".jsonl";
+    private static final long MAX_FILE_BYTES = 16 * 1024 * 1024;
+    private static final int MAX_ROTATED_FILES = 4;
+
+    /** The most spans that can be waiting to be written */
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** The number of spans dropped because the queue was full */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        Thread writer = new Thread(SpanExporter::write, "span-exporter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** @param span An ended, sampled span to export */
+    static void export(Span span) {
+        if(!queue.offer(span) && dropped.incrementAndGet() % 1000 == 1)
+            log.warn("The span exporter is falling behind - " + dropped.get() + " spans dropped");
+    }
+
+    /** @return The number of spans dropped so far because the exporter fell behind */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private static void write() {
+        Path dir = Path.of(TRACE_DIR), file = dir.resolve(FILE_NAME + FILE_EXTENSION);
+        List<Span> batch = new ArrayList<>();
+        while(true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+
+                Files.createDirectories(dir);
+                try(BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for(Span span : batch) {
+                        out.write(toOTLP(span).toString());
+                        out.newLine();
+                    }
+                }
+                if(Files.size(file) >= MAX_FILE_BYTES)
+                    rotate(dir);
+            } catch(InterruptedException e) {
+                return;
+            } catch(IOException e) {
+                log.error("Error writing spans to " + file, e);
+                sleepQuietly(); // don't spin if e.g. the disk is full
+            }
+            batch.clear();
+        }
+    }
+
+    /** Renames spans.jsonl to spans.1.jsonl, spans.1.jsonl to spans.2.jsonl, and so on - deleting the oldest file */
+    private static void rotate(Path dir) throws IOException {
+        Files.deleteIfExists(dir.resolve(FILE_NAME + "." + MAX_ROTATED_FILES + FILE_EXTENSION));
+        for(int i = MAX_ROTATED_FILES - 1; i >= 0; i--) {
+            Path from = dir.resolve(FILE_NAME + (i == 0 ? "" : "." + i) + FILE_EXTENSION);
+            if(Files.exists(from))
+                Files.move(from, dir.resolve(FILE_NAME + "." + (i + 1) + FILE_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /** @return The span as an OTLP/JSON ExportTraceServiceRequest */
+    private static DataObject toOTLP(Span span) {
+        DataArray attributes = DataArray.empty();
+        synchronized(span) {
+            for(Map.Entry<String, Object> attribute : span.getAttributes().entrySet())
+                attributes.add(DataObject.empty().put("key", attribute.getKey()).put("value", toAnyValue(attribute.getValue())));
+        }
+
+        DataObject otlpSpan = DataObject.empty()
+                .put("traceId", span.getTraceID())
+                .put("spanId", span.getSpanID())
+                .put("name", span.getName())
+                .put("kind", 1) // SPAN_KIND_INTERNAL
+                .put("startTimeUnixNano", Long.toString(span.getStartEpochNanos()))
+                .put("endTimeUnixNano", Long.toString(span.getEndEpochNanos()))
+                .put("attributes", attributes)
+                .put("status", span.getError() == null ? DataObject.empty().put("code", 1) // STATUS_CODE_OK
+                        : DataObject.empty().put("code", 2).put("message", span.getError())); // STATUS_CODE_ERROR
+        if(span.getParentSpanID() != null)
+            otlpSpan.put("parentSpanId", span.getParentSpanID());
+
+        DataObject resource = DataObject.empty().put("attributes", DataArray.empty().add(DataObject.empty()
+                .put("key", "service.name").put("value", DataObject.empty().put("stringValue", "DiscordGPT3"))));
+        DataObject scopeSpans = DataObject.empty()
+                .put("scope", DataObject.empty().put("name", "wood.tracing"))
+                .put("spans", DataArray.empty().add(otlpSpan));
+        return DataObject.empty().put("resourceSpans", DataArray.empty().add(DataObject.empty()
+                .put("resource", resource)
+                .put("scopeSpans", DataArray.empty().add(scopeSpans))));
+    }
+
+    /** @return The value as an OTLP AnyValue */
+    private static DataObject toAnyValue(Object value) {
+        if(value instanceof Boolean)
+            return DataObject.empty().put("boolValue", value);
+        if(value instanceof Double || value instanceof Float)
+            return DataObject.empty().put("doubleValue", value);
+        if(value instanceof Number)
+            return DataObject.empty().put("intValue", value.toString()); // int64s are strings in OTLP/JSON
+        return DataObject.empty().put("stringValue", String.valueOf(value));
+    }
+
+    private static void sleepQuietly() {
+        try {
+            TimeUnit.SECONDS.sleep(1);
+        } catch(InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
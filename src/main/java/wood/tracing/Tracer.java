@@ -0,0 +1,78 @@
+package wood.tracing;
+
+import net.dv8tion.jda.api.requests.RestAction;
+import wood.Settings;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts traces, and tracks the span of the work running on each thread.  Code that runs synchronously within an event
+ * handler, or within an OpenAI API request's callbacks, can add spans to its trace with Tracer.current().child(...);
+ * work handed to another thread carries its span explicitly (e.g. in a RequestContext).
+ */
+public class Tracer {
+
+    private static final ThreadLocal<Span> current = ThreadLocal.withInitial(() -> Span.NOOP);
+
+    /**
+     * Starts a trace, sampled at the global traceSampleRate setting
+     * @param name The name of the trace's root span
+     * @return The trace's root span - Span.NOOP if the trace isn't sampled
+     */
+    public static Span startTrace(String name) {
+        double sampleRate = Settings.get().getTraceSampleRate();
+        if(sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return Span.NOOP;
+        return Span.startTrace(name);
+    }
+
+    /** @return The span of the work running on this thread, or Span.NOOP if none */
+    public static Span current() {
+        return current.get();
+    }
+
+    /**
+     * Makes span the current span of this thread until the returned scope is closed
+     * @param span The span of the work about to run on this thread
+     * @return A scope which restores the previous current span when closed
+     */
+    public static Scope activate(Span span) {
+        Span previous = current.get();
+        current.set(span);
+        return () -> current.set(previous);
+    }
+
+    /**
+     * Queues a RestAction within a span that's a child of the current span.  Failures are handled by JDA's default
+     * failure handler, as with RestAction.queue().
+     * @param action The Discord API request
+     * @param name The name of the span
+     */
+    public static <T> void queue(RestAction<T> action, String name) {
+        Span span = current().child(name);
+        action.queue(result -> span.end(), error -> {
+            span.end(error);
+            RestAction.getDefaultFailure().accept(error);
+        });
+    }
+
+    /**
+     * Submits a RestAction within a span
+     * @param action The Discord API request
+     * @param parent The span of the work the request is part of
+     * @param name The name of the span
+     * @return A future of the action's result
+     */
+    public static <T> CompletableFuture<T> submit(RestAction<T> action, Span parent, String name) {
+        Span span = parent.child(name);
+        return action.submit().whenComplete((result, error) -> span.end(error));
+    }
+
+    /** Restores the previous current span when closed */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+}
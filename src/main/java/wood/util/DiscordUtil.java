@@ -1,11 +1,9 @@
 package wood.util;
 
 import lombok.extern.slf4j.Slf4j;
-import net.dv8tion.jda.api.entities.Message;
-import net.dv8tion.jda.api.entities.ThreadChannel;
-import net.dv8tion.jda.api.events.message.GenericMessageEvent;
-import net.dv8tion.jda.api.events.message.react.GenericMessageReactionEvent;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.IntStream;
 
 import wood.util.StringUtil;
@@ -13,16 +11,11 @@ import wood.util.StringUtil;
 @Slf4j
 public class DiscordUtil {
 
-    public static boolean isFirstMessageInThread(GenericMessageReactionEvent event, Message msg) {
-        if(event.getChannelType().isThread()) {
-            return msg.getId().equals(
-                    event.getChannel().getHistoryFromBeginning(1).complete().getRetrievedHistory().get(0).getId());
-        }
-        else {
-            log.error("Message is not in a thread.");
-            return false;
-        }
-    }
+    /** The maximum number of characters in a Discord message */
+    public static final int MAX_MESSAGE_LENGTH = 2000;
+
+    /** Discord's underline markup */
+    private static final String UNDERLINE = "__";
 
     /**
      * @param text The string to underline
@@ -42,19 +35,70 @@ public class DiscordUtil {
         return String.join("\n", lines);
     }
 
-    public static Message getFirstMessageInThread(ThreadChannel thread) {
-        return thread.getHistoryFromBeginning(1).complete().getRetrievedHistory().get(0);
-    }
+    /**
+     * Splits text into chunks that each fit in a Discord message, preferring to split after a newline, then after
+     * whitespace.  Underlines are preserved across chunk boundaries - a chunk that ends inside an underline has it
+     * closed at its end, and reopened at the start of the next chunk.  Splitting is greedy from the start of the text,
+     * so appending to the text only changes the last chunk (and, when it overflows, the chunk before it).
+     * @param text The text to split, which may contain underlines added by addDiscordUnderline()
+     * @param maxLength The maximum length of each chunk, including added underline markup
+     * @return The chunks, in order - empty if text is empty
+     */
+    public static List<String> splitPreservingUnderline(String text, int maxLength) {
+        // find the underline markers the same way Discord does - left to right, without overlapping
+        boolean[] isMarkerStart = new boolean[text.length()];
+        for(int i = text.indexOf(UNDERLINE); i != -1; i = text.indexOf(UNDERLINE, i + UNDERLINE.length()))
+            isMarkerStart[i] = true;
+
+        List<String> chunks = new ArrayList<>();
+        boolean underlined = false; // whether the previous chunk ended inside an underline
+        int start = 0;
+        while(start < text.length()) {
+            String prefix = underlined ? UNDERLINE : "";
+            int end = Math.min(text.length(), start + maxLength - prefix.length() - UNDERLINE.length());
 
-    public static boolean isFirstMessageInThread(GenericMessageEvent event, Message msg) {
-        if(event.getChannelType().isThread()) {
-            return msg.getId().equals(
-                    event.getChannel().getHistoryFromBeginning(1).complete().getRetrievedHistory().get(0).getId());
+            if(end < text.length()) {
+                int split = text.lastIndexOf('\n', end - 1);
+                if(split <= start)
+                    split = Math.max(text.lastIndexOf(' ', end - 1), text.lastIndexOf('\t', end - 1));
+                if(split > start)
+                    end = split + 1;
+                if(isMarkerStart[end - 1]) // never split an underline marker in half
+                    end--;
+            }
+
+            int markers = 0;
+            for(int i = start; i < end; i++)
+                if(isMarkerStart[i] && i + UNDERLINE.length() <= end)
+                    markers++;
+            boolean endsUnderlined = underlined ^ (markers % 2 == 1);
+
+            chunks.add(prefix + text.substring(start, end) + (endsUnderlined ? UNDERLINE : ""));
+            underlined = endsUnderlined;
+            start = end;
         }
-        else {
-            log.error("Message is not in a thread.");
-            return false;
+        return chunks;
+    }
+
+    /**
+     * Joins chunks split by splitPreservingUnderline() back into their text - an underline closed at the end of a chunk
+     * and reopened at the start of the next is rejoined.  (Where one underline really ends a chunk, and another starts
+     * the next, they're merged - which renders the same, and reads the same once the markup is removed.)
+     * @param chunks The chunks, in order
+     * @return The text
+     */
+    public static String joinPreservingUnderline(List<String> chunks) {
+        StringBuilder text = new StringBuilder();
+        for(String chunk : chunks) {
+            if(text.length() >= UNDERLINE.length() && text.lastIndexOf(UNDERLINE) == text.length() - UNDERLINE.length()
+                    && chunk.startsWith(UNDERLINE)) {
+                text.setLength(text.length() - UNDERLINE.length());
+                text.append(chunk, UNDERLINE.length(), chunk.length());
+            }
+            else
+                text.append(chunk);
         }
+        return text.toString();
     }
 
 }
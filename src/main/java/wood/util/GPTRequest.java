@@ -1,16 +1,33 @@
 package wood.util;
 
-import com.theokanning.openai.OpenAiService;
-import com.theokanning.openai.completion.CompletionChoice;
-import com.theokanning.openai.completion.CompletionRequest;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.backend.CompletionTask;
+import wood.budget.BudgetExceededException;
+import wood.budget.Budgets;
+import wood.jfr.OpenAIRequestEvent;
+import wood.ledger.UsageLedger;
+import wood.ledger.UsageRecord;
+import wood.models.ContextLengthExceededException;
+import wood.models.ModelCatalog;
+import wood.replay.TrafficRecorder;
+import wood.scheduler.DeadlineExceededException;
+import wood.scheduler.OpenAIScheduler;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.scheduler.RequestDroppedException;
+import wood.tracing.Span;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-/** A wrapper class for com.theokanning.openai. Requires GPTRequest.apiKey to be set. */
+/** A completion request, made with the CompletionBackend its task is routed to - by default the OpenAI API, which
+ *  requires GPTRequest.apiKey to be set. */
 @Slf4j
 public class GPTRequest {
 
@@ -19,30 +36,33 @@ public class GPTRequest {
     /** The OpenAI API key to use for all requests. Can set using the testAndSetApiKey method. */
     public static String apiKey = "";
 
+    /** The most stop sequences a request can have */
+    public static final int MAX_STOP_SEQUENCES = 4;
+
     /** Language models */
     public static final String davinci = "davinci", curie = "curie", babbage = "babbage", ada = "ada",
             inDavinci = "text-davinci-002", inCurie = "text-curie-001", inBabbage = "text-babbage-001", inAda = "text-ada-001";
 
 
-    /** counter for how many tokens have been used by each language model (irrespective of Base series vs Instruct) */
-    private static int davinciTokenCounter = 0, curieTokenCounter = 0, babbageTokenCounter = 0, adaTokenCounter = 0;
-
-
     // ----------- instance fields -----------
 
-    private final OpenAiService service;
-    private final CompletionRequest completionRequest;
-    private final CompletionRequest.CompletionRequestBuilder completionRequestBuilder;
-
     /** The prompt to use for this API request */
     @Getter private final String prompt;
 
     /** Language Model to use for this API request */
     @Getter private final String model;
 
-    /** Maximum number of tokens use in the API request (including the prompt). */
+    /** The most tokens each completion can use (the API's max_tokens) - capped so the prompt and maxTokens fit in the
+     *  model's usable context (see GPTUtil.usableContextTokens), and less than 1 if the prompt alone doesn't */
     @Getter private final int maxTokens;
 
+    /** The number of tokens in the prompt (estimated) - the API bills them once, however many completions there are */
+    @Getter private final int promptTokens;
+
+    /** The most tokens each completion is meant to use - maxTokens, without the prompt tokens the builder may have
+     *  added to it.  requestAsync() charges the budgets for this much of each generation. */
+    @Getter private final int completionBudget;
+
     /** (default .7) a value 0-1 with 1 being very creative, 0 being very factual/deterministic */
     @Getter private final double temperature;
 
@@ -59,38 +79,53 @@ public class GPTRequest {
     /** Echo back the prompt in addition to the completion. */
     @Getter private final boolean echoPrompt;
 
-    /** (default 1), queries GPT-3 this many times, then selects the 'best' generation to return */
+    /** (default 1), queries GPT-3 this many times, then selects the 'best' generation to return - at least choices */
     @Getter private final int bestOf;
 
+    /** (default 1) How many completions are returned, best first - see requestChoices() */
+    @Getter private final int choices;
+
     /** The Strings that GPT-3 will stop generating after (can have 4 stop sequences max) */
     @Getter private final List<String> stopSequences;
 
+    /** Who this API request is made for, and its deadline */
+    @Getter private final RequestContext context;
+
+    /** The priority class requestAsync() schedules this API request with */
+    @Getter private final Priority priority;
+
+    /** What the completion is for - decides which CompletionBackend generates it */
+    @Getter private final CompletionTask task;
+
+    /** The text the task is about (e.g. the prompt a title is for), for backends that can't follow the prompt's
+     *  instructions - the prompt, unless set */
+    @Getter private final String subject;
+
+    /** How long the API call took (ms), or -1 if it hasn't been made */
+    @Getter private volatile long latencyMillis = -1;
+
+    /** The tokens the API call used (estimated, including the prompt and bestOf's discarded generations), or -1 if it
+     *  hasn't been answered */
+    @Getter private volatile int usedTokens = -1;
+
     public GPTRequest(GPTRequestBuilder builder) {
         this.prompt = builder.prompt;
         this.model = builder.model;
-        this.maxTokens = builder.maxTokens;
+        this.promptTokens = GPTUtil.countTokens(builder.prompt);
+        this.maxTokens = Math.min(builder.maxTokens, GPTUtil.usableContextTokens(builder.model) - promptTokens);
+        this.completionBudget = Math.min(maxTokens, builder.maxTokens - builder.promptTokensInMaxTokens);
         this.temperature = builder.temperature;
         this.topP = builder.topP;
         this.frequencyPenalty = builder.frequencyPenalty;
         this.presencePenalty = builder.presencePenalty;
         this.echoPrompt = builder.echoPrompt;
-        this.bestOf = builder.bestOf;
+        this.bestOf = Math.max(builder.bestOf, builder.choices); // the API rejects a bestOf under the number of choices
+        this.choices = builder.choices;
         this.stopSequences = builder.stopSequences;
-
-        service = new OpenAiService(apiKey);
-        completionRequestBuilder = CompletionRequest.builder()
-                .prompt(prompt);
-
-        completionRequestBuilder.maxTokens(maxTokens);
-        completionRequestBuilder.temperature(temperature);
-        completionRequestBuilder.topP(topP);
-        completionRequestBuilder.frequencyPenalty(frequencyPenalty);
-        completionRequestBuilder.presencePenalty(presencePenalty);
-        completionRequestBuilder.echo(echoPrompt);
-        if(stopSequences != null)
-            completionRequestBuilder.stop(stopSequences);
-
-        completionRequest = completionRequestBuilder.build();
+        this.context = builder.context;
+        this.priority = builder.priority;
+        this.task = builder.task;
+        this.subject = builder.subject != null ? builder.subject : builder.prompt;
     }
 
     /**
@@ -103,7 +138,7 @@ public class GPTRequest {
         String originalAPIKey = GPTRequest.apiKey;
         try {
             GPTRequest.apiKey = apiKey;
-            new GPTRequestBuilder(ada, "", 1, false).build().request();
+            CompletionBackends.OPENAI.complete(new GPTRequestBuilder(ada, "", 1, false).build());
             return true;
         }catch(Exception e) {
             GPTRequest.apiKey = originalAPIKey;
@@ -112,13 +147,42 @@ public class GPTRequest {
     }
 
     /**
-     * Makes an OpenAI API request.
+     * Generates the completion with the backend its task is routed to (blocking).
      * @return If echoPrompt is true, returns the prompt + completion, else the completion is returned.
      */
     public String request() {
-        logTokenUsage(maxTokens);
-        List<CompletionChoice> outputList = service.createCompletion(model, completionRequest).getChoices();
-        return outputList.get(0).getText();
+        return request(CompletionBackends.forRequest(this));
+    }
+
+    private String request(CompletionBackend backend) {
+        return requestChoices(backend).get(0);
+    }
+
+    private List<String> requestChoices(CompletionBackend backend) {
+        checkFitsContext();
+        OpenAIRequestEvent event = new OpenAIRequestEvent();
+        event.begin();
+        long start = System.currentTimeMillis();
+        try {
+            List<String> outputs = choices == 1 ? List.of(backend.complete(this)) : backend.completeChoices(this);
+            latencyMillis = System.currentTimeMillis() - start;
+            event.outcome = "ok";
+            int completionTokens = countCompletionTokens(outputs);
+            usedTokens = promptTokens + completionTokens;
+            if(backend.isBilled())
+                recordUsage(completionTokens, latencyMillis);
+            return outputs;
+        } catch(RuntimeException e) {
+            event.outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            if(event.shouldCommit()) {
+                event.model = model;
+                event.promptTokens = GPTUtil.countTokens(prompt);
+                event.maxTokens = maxTokens;
+                event.commit();
+            }
+        }
     }
 
     /**
@@ -127,20 +191,110 @@ public class GPTRequest {
      * @return If echoPrompt is true, returns the prompt + completion, else the completion is returned.
      */
     public String request(boolean endAtLastPunctuationMark) {
-        String output = request();
+        return requestChoices(endAtLastPunctuationMark).get(0);
+    }
 
-        if(endAtLastPunctuationMark) {
-            // get the index of the last punctuation mark inside the completion (omitting the prompt)
-            Optional<Integer> lastPunctuationIndex = StringUtil.lastIndexOf(output, "[.!?]",
-                    echoPrompt ? prompt.length() : 0);
+    /**
+     * Makes an OpenAI API request for the request's choices completions, in one call.
+     * @param endAtLastPunctuationMark Whether each completion should be cut off after its last punctuation mark
+     * @return The completions, best first - each the prompt + completion if echoPrompt is true, else the completion.
+     *         Backends that can only generate one completion at a time return just the one.
+     */
+    public List<String> requestChoices(boolean endAtLastPunctuationMark) {
+        return requestChoices(CompletionBackends.forRequest(this), endAtLastPunctuationMark);
+    }
 
-            if(lastPunctuationIndex.isPresent())
-                return output.substring(0, lastPunctuationIndex.get() + 1);
-        }
+    private List<String> requestChoices(CompletionBackend backend, boolean endAtLastPunctuationMark) {
+        List<String> outputs = requestChoices(backend);
+        return endAtLastPunctuationMark ? outputs.stream().map(this::endAtLastPunctuationMark).toList() : outputs;
+    }
+
+    /**
+     * @param output The output of a request
+     * @return The output, cut off after the last punctuation mark inside the completion (if it has one)
+     */
+    private String endAtLastPunctuationMark(String output) {
+        // get the index of the last punctuation mark inside the completion (omitting the prompt)
+        Optional<Integer> lastPunctuationIndex = StringUtil.lastIndexOf(output, "[.!?]",
+                echoPrompt ? prompt.length() : 0);
+
+        if(lastPunctuationIndex.isPresent())
+            return output.substring(0, lastPunctuationIndex.get() + 1);
 
         return output;
     }
 
+    /**
+     * Charges the request to its context's budgets, then queues it with the OpenAIScheduler, without blocking the
+     * calling thread - unless its task is routed to a local backend, in which case it's generated straight away.
+     * @param endAtLastPunctuationMark Whether the completion should be cut off after the last punctuation mark
+     * @return A future of the output of request(endAtLastPunctuationMark) - failed with a DeadlineExceededException
+     *         if the request can't finish before its context's deadline, a RequestDroppedException if it's
+     *         low priority and the model is saturated, or a ContextLengthExceededException if its prompt doesn't fit
+     *         in the model's context
+     * @throws BudgetExceededException If the request would exceed its user's, guild's, or thread's budget
+     */
+    public CompletableFuture<String> requestAsync(boolean endAtLastPunctuationMark) {
+        return requestChoicesAsync(endAtLastPunctuationMark).thenApply(outputs -> outputs.get(0));
+    }
+
+    /**
+     * requestAsync(), for the request's choices completions - all of bestOf's generations are charged to the budgets.
+     * @param endAtLastPunctuationMark Whether each completion should be cut off after its last punctuation mark
+     * @return A future of the output of requestChoices(endAtLastPunctuationMark), failed as requestAsync()'s can be -
+     *         cancelling it before the request is sent refunds the request's charges, and it isn't sent
+     * @throws BudgetExceededException If the request would exceed its user's, guild's, or thread's budget
+     */
+    public CompletableFuture<List<String>> requestChoicesAsync(boolean endAtLastPunctuationMark) {
+        try {
+            checkFitsContext();
+        } catch(ContextLengthExceededException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletionBackend backend = CompletionBackends.forRequest(this);
+        if(backend.isLocal()) {
+            try {
+                return CompletableFuture.completedFuture(requestChoices(backend, endAtLastPunctuationMark));
+            } catch(RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        // the most the request is meant to use: the prompt (once), and each of bestOf's generations up to completionBudget
+        int chargedTokens = promptTokens + Math.max(0, completionBudget) * bestOf;
+        Span admission = context.getSpan().child("openai.admit").setAttribute("tokens", chargedTokens);
+        Budgets.Admission admitted;
+        try {
+            admitted = Budgets.admit(context, model, chargedTokens);
+        } finally {
+            admission.end();
+        }
+        long submitted = System.currentTimeMillis();
+        // whichever comes first: the request being sent, or it being cancelled - a cancelled request is never sent
+        AtomicBoolean claimed = new AtomicBoolean();
+        CompletableFuture<List<String>> future = OpenAIScheduler.submit(context, priority, model, () -> {
+            if(!claimed.compareAndSet(false, true))
+                throw new CancellationException("The request was cancelled before it was sent");
+            List<String> outputs = requestChoices(backend, endAtLastPunctuationMark);
+            // answered requests are charged what they used, rather than the most they could have
+            admitted.settle(usedTokens, Math.round(GPTUtil.tokensToUSD(usedTokens, model) * 1_000_000));
+            return outputs;
+        });
+        // requests that were shed, dropped, or cancelled were never sent, and the API doesn't charge for those it
+        // rejects as too long
+        future.whenComplete((outputs, e) -> {
+            if(e instanceof DeadlineExceededException || e instanceof RequestDroppedException
+                    || e instanceof ContextLengthExceededException
+                    || (e instanceof CancellationException && claimed.compareAndSet(false, true)))
+                admitted.refund();
+        });
+        if(TrafficRecorder.isRecording())
+            future.whenComplete((outputs, e) ->
+                    TrafficRecorder.recordCompletion(this, submitted, outputs != null ? outputs.get(0) : null, e));
+        return future;
+    }
+
     public static class GPTRequestBuilder {
 
         /** Language Model to use for this API request */
@@ -150,9 +304,12 @@ public class GPTRequest {
         /** The prompt to use for this API request */
         @Getter private String prompt;
 
-        /** Maximum number of tokens use in the API request (including the prompt). */
+        /** The most tokens each completion can use (the API's max_tokens) */
         @Getter private int maxTokens;
 
+        /** The prompt's tokens, if they were added to maxTokens - they aren't part of the completion's budget */
+        private int promptTokensInMaxTokens;
+
         /** (default false) Echo back the prompt in addition to the completion. */
         @Getter private boolean echoPrompt;
 
@@ -172,9 +329,24 @@ public class GPTRequest {
         /** (default 1), queries GPT-3 this many times, then selects the 'best' generation to return */
         @Getter private int bestOf;
 
+        /** (default 1) How many completions are returned, best first */
+        @Getter private int choices = 1;
+
         /** The Strings that GPT-3 will stop generating after (can have 4 stop sequences max) */
         @Getter private List<String> stopSequences;
 
+        /** (default RequestContext.NONE) Who this API request is made for, and its deadline */
+        @Getter private RequestContext context = RequestContext.NONE;
+
+        /** (default Priority.INTERACTIVE) The priority class requestAsync() schedules this API request with */
+        @Getter private Priority priority = Priority.INTERACTIVE;
+
+        /** (default CompletionTask.PROMPT) What the completion is for - decides which CompletionBackend generates it */
+        @Getter private CompletionTask task = CompletionTask.PROMPT;
+
+        /** (default the prompt) The text the task is about, for backends that can't follow the prompt's instructions */
+        @Getter private String subject;
+
         /**
          * Starts to build an API request for the given language model
          *
@@ -183,7 +355,7 @@ public class GPTRequest {
          *               Valid Instruct Series models:
          *               UtilGPT.inDavinci, UtilGPT.inCurie, UtilGPT.inBabbage, UtilGPT.inAda
          * @param prompt Prompt sent to the language model
-         * @param maxTokens Maximum number of tokens use in the API request
+         * @param maxTokens The most tokens the completion can use
          */
         public GPTRequestBuilder(String model, String prompt, int maxTokens) {
             this.model = model;
@@ -205,13 +377,14 @@ public class GPTRequest {
          *               Valid Instruct Series models:
          *               UtilGPT.inDavinci, UtilGPT.inCurie, UtilGPT.inBabbage, UtilGPT.inAda
          * @param prompt Prompt sent to the language model
-         * @param maxTokens Maximum number of tokens use in the API request
+         * @param maxTokens The most tokens the completion can use
          * @param addPromptTokensToMaxTokens Whether the number of tokens in the prompt should be added to maxTokens
          */
         public GPTRequestBuilder(String model, String prompt, int maxTokens, boolean addPromptTokensToMaxTokens) {
             this.model = model;
             this.prompt = prompt;
-            this.maxTokens = addPromptTokensToMaxTokens ? maxTokens + GPTUtil.countTokens(prompt) : maxTokens;
+            this.promptTokensInMaxTokens = addPromptTokensToMaxTokens ? GPTUtil.countTokens(prompt) : 0;
+            this.maxTokens = maxTokens + promptTokensInMaxTokens;
             this.temperature = .7;
             this.topP = 1;
             this.frequencyPenalty = 0;
@@ -232,12 +405,13 @@ public class GPTRequest {
         }
 
         /** @param prompt Prompt sent to the language model
-         *  @param maxTokens Maximum number of tokens use in the API request
+         *  @param maxTokens The most tokens the completion can use
          *  @param addPromptTokensToMaxTokens Whether the number of tokens in the prompt should be added to maxTokens
          *  @return This GPTRequestBuilder, for chaining */
         public GPTRequestBuilder promptAndTokens(String prompt, int maxTokens, boolean addPromptTokensToMaxTokens) {
             this.prompt = prompt;
-            this.maxTokens = addPromptTokensToMaxTokens ? maxTokens + GPTUtil.countTokens(prompt) : maxTokens;
+            this.promptTokensInMaxTokens = addPromptTokensToMaxTokens ? GPTUtil.countTokens(prompt) : 0;
+            this.maxTokens = maxTokens + promptTokensInMaxTokens;
             return this;
         }
 
@@ -254,11 +428,12 @@ public class GPTRequest {
         }
 
         /**
-         * @param maxTokens The total number of tokens use in the API request (including the prompt).
+         * @param maxTokens The most tokens each completion can use (the API's max_tokens)
          * @return This GPTRequestBuilder, for chaining
          */
         public GPTRequestBuilder maxTokens(int maxTokens) {
             this.maxTokens = maxTokens;
+            this.promptTokensInMaxTokens = 0;
             return this;
         }
 
@@ -304,6 +479,16 @@ public class GPTRequest {
             return this;
         }
 
+        /** @param choices (default 1) How many completions to return, best first - see requestChoices()
+         *  @return This GPTRequestBuilder, for chaining
+         */
+        public GPTRequestBuilder choices(int choices) {
+            if(choices < 1)
+                throw new IllegalArgumentException("choices must be positive, not " + choices);
+            this.choices = choices;
+            return this;
+        }
+
         /**
          * set the stop sequence, the String that GPT-3 will stop generating after
          *     (can have 4 stop sequences max)
@@ -311,13 +496,46 @@ public class GPTRequest {
          * @return This GPTRequestBuilder, for chaining
          */
         public GPTRequestBuilder stopSequences(List<String> stopSequences) {
-            if(stopSequences.size() > 4)
-                throw new IllegalArgumentException("Can only have 4 stop sequences max");
+            if(stopSequences.size() > MAX_STOP_SEQUENCES)
+                throw new IllegalArgumentException("Can only have " + MAX_STOP_SEQUENCES + " stop sequences max");
             else
                 this.stopSequences = stopSequences;
             return this;
         }
 
+        /** @param context Who this API request is made for, and its deadline - used by requestAsync() to schedule it
+         *  @return This GPTRequestBuilder, for chaining
+         */
+        public GPTRequestBuilder context(RequestContext context) {
+            this.context = context;
+            return this;
+        }
+
+        /** @param priority (default Priority.INTERACTIVE) The priority class requestAsync() schedules this API request with
+         *  @return This GPTRequestBuilder, for chaining
+         */
+        public GPTRequestBuilder priority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        /** @param task (default CompletionTask.PROMPT) What the completion is for - decides which CompletionBackend generates it
+         *  @return This GPTRequestBuilder, for chaining
+         */
+        public GPTRequestBuilder task(CompletionTask task) {
+            this.task = task;
+            return this;
+        }
+
+        /** @param subject (default the prompt) The text the task is about (e.g. the prompt a title is for), for
+         *                  backends that can't follow the prompt's instructions
+         *  @return This GPTRequestBuilder, for chaining
+         */
+        public GPTRequestBuilder subject(String subject) {
+            this.subject = subject;
+            return this;
+        }
+
         /** @param echoPrompt Whether to echo back the prompt in addition to the completion.
          *  @return This GPTRequestBuilder, for chaining
          */
@@ -328,35 +546,35 @@ public class GPTRequest {
 
     }
 
+    /** @throws ContextLengthExceededException if the prompt doesn't fit in the model's usable context, with room to
+     *                                        complete it */
+    private void checkFitsContext() {
+        if(maxTokens < 1)
+            throw new ContextLengthExceededException("The prompt (~" + GPTUtil.countTokens(prompt) + " tokens) doesn't fit in the "
+                    + model + " model's context of " + ModelCatalog.get(model).contextTokens() + " tokens");
+    }
+
     /**
-     * Logs the token usage every time request() is called.
-     * @param numTokens The number of tokens used in this API request.
+     * @param outputs The outputs of a successful request
+     * @return The completion tokens the request was billed for (estimated)
      */
-    private void logTokenUsage(int numTokens) {
-        switch(model) {
-            case davinci:
-            case inDavinci:
-                davinciTokenCounter += numTokens;
-                break;
-            case curie:
-            case inCurie:
-                curieTokenCounter += numTokens;
-                break;
-            case babbage:
-            case inBabbage:
-                babbageTokenCounter += numTokens;
-                break;
-            case ada:
-            case inAda:
-                adaTokenCounter += numTokens;
-                break;
-        }
+    private int countCompletionTokens(List<String> outputs) {
+        int completionTokens = 0;
+        for(String output : outputs)
+            completionTokens += GPTUtil.countTokens(echoPrompt ? output.substring(Math.min(prompt.length(), output.length())) : output);
+        // the generations bestOf discarded are billed too - estimated at the mean length of those returned
+        return completionTokens * Math.max(bestOf, outputs.size()) / outputs.size();
+    }
 
-        log.info(String.format("Total tokens used:%n%s%s%s%s-----------------------------------------%n",
-                davinciTokenCounter > 0 ? "Davinci: " + davinciTokenCounter + " token" + (davinciTokenCounter > 1 ? "s\n" : "\n") : "",
-                curieTokenCounter > 0 ? "Curie: " + curieTokenCounter + " token" + (curieTokenCounter > 1 ? "s\n" : "\n") : "",
-                babbageTokenCounter > 0 ? "Babbage: " + babbageTokenCounter + " token" + (babbageTokenCounter > 1 ? "s\n" : "\n") : "",
-                adaTokenCounter > 0 ? "Ada: " + adaTokenCounter + " token" + (adaTokenCounter > 1 ? "s\n" : "\n") : ""));
+    /**
+     * Appends the usage of a successful request to the usage ledger
+     * @param completionTokens The completion tokens the request was billed for
+     * @param latencyMillis How long the request took
+     */
+    private void recordUsage(int completionTokens, long latencyMillis) {
+        long costMicroUSD = Math.round(GPTUtil.tokensToUSD(promptTokens + completionTokens, model) * 1_000_000);
+        UsageLedger.record(new UsageRecord(System.currentTimeMillis(), context.getGuildID(), context.getUserID(),
+                context.getThreadID(), model, promptTokens, completionTokens, (int) latencyMillis, costMicroUSD));
     }
 
 }
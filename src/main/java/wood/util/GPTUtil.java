@@ -1,9 +1,14 @@
 package wood.util;
 
-import java.util.Arrays;
+import wood.models.ModelCatalog;
+import wood.models.ModelInfo;
 
 public class GPTUtil {
 
+    /** The fraction of a model's context prompts aren't fitted into - countTokens undercounts text that isn't English
+     *  prose (e.g. code), so a prompt that seems to fit may not.  The API's context length error is the authority. */
+    public static final double CONTEXT_SAFETY_MARGIN = .1;
+
     /**
      * Approximately counts the number of tokens in the text.
      *
@@ -18,35 +23,23 @@ public class GPTUtil {
     }
 
     /** @param model The model to check.
-     *  @return Case-sensitive check if the model is valid. */
+     *  @return Case-sensitive check if the model is in the ModelCatalog. */
     public static boolean isValidModel(String model) {
-        return Arrays.asList(GPTRequest.davinci, GPTRequest.curie, GPTRequest.babbage, GPTRequest.ada,
-                GPTRequest.inDavinci, GPTRequest.inCurie, GPTRequest.inBabbage, GPTRequest.inAda).contains(model);
+        return ModelCatalog.contains(model);
     }
 
     /** @return A ', ' separated string of model names. */
     public static String listModels() {
-        return GPTRequest.davinci + ", " + GPTRequest.curie + ", " + GPTRequest.babbage + ", " + GPTRequest.ada + ", " +
-                GPTRequest.inDavinci + ", " + GPTRequest.inCurie + ", " + GPTRequest.inBabbage + ", " + GPTRequest.inAda;
+        return String.join(", ", ModelCatalog.names());
     }
 
+    /**
+     * @param model A model's name or alias (case-insensitive)
+     * @return The name of the instruct series model equivalent to the model (see ModelCatalog.get() if it isn't in the
+     *         catalog)
+     */
     public static String convertToInstructModel(String model) {
-        switch(model.toLowerCase()) {
-            case GPTRequest.davinci:
-            case GPTRequest.inDavinci:
-                return GPTRequest.inDavinci;
-            case GPTRequest.curie:
-            case GPTRequest.inCurie:
-                return GPTRequest.inCurie;
-            case GPTRequest.babbage:
-            case GPTRequest.inBabbage:
-                return GPTRequest.inBabbage;
-            case GPTRequest.ada:
-            case GPTRequest.inAda:
-                return GPTRequest.inAda;
-            default:
-                throw new RuntimeException("Invalid model: " + model);
-        }
+        return ModelCatalog.resolve(model).orElseGet(() -> ModelCatalog.get(model)).instructModel();
     }
 
     /**
@@ -56,25 +49,7 @@ public class GPTUtil {
      * @return The number of tokens for the model that equate to the given USD.
      */
     public static int usdToTokens(double usd, String model) {
-        double priceDavinciToken = .06/1000, priceCurieToken = .006/1000, priceBabbageToken = .0012/1000,
-                priceAdaToken = .0008/1000;
-
-        switch(model) {
-            case GPTRequest.davinci:
-            case GPTRequest.inDavinci:
-                return (int) (usd / priceDavinciToken);
-            case GPTRequest.curie:
-            case GPTRequest.inCurie:
-                return (int) (usd / priceCurieToken);
-            case GPTRequest.babbage:
-            case GPTRequest.inBabbage:
-                return (int) (usd / priceBabbageToken);
-            case GPTRequest.ada:
-            case GPTRequest.inAda:
-                return (int) (usd / priceAdaToken);
-            default:
-                throw new RuntimeException("Invalid model: " + model);
-        }
+        return ModelCatalog.get(model).usdToTokens(usd);
     }
 
     /**
@@ -84,25 +59,27 @@ public class GPTUtil {
      * @return The USD that equates to the given tokens and model.
      */
     public static double tokensToUSD(int tokens, String model) {
-        double priceDavinciToken = .06/1000, priceCurieToken = .006/1000, priceBabbageToken = .0012/1000,
-                priceAdaToken = .0008/1000;
+        return ModelCatalog.get(model).tokensToUSD(tokens);
+    }
 
-        switch(model) {
-            case GPTRequest.davinci:
-            case GPTRequest.inDavinci:
-                return tokens * priceDavinciToken;
-            case GPTRequest.curie:
-            case GPTRequest.inCurie:
-                return tokens * priceCurieToken;
-            case GPTRequest.babbage:
-            case GPTRequest.inBabbage:
-                return tokens * priceBabbageToken;
-            case GPTRequest.ada:
-            case GPTRequest.inAda:
-                return tokens * priceAdaToken;
-            default:
-                throw new RuntimeException("Invalid model: " + model);
-        }
+    /**
+     * @param model The language model the prompt is for
+     * @param completionTokens The number of tokens the completion can have
+     * @param maxCostUSD The most the prompt and completion can cost together
+     * @return The most tokens the prompt can have - so the prompt and completion cost at most maxCostUSD, and fit in
+     *         the model's usable context
+     */
+    public static int maxPromptTokens(String model, int completionTokens, double maxCostUSD) {
+        return Math.min(ModelCatalog.get(model).usdToTokens(maxCostUSD), usableContextTokens(model)) - completionTokens;
+    }
+
+    /**
+     * @param model The language model
+     * @return The tokens of the model's context that a prompt and its completion are fitted into - the context, less
+     *         CONTEXT_SAFETY_MARGIN
+     */
+    public static int usableContextTokens(String model) {
+        return (int) (ModelCatalog.get(model).contextTokens() * (1 - CONTEXT_SAFETY_MARGIN));
     }
 
 }
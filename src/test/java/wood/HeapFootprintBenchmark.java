@@ -0,0 +1,183 @@
+package wood;
+
+import gnu.trove.map.TLongObjectMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.dv8tion.jda.api.JDABuilder;
+import net.dv8tion.jda.api.requests.GatewayIntent;
+import net.dv8tion.jda.api.utils.cache.CacheFlag;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import net.dv8tion.jda.internal.JDAImpl;
+import net.dv8tion.jda.internal.entities.EntityBuilder;
+import net.dv8tion.jda.internal.utils.config.AuthorizationConfig;
+import net.dv8tion.jda.internal.utils.config.MetaConfig;
+import net.dv8tion.jda.internal.utils.config.SessionConfig;
+import net.dv8tion.jda.internal.utils.config.ThreadingConfig;
+import net.dv8tion.jda.internal.utils.config.flags.ConfigFlag;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the heap JDA's caches hold for each RuntimeProfile, with synthetic guilds:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.HeapFootprintBenchmark
+ *      [-guilds 1000] [-channels 20] [-roles 15] [-members 1] [-emojis 30]
+ * </pre>
+ * Each profile's JDABuilder is read for its cache flags (less those its intents can't fill, as JDABuilder.build()
+ * drops them) and member cache policy, and the guilds are built with JDA's own EntityBuilder from GUILD_CREATE payloads
+ * like the gateway sends with the profile's intents - channels with role and member permission overrides, roles with
+ * tags, emojis and stickers, and the bot's own member.  Nothing connects to Discord.  The retained heap is
+ * measured after a full GC, before and after the guilds are built.
+ */
+public class HeapFootprintBenchmark {
+
+    private static final long BOT_ID = 1;
+
+    public static void main(String[] args) throws Exception {
+        int guilds = 1000, channels = 20, roles = 15, members = 1, emojis = 30;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            int value = Integer.parseInt(args[i + 1]);
+            switch(args[i]) {
+                case "-guilds" -> guilds = value;
+                case "-channels" -> channels = value;
+                case "-roles" -> roles = value;
+                case "-members" -> members = value;
+                case "-emojis" -> emojis = value;
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.printf("%d guilds, each with %d channels, %d roles, %d members and %d emojis%n%n",
+                guilds, channels, roles, members, emojis);
+        System.out.printf("%-10s %14s %18s%n", "profile", "retained KiB", "bytes per guild");
+        // run each profile twice, and report the second run, once the classes involved are loaded
+        for(int run = 0; run < 2; run++) {
+            for(RuntimeProfile profile : RuntimeProfile.values()) {
+                long before = usedHeap();
+                JDAImpl jda = load(profile, guilds, channels, roles, members, emojis);
+                long after = usedHeap();
+                if(jda.getGuildCache().size() != guilds)
+                    throw new IllegalStateException("Only " + jda.getGuildCache().size() + " guilds were cached");
+                if(run == 1)
+                    System.out.printf("%-10s %14d %18d%n", profile.name().toLowerCase(), (after - before) / 1024,
+                            (after - before) / guilds);
+            }
+        }
+    }
+
+    /** @return A JDA configured as the profile would be, with the synthetic guilds in its caches */
+    private static JDAImpl load(RuntimeProfile profile, int guilds, int channels, int roles, int members, int emojis)
+            throws ReflectiveOperationException {
+        JDABuilder builder = profile.createBuilder("benchmark");
+        EnumSet<GatewayIntent> intents = GatewayIntent.getIntents(field(builder, "intents"));
+        EnumSet<CacheFlag> cacheFlags = HeapFootprintBenchmark.<EnumSet<CacheFlag>>field(builder, "cacheFlags").clone();
+        cacheFlags.removeIf(flag -> flag.getRequiredIntent() != null && !intents.contains(flag.getRequiredIntent()));
+        EnumSet<ConfigFlag> configFlags = field(builder, "flags");
+
+        JDAImpl jda = new JDAImpl(new AuthorizationConfig("benchmark"),
+                new SessionConfig(null, null, null, null, configFlags, 900, field(builder, "largeThreshold")),
+                new ThreadingConfig(), new MetaConfig(2048, new ConcurrentHashMap<>(), cacheFlags, configFlags)) {
+            @Override
+            public boolean isIntent(GatewayIntent intent) {
+                return intents.contains(intent);
+            }
+
+            @Override
+            public EnumSet<GatewayIntent> getGatewayIntents() {
+                return EnumSet.copyOf(intents);
+            }
+        };
+        jda.setMemberCachePolicy(field(builder, "memberCachePolicy"));
+
+        EntityBuilder entityBuilder = jda.getEntityBuilder();
+        entityBuilder.createSelfUser(user(BOT_ID).put("verified", true).put("mfa_enabled", false));
+        Random random = new Random(42);
+        for(int g = 0; g < guilds; g++) {
+            long guildID = 1_000_000 + (long) g * 100_000;
+            DataObject guild = guild(guildID, channels, roles, emojis, random);
+            TLongObjectMap<DataObject> memberMap = new TLongObjectHashMap<>();
+            // without the privileged intents, Discord sends only the bot's own member - -members adds others
+            for(int m = 0; m < members; m++) {
+                long userID = m == 0 ? BOT_ID : guildID + 90_000 + m;
+                memberMap.put(userID, member(userID, guildID + 1 + random.nextInt(roles)));
+            }
+            entityBuilder.createGuild(guildID, guild, memberMap, 100 + random.nextInt(10_000));
+        }
+        return jda;
+    }
+
+    private static DataObject guild(long guildID, int channels, int roles, int emojis, Random random) {
+        DataArray roleArray = DataArray.empty().add(role(guildID, "@everyone", 0, false));
+        for(int r = 1; r <= roles; r++)
+            roleArray.add(role(guildID + r, "role " + r, r, r == roles));
+        DataArray channelArray = DataArray.empty();
+        for(int c = 0; c < channels; c++) {
+            DataArray overrides = DataArray.empty()
+                    .add(override(guildID, 0))
+                    .add(override(guildID + 1 + random.nextInt(roles), 0))
+                    .add(override(guildID + 90_000 + random.nextInt(1000), 1));
+            channelArray.add(DataObject.empty().put("id", guildID + 10_000 + c).put("type", 0)
+                    .put("name", "channel-" + c).put("topic", "The topic of channel " + c).put("position", c)
+                    .put("nsfw", false).put("rate_limit_per_user", 0).put("permission_overwrites", overrides));
+        }
+        DataArray emojiArray = DataArray.empty();
+        for(int e = 0; e < emojis; e++)
+            emojiArray.add(DataObject.empty().put("id", guildID + 20_000 + e).put("name", "emoji_" + e)
+                    .put("animated", false).put("available", true).put("managed", false).put("roles", DataArray.empty()));
+        DataArray stickerArray = DataArray.empty();
+        for(int s = 0; s < emojis / 6; s++)
+            stickerArray.add(DataObject.empty().put("id", guildID + 30_000 + s).put("name", "sticker " + s)
+                    .put("description", "A sticker").put("tags", "sticker").put("type", 2).put("format_type", 1)
+                    .put("available", true).put("guild_id", guildID));
+
+        return DataObject.empty().put("id", guildID).put("name", "Guild " + guildID).put("owner_id", guildID + 90_000)
+                .put("roles", roleArray).put("channels", channelArray).put("threads", DataArray.empty()).put("voice_states", DataArray.empty())
+                .put("emojis", emojiArray).put("stickers", stickerArray).put("features", DataArray.empty())
+                .put("guild_scheduled_events", DataArray.empty()).put("afk_timeout", 300)
+                .put("verification_level", 1).put("default_message_notifications", 1).put("explicit_content_filter", 2)
+                .put("mfa_level", 0).put("nsfw_level", 0).put("premium_tier", 0).put("preferred_locale", "en-US");
+    }
+
+    private static DataObject role(long roleID, String name, int position, boolean managed) {
+        DataObject role = DataObject.empty().put("id", roleID).put("name", name).put("permissions", "104324673")
+                .put("position", position).put("color", position * 4099).put("hoist", false).put("managed", managed)
+                .put("mentionable", false);
+        if(managed)
+            role.put("tags", DataObject.empty().put("bot_id", BOT_ID));
+        return role;
+    }
+
+    private static DataObject override(long id, int type) {
+        return DataObject.empty().put("id", id).put("type", type).put("allow", "3072").put("deny", "2048");
+    }
+
+    private static DataObject user(long userID) {
+        return DataObject.empty().put("id", userID).put("username", "user" + userID).put("discriminator", "0001")
+                .put("avatar", null).put("bot", userID == BOT_ID);
+    }
+
+    private static DataObject member(long userID, long roleID) {
+        return DataObject.empty().put("user", user(userID)).put("roles", DataArray.empty().add(roleID))
+                .put("joined_at", "2022-01-01T00:00:00.000000+00:00").put("deaf", false).put("mute", false);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T field(JDABuilder builder, String name) throws ReflectiveOperationException {
+        Field field = JDABuilder.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return (T) field.get(builder);
+    }
+
+}
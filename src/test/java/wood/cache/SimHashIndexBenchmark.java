@@ -0,0 +1,104 @@
+package wood.cache;
+
+import java.util.Random;
+
+/**
+ * Measures the memory and lookup cost of a full SimHashIndex:
+ * <pre>
+ * java -Xmx2g -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.cache.SimHashIndexBenchmark
+ *      [-entries 1000000] [-scopes 1000] [-lookups 1000000]
+ * </pre>
+ * For each maxDistance from 2 to 5, an index of -entries random signatures (across -scopes scopes, all sharing one
+ * value) is filled, and its heap use and the time per put() are reported.  Then get() is timed for hits (an entry's
+ * signature with maxDistance random bits flipped) and for misses (random signatures, none of which should be found).
+ * Finally SimHash.of() is timed for a typical prompt.
+ */
+public class SimHashIndexBenchmark {
+
+    private static final String PROMPT = "Write a short story about a lighthouse keeper who discovers that the light "
+            + "has been guiding something other than ships. Keep it under 300 words, in the style of a fairy tale, and "
+            + "end it with a twist that makes the reader see the keeper's loneliness in a new light.";
+
+    public static void main(String[] args) {
+        int entries = 1_000_000, scopes = 1000, lookups = 1_000_000;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-entries" -> entries = Integer.parseInt(args[i + 1]);
+                case "-scopes" -> scopes = Integer.parseInt(args[i + 1]);
+                case "-lookups" -> lookups = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.printf("%d entries in %d scopes, %d lookups%n%n", entries, scopes, lookups);
+        System.out.printf("%-12s %12s %10s %10s %11s %11s%n", "maxDistance", "B/entry", "ns/put", "ns/hit", "ns/miss",
+                "false hits");
+        for(int maxDistance = 2; maxDistance <= 5; maxDistance++)
+            run(maxDistance, entries, scopes, lookups);
+
+        int runs = 100_000;
+        long checksum = 0, start = System.nanoTime();
+        for(int i = 0; i < runs; i++)
+            checksum += SimHash.of(PROMPT);
+        System.out.printf("%nSimHash.of() of a %d character prompt: %.1f us (%d)%n", PROMPT.length(),
+                (System.nanoTime() - start) / 1e3 / runs, checksum & 1);
+    }
+
+    private static void run(int maxDistance, int entries, int scopes, int lookups) {
+        Random random = new Random(maxDistance);
+        long[] entryScopes = new long[entries], signatures = new long[entries];
+        for(int i = 0; i < entries; i++) {
+            entryScopes[i] = random.nextInt(scopes);
+            signatures[i] = random.nextLong();
+        }
+        Object value = new Object();
+
+        long before = usedHeap();
+        SimHashIndex<Object> index = new SimHashIndex<>(maxDistance, entries);
+        long start = System.nanoTime();
+        for(int i = 0; i < entries; i++)
+            index.put(entryScopes[i], signatures[i], value);
+        double putNanos = (double) (System.nanoTime() - start) / entries;
+        double bytesPerEntry = (double) (usedHeap() - before) / entries;
+
+        long[] hitScopes = new long[lookups], hitSignatures = new long[lookups];
+        for(int i = 0; i < lookups; i++) {
+            int entry = random.nextInt(entries);
+            hitScopes[i] = entryScopes[entry];
+            hitSignatures[i] = signatures[entry];
+            for(int flipped = 0; flipped < maxDistance; flipped++)
+                hitSignatures[i] ^= 1L << random.nextInt(64);
+        }
+        start = System.nanoTime();
+        int hits = 0;
+        for(int i = 0; i < lookups; i++)
+            if(index.get(hitScopes[i], hitSignatures[i]).isPresent())
+                hits++;
+        double hitNanos = (double) (System.nanoTime() - start) / lookups;
+        if(hits != lookups)
+            throw new IllegalStateException((lookups - hits) + " near matches weren't found");
+
+        long[] missScopes = new long[lookups], missSignatures = new long[lookups];
+        for(int i = 0; i < lookups; i++) {
+            missScopes[i] = random.nextInt(scopes);
+            missSignatures[i] = random.nextLong();
+        }
+        start = System.nanoTime();
+        int falseHits = 0;
+        for(int i = 0; i < lookups; i++)
+            if(index.get(missScopes[i], missSignatures[i]).isPresent())
+                falseHits++;
+        double missNanos = (double) (System.nanoTime() - start) / lookups;
+
+        System.out.printf("%-12d %12.1f %10.0f %10.0f %11.0f %11d%n", maxDistance, bytesPerEntry, putNanos, hitNanos,
+                missNanos, falseHits);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,201 @@
+package wood.cluster;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.discord_threads.PromptThread;
+import wood.scheduler.RequestContext;
+import wood.util.GPTRequest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Measures how throughput scales with the number of workers in clustered mode - each worker is a separate JVM:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.cluster.ClusterScalingBenchmark
+ *      [-workers 1,2,4] [-events 3000] [-threads 500] [-latency 25] [-concurrency 8]
+ * </pre>
+ * Every worker receives every event of a synthetic stream of /prompt messages (as every bot process receives every
+ * gateway event), and handles the ones in threads it owns: it loads the thread's state from the cluster's
+ * FileThreadStore the first time, requests a completion through GPTRequest.requestAsync() - so through the worker's own
+ * OpenAIScheduler and its per-model concurrency limit - from a stub that takes -latency ms, then saves the thread's
+ * state.  The events are all sent at once, so each run measures the cluster's capacity.  Ideal scaling is limited by
+ * how evenly the HashRing shares the threads out, which is reported per run.
+ */
+public class ClusterScalingBenchmark {
+
+    private static final String MODEL = GPTRequest.ada;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("worker")) {
+            runWorker(args);
+            return;
+        }
+
+        List<Integer> workerCounts = List.of(1, 2, 4);
+        int events = 3000, threads = 500, latency = 25, concurrency = 8;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-workers" -> workerCounts = Stream.of(args[i + 1].split(",")).map(Integer::parseInt).toList();
+                case "-events" -> events = Integer.parseInt(args[i + 1]);
+                case "-threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "-latency" -> latency = Integer.parseInt(args[i + 1]);
+                case "-concurrency" -> concurrency = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.printf("%d events across %d threads, %d ms stub latency, %d concurrent requests per worker%n%n",
+                events, threads, latency, concurrency);
+        System.out.printf("%-8s %10s %12s %9s %11s %16s%n", "workers", "time ms", "events/s", "speedup", "efficiency",
+                "largest share");
+        double baseline = 0;
+        for(int workers : workerCounts) {
+            Run run = runCluster(workers, events, threads, latency, concurrency);
+            double throughput = events * 1000.0 / run.elapsedMillis;
+            if(baseline == 0)
+                baseline = throughput / workers;
+            System.out.printf("%-8d %10d %12.1f %8.2fx %10.0f%% %15.1f%%%n", workers, run.elapsedMillis, throughput,
+                    throughput / baseline, 100 * throughput / (baseline * workers), 100.0 * run.largestShare / events);
+        }
+    }
+
+    /** Runs a cluster of worker processes over the event stream, and waits for all of them to finish */
+    private static Run runCluster(int workers, int events, int threads, int latency, int concurrency) throws Exception {
+        Path directory = Files.createTempDirectory("cluster-benchmark");
+        String java = ProcessHandle.current().info().command().orElse("java");
+        List<Process> processes = new ArrayList<>();
+        for(int i = 0; i < workers; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ClusterScalingBenchmark.class.getName(), "worker", "worker-" + i, directory.toString(),
+                    Integer.toString(workers), Integer.toString(events), Integer.toString(threads),
+                    Integer.toString(latency), Integer.toString(concurrency))
+                    .redirectError(ProcessBuilder.Redirect.DISCARD).start());
+        }
+
+        // once every worker is on every worker's ring, start them all at the same moment
+        while(readyWorkers(directory) < workers)
+            Thread.sleep(50);
+        Path start = directory.resolve("start.tmp");
+        Files.writeString(start, Long.toString(System.currentTimeMillis() + 500));
+        Files.move(start, directory.resolve("start"), StandardCopyOption.ATOMIC_MOVE);
+
+        Run run = new Run();
+        for(Process process : processes) {
+            try(BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while((line = output.readLine()) != null) {
+                    if(!line.startsWith("RESULT "))
+                        continue;
+                    String[] result = line.split(" ");
+                    run.largestShare = Math.max(run.largestShare, Integer.parseInt(result[1]));
+                    run.elapsedMillis = Math.max(run.elapsedMillis, Long.parseLong(result[2]));
+                }
+            }
+            process.waitFor();
+        }
+        try(Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+        return run;
+    }
+
+    private static long readyWorkers(Path directory) throws IOException {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("ready-")).count();
+        }
+    }
+
+    /** A worker process - handles the events in the threads it owns, then prints RESULT &lt;handled&gt; &lt;ms&gt; */
+    private static void runWorker(String[] args) throws Exception {
+        String workerID = args[1];
+        Path directory = Path.of(args[2]);
+        int workers = Integer.parseInt(args[3]), events = Integer.parseInt(args[4]), threads = Integer.parseInt(args[5]),
+                latency = Integer.parseInt(args[6]), concurrency = Integer.parseInt(args[7]);
+
+        Settings.publish(new Settings(DataObject.empty().put("defaultModelConcurrencyLimit", concurrency)
+                .put("userUSDBudget", 0).put("guildUSDBudget", 0).put("threadUSDBudget", 0), new Settings()), Map.of());
+        CompletionBackends.setOverride(new CompletionBackend() {
+            @Override
+            public String complete(GPTRequest request) {
+                try {
+                    Thread.sleep(latency);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return " and the completion.";
+            }
+
+            @Override
+            public boolean isBilled() {
+                return false;
+            }
+        });
+
+        Cluster.load(new String[] {"-worker", workerID, "-cluster", directory.toString()});
+        while(Cluster.getWorkers().size() < workers)
+            Thread.sleep(50);
+        Files.createFile(directory.resolve("ready-" + workerID));
+        Path start = directory.resolve("start");
+        while(!Files.exists(start))
+            Thread.sleep(10);
+        long startTime = Long.parseLong(Files.readString(start).trim());
+        Thread.sleep(Math.max(0, startTime - System.currentTimeMillis()));
+
+        // the same stream on every worker: events spread over the threads, in 20 guilds
+        Random random = new Random(42);
+        long firstThreadID = 1_000_000_000_000_000_000L;
+        Map<Long, PromptThread> threadMap = new ConcurrentHashMap<>();
+        List<long[]> owned = new ArrayList<>();
+        for(int i = 0; i < events; i++) {
+            long threadID = firstThreadID + random.nextInt(threads);
+            if(Cluster.owns(threadID))
+                owned.add(new long[] {threadID, threadID % 20 + 1});
+        }
+
+        CountDownLatch finished = new CountDownLatch(owned.size());
+        AtomicInteger failed = new AtomicInteger();
+        for(long[] event : owned) {
+            long threadID = event[0];
+            PromptThread thread = threadMap.computeIfAbsent(threadID, id -> Cluster.loadThread(id, PromptThread.TYPE)
+                    .map(PromptThread::new).orElseGet(() -> new PromptThread(id, MODEL, "Once upon a time")));
+            thread.concatenateToPrompt(" then something happened");
+            new GPTRequest.GPTRequestBuilder(MODEL, thread.getPrompt(), 16, true)
+                    .context(new RequestContext(event[1], 1, threadID, Long.MAX_VALUE))
+                    .build().requestAsync(false)
+                    .whenComplete((completion, e) -> {
+                        if(e != null)
+                            failed.incrementAndGet();
+                        else {
+                            thread.concatenateChoices(List.of(completion));
+                            Cluster.getStore().save(threadID, thread.toData());
+                        }
+                        finished.countDown();
+                    });
+        }
+        finished.await();
+        System.out.println("RESULT " + owned.size() + " " + (System.currentTimeMillis() - startTime) + " " + failed.get());
+        System.exit(0);
+    }
+
+    private static class Run {
+        private long elapsedMillis;
+        private int largestShare;
+    }
+
+}
@@ -0,0 +1,166 @@
+package wood.commands;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.backend.CompletionTask;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.util.GPTRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long a /prompt modal submission takes to have its first completion in its thread, with the title
+ * generated before the completion (as /prompt used to), and concurrently with it (as Prompt.readModal() does):
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.commands.PromptLatencyBenchmark
+ *      [-submissions 300] [-rate 4] [-title 400] [-completion 1200] [-thread 150]
+ * </pre>
+ * Submissions arrive at -rate per second (a Poisson process), and both the title and completion requests go through
+ * GPTRequest and the OpenAIScheduler, to a stub backend taking the given milliseconds (+/- 30%) for each - as does
+ * creating the thread.
+ */
+public class PromptLatencyBenchmark {
+
+    private static final String MODEL = GPTRequest.ada;
+
+    private static final ScheduledExecutorService discord = Executors.newScheduledThreadPool(4, r -> {
+        Thread thread = new Thread(r, "fake-discord");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static void main(String[] args) throws Exception {
+        int submissions = 300;
+        double rate = 4;
+        long titleMillis = 400, completionMillis = 1200, threadMillis = 150;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-submissions" -> submissions = Integer.parseInt(args[i + 1]);
+                case "-rate" -> rate = Double.parseDouble(args[i + 1]);
+                case "-title" -> titleMillis = Long.parseLong(args[i + 1]);
+                case "-completion" -> completionMillis = Long.parseLong(args[i + 1]);
+                case "-thread" -> threadMillis = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        Settings.publish(new Settings(DataObject.empty().put("userUSDBudget", 0).put("guildUSDBudget", 0)
+                .put("threadUSDBudget", 0).put("userTokenBudget", 0).put("guildTokenBudget", 0)
+                .put("threadTokenBudget", 0), new Settings()), Map.of());
+        long title = titleMillis, completion = completionMillis;
+        CompletionBackends.setOverride(new CompletionBackend() {
+            @Override
+            public String complete(GPTRequest request) {
+                sleep(request.getTask() == CompletionTask.TITLE ? title : completion);
+                return request.getTask() == CompletionTask.TITLE ? " A Title" : " and then the story went on.";
+            }
+
+            @Override
+            public boolean isBilled() {
+                return false;
+            }
+        });
+
+        System.out.printf("%d submissions at %.1f/s - title %d ms, completion %d ms, thread creation %d ms%n%n",
+                submissions, rate, titleMillis, completionMillis, threadMillis);
+        System.out.printf("%-12s %8s %8s %8s %8s%n", "title", "p50 ms", "p95 ms", "p99 ms", "max ms");
+        for(boolean concurrent : new boolean[] {false, true}) {
+            List<Long> latencies = run(concurrent, submissions, rate, threadMillis);
+            Collections.sort(latencies);
+            System.out.printf("%-12s %8d %8d %8d %8d%n", concurrent ? "concurrent" : "sequential",
+                    percentile(latencies, .5), percentile(latencies, .95), percentile(latencies, .99),
+                    latencies.get(latencies.size() - 1));
+        }
+    }
+
+    /** @return Each submission's time from the modal being submitted to its first completion being available */
+    private static List<Long> run(boolean concurrent, int submissions, double rate, long threadMillis) throws Exception {
+        Random random = new Random(42);
+        List<CompletableFuture<Long>> results = new ArrayList<>();
+        long next = System.nanoTime();
+        for(int i = 0; i < submissions; i++) {
+            next += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+            long wait = next - System.nanoTime();
+            if(wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+
+            String prompt = "Once upon a time, in submission " + i + ", there was a";
+            RequestContext context = new RequestContext(i % 10 + 1, i + 1, 0, Long.MAX_VALUE);
+            results.add(concurrent ? submitConcurrently(prompt, context, threadMillis)
+                    : submitSequentially(prompt, context, threadMillis));
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        for(CompletableFuture<Long> result : results)
+            latencies.add(result.get());
+        return latencies;
+    }
+
+    /** The title is generated, then the thread is created, then the completion is requested */
+    private static CompletableFuture<Long> submitSequentially(String prompt, RequestContext context, long threadMillis) {
+        long start = System.currentTimeMillis();
+        return titleRequest(prompt, context, Priority.INTERACTIVE).requestAsync(false)
+                .thenCompose(title -> createThread(threadMillis))
+                .thenCompose(v -> completionRequest(prompt, context).requestChoicesAsync(true))
+                .thenApply(texts -> System.currentTimeMillis() - start);
+    }
+
+    /** The completion is requested straight away, and the title once the thread has been created */
+    private static CompletableFuture<Long> submitConcurrently(String prompt, RequestContext context, long threadMillis) {
+        long start = System.currentTimeMillis();
+        CompletableFuture<List<String>> completion = completionRequest(prompt, context).requestChoicesAsync(true);
+        return createThread(threadMillis)
+                .thenCompose(v -> {
+                    titleRequest(prompt, context, Priority.COSMETIC).requestAsync(false).exceptionally(e -> null);
+                    return completion;
+                })
+                .thenApply(texts -> System.currentTimeMillis() - start);
+    }
+
+    private static GPTRequest titleRequest(String prompt, RequestContext context, Priority priority) {
+        return new GPTRequest.GPTRequestBuilder(MODEL, "Given the following prompt: \"" + prompt
+                + "\"\nA creative, yet very short title for the prompt is:", 7, true)
+                .context(context).priority(priority).task(CompletionTask.TITLE).build();
+    }
+
+    private static GPTRequest completionRequest(String prompt, RequestContext context) {
+        return new GPTRequest.GPTRequestBuilder(MODEL, prompt, 60).context(context).build();
+    }
+
+    /** @return A future completed once a thread would have been created */
+    private static CompletableFuture<Void> createThread(long threadMillis) {
+        CompletableFuture<Void> created = new CompletableFuture<>();
+        discord.schedule(() -> created.complete(null), jitter(threadMillis), TimeUnit.MILLISECONDS);
+        return created;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(jitter(millis));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return The milliseconds, +/- 30% */
+    private static long jitter(long millis) {
+        return Math.round(millis * ThreadLocalRandom.current().nextDouble(.7, 1.3));
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(fraction * sorted.size()) - 1));
+    }
+
+}
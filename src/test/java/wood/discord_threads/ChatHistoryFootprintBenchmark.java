@@ -0,0 +1,161 @@
+package wood.discord_threads;
+
+import wood.util.GPTUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the heap ChatHistory takes per 1k messages, against the three lists ChatThread used to keep:
+ * <pre>
+ * java -Xmx2g -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.discord_threads.ChatHistoryFootprintBenchmark
+ *      [-threads 200] [-messages 1000] [-budget 1500]
+ * </pre>
+ * Each of -threads threads gets -messages messages, alternating ~80 character messages from one of 5 users and ~200
+ * character replies from the chatbot - registered as Chat registers them.  The old layout keeps each message, its
+ * formatted copy (a new String for users' messages, the same one for the chatbot's), and the limited view trimmed to
+ * -budget tokens as ChatThread trimmed it.  The live heap is measured after GC, once with ASCII text, and once with
+ * some Cyrillic and CJK (which a String stores as UTF-16, and ChatHistory as UTF-8).  Then the time to rebuild a
+ * thread's whole formatted history is reported.
+ */
+public class ChatHistoryFootprintBenchmark {
+
+    private static final String CHATBOT_HANDLE = ChatThread.handleNamePrefix + "Assistant" + ChatThread.handleNameSuffix;
+
+    /** The letters words are made of - the Cyrillic and CJK ones take 2 and 3 bytes in UTF-8 */
+    private static final String ASCII = "abcdefghijklmnopqrstuvwxyz", CYRILLIC = letters('\u0430', '\u044f'),
+            CJK = letters('\u4e00', '\u4e7f');
+
+    public static void main(String[] args) {
+        int threads = 200, messages = 1000, budget = 1500;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "-messages" -> messages = Integer.parseInt(args[i + 1]);
+                case "-budget" -> budget = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.printf("%d threads of %d messages, limited view of %d tokens%n%n", threads, messages, budget);
+        System.out.printf("%-10s %-14s %14s %8s%n", "text", "layout", "KiB/1k msgs", "of old");
+        for(boolean mixedScripts : new boolean[] {false, true}) {
+            double old = measure(false, mixedScripts, threads, messages, budget);
+            double compact = measure(true, mixedScripts, threads, messages, budget);
+            String text = mixedScripts ? "mixed" : "ASCII";
+            System.out.printf("%-10s %-14s %14.1f %8s%n", text, "three lists", old, "");
+            System.out.printf("%-10s %-14s %14.1f %7.0f%%%n", text, "ChatHistory", compact, 100 * compact / old);
+        }
+
+        System.out.printf("%n%-10s %24s%n", "text", "ms to rebuild formatted");
+        for(boolean mixedScripts : new boolean[] {false, true}) {
+            ChatHistory history = new ChatHistory();
+            fill(history, null, mixedScripts, new Random(0), messages, budget);
+            int runs = 2000;
+            long length = 0, start = System.nanoTime();
+            for(int run = 0; run < runs; run++) {
+                StringBuilder formatted = new StringBuilder();
+                for(int i = 0; i < history.size(); i++)
+                    history.appendFormatted(formatted, i).append('\n');
+                length += formatted.length();
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / runs;
+            if(length == 0)
+                throw new IllegalStateException("Nothing was rebuilt");
+            System.out.printf("%-10s %24.3f%n", mixedScripts ? "mixed" : "ASCII", millis);
+        }
+    }
+
+    /** @return The live heap (KiB) per 1k messages of the threads, in the layout */
+    private static double measure(boolean compact, boolean mixedScripts, int threads, int messages, int budget) {
+        Random random = new Random(threads);
+        long before = usedHeap();
+        List<Object> kept = new ArrayList<>();
+        for(int thread = 0; thread < threads; thread++) {
+            if(compact) {
+                ChatHistory history = new ChatHistory();
+                fill(history, null, mixedScripts, random, messages, budget);
+                kept.add(history);
+            }
+            else {
+                ThreeLists lists = new ThreeLists();
+                fill(null, lists, mixedScripts, random, messages, budget);
+                kept.add(lists);
+            }
+        }
+        long after = usedHeap();
+        // the threads must still be reachable when the heap is measured
+        if(kept.size() != threads)
+            throw new IllegalStateException("Only " + kept.size() + " threads were kept");
+        return (after - before) / 1024.0 / threads / messages * 1000;
+    }
+
+    /** Registers the messages as Chat does, in whichever of history and lists isn't null */
+    private static void fill(ChatHistory history, ThreeLists lists, boolean mixedScripts, Random random, int messages,
+                             int budget) {
+        for(int i = 0; i < messages; i++) {
+            String message, formatted;
+            if(i % 2 == 0) {
+                message = text(random, 60 + random.nextInt(40), mixedScripts);
+                formatted = ChatThread.handleNamePrefix + "user" + random.nextInt(5) + ChatThread.handleNameSuffix + message;
+            }
+            else {
+                message = CHATBOT_HANDLE + text(random, 150 + random.nextInt(100), mixedScripts);
+                formatted = message;
+            }
+            if(history != null)
+                history.add(message, formatted, GPTUtil.countTokens(formatted));
+            else
+                lists.add(message, formatted, budget);
+        }
+    }
+
+    private static String text(Random random, int length, boolean mixedScripts) {
+        StringBuilder text = new StringBuilder(length);
+        while(text.length() < length) {
+            // a word in one script, then a space
+            String script = !mixedScripts ? ASCII : switch(random.nextInt(4)) {
+                case 0 -> CYRILLIC;
+                case 1 -> CJK;
+                default -> ASCII;
+            };
+            for(int letters = 2 + random.nextInt(6); letters > 0; letters--)
+                text.append(script.charAt(random.nextInt(script.length())));
+            text.append(' ');
+        }
+        return text.toString();
+    }
+
+    /** @return The characters from first to last, inclusive */
+    private static String letters(char first, char last) {
+        StringBuilder letters = new StringBuilder();
+        for(char c = first; c <= last; c++)
+            letters.append(c);
+        return letters.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** The layout ChatThread kept its history in before ChatHistory */
+    private static class ThreeLists {
+        private final List<String> messages = new ArrayList<>(), gptFormattedMsgs = new ArrayList<>(),
+                gptFormattedMsgsLimited = new ArrayList<>();
+        private int tokensInGPTFormattedMsgsLimited = 0;
+
+        private void add(String message, String gptFormattedMsg, int budget) {
+            messages.add(message);
+            gptFormattedMsgs.add(gptFormattedMsg);
+            gptFormattedMsgsLimited.add(gptFormattedMsg);
+            tokensInGPTFormattedMsgsLimited += GPTUtil.countTokens(gptFormattedMsg);
+            while(tokensInGPTFormattedMsgsLimited > budget && gptFormattedMsgsLimited.size() > 1)
+                tokensInGPTFormattedMsgsLimited -= GPTUtil.countTokens(gptFormattedMsgsLimited.remove(1)) + 1;
+        }
+    }
+
+}
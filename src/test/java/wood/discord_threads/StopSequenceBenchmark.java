@@ -0,0 +1,158 @@
+package wood.discord_threads;
+
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.util.GPTRequest;
+import wood.util.GPTUtil;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the completion tokens and latency ChatThread.stopSequences() saves per /chat reply:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.discord_threads.StopSequenceBenchmark
+ *      [-replies 1500] [-maxTokens 150] [-seed 1]
+ * </pre>
+ * Each reply is requested through GPTRequest as Chat requests it from a stand-in model: without stop sequences, with
+ * the start of any handle ("\n[") as the only one, and with ChatThread.stopSequences() of the chatbot and the 3 most
+ * recent of the chat's 4 users, as getReplyStopSequences() picks them.  The model writes the chatbot's turn (10-60
+ * words - 5% with a line starting with a markdown link, and 3% with "]> " in code), then either ends the text (25%),
+ * or starts another turn: of one of the 4 users, the chatbot, or (20%) someone it invents.  It carries on until
+ * maxTokens, then the API's stop sequence rules are applied - the text ends before the first stop sequence, which
+ * isn't returned.  Replies that ran on into another turn are counted before Chat trims it (with
+ * ChatThread.trimOtherTurns()), and replies cut short within the chatbot's turn after.  Latency is modelled as 200 ms
+ * + 20 ms per token generated (including the stop sequence), rather than waited for.  Each reply is generated from
+ * the same seed every way, so the only difference is the stop sequences.
+ */
+public class StopSequenceBenchmark {
+
+    private static final String CHATBOT = "Assistant";
+
+    private static final List<String> USERS = List.of("alice", "bob", "carol", "dave");
+
+    /** A line starting with a handle - another turn after the chatbot's */
+    private static final Pattern OTHER_TURN = Pattern.compile("\n" + Pattern.quote(ChatThread.handleNamePrefix)
+            + "[^\\s\\]]+" + Pattern.quote(ChatThread.handleNameSuffix));
+
+    private static final String[] WORDS = ("the a of to and is in it you that for on with as this be are was not "
+            + "but can have what about your if there so more like just think would how when from").split(" ");
+
+    public static void main(String[] args) {
+        int replies = 1500, maxTokens = 150;
+        long seed = 1;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-replies" -> replies = Integer.parseInt(args[i + 1]);
+                case "-maxTokens" -> maxTokens = Integer.parseInt(args[i + 1]);
+                case "-seed" -> seed = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        StandInModel model = new StandInModel();
+        CompletionBackends.setOverride(model);
+        String prompt = ChatThread.handleNamePrefix + USERS.get(0) + ChatThread.handleNameSuffix + "hi there\n"
+                + ChatThread.handleNamePrefix + CHATBOT + ChatThread.handleNameSuffix;
+
+        System.out.printf("%d replies of up to %d tokens%n%n", replies, maxTokens);
+        List<String> handles = new ArrayList<>(List.of(handle(CHATBOT)));
+        USERS.subList(0, GPTRequest.MAX_STOP_SEQUENCES - 1).forEach(user -> handles.add(handle(user)));
+        Map<String, List<String>> configurations = new LinkedHashMap<>();
+        configurations.put("none", null);
+        configurations.put("\\n[", List.of("\n" + ChatThread.handleNamePrefix));
+        configurations.put("named handles", ChatThread.stopSequences(handles));
+
+        System.out.printf("%-16s %12s %12s %18s %12s %12s%n", "stop sequences", "tokens", "latency ms", "with other turns",
+                "cut short", "saved");
+        double withoutTokens = 0;
+        for(Map.Entry<String, List<String>> configuration : configurations.entrySet()) {
+            long tokens = 0, otherTurns = 0, cutShort = 0;
+            for(int reply = 0; reply < replies; reply++) {
+                model.random = new Random(seed * 1_000_003 + reply);
+                GPTRequest.GPTRequestBuilder builder = new GPTRequest.GPTRequestBuilder(GPTRequest.inDavinci, prompt,
+                        maxTokens);
+                if(configuration.getValue() != null)
+                    builder.stopSequences(configuration.getValue());
+                String completion = builder.build().request();
+
+                tokens += model.generatedTokens;
+                if(OTHER_TURN.matcher(completion).find())
+                    otherTurns++;
+                // what Chat sends, once it's trimmed the turns the stop sequences didn't end
+                if(ChatThread.trimOtherTurns(completion).length() < model.chatbotTurn.length())
+                    cutShort++;
+            }
+            double meanTokens = (double) tokens / replies, meanLatency = 200 + 20 * meanTokens;
+            if(configuration.getValue() == null)
+                withoutTokens = meanTokens;
+            System.out.printf("%-16s %12.1f %12.0f %11d (%2.0f%%) %12d %11.0f%%%n", configuration.getKey(), meanTokens,
+                    meanLatency, otherTurns, 100.0 * otherTurns / replies, cutShort, 100 * (1 - meanTokens / withoutTokens));
+        }
+        CompletionBackends.setOverride(null);
+    }
+
+    private static String handle(String name) {
+        return ChatThread.handleNamePrefix + name + ChatThread.handleNameSuffix;
+    }
+
+    /** Writes the chatbot's turn, then other turns, up to maxTokens - and applies the request's stop sequences */
+    private static class StandInModel implements CompletionBackend {
+        private Random random;
+
+        /** The last completion's generated tokens (including the stop sequence it ended at), and the chatbot's turn */
+        private int generatedTokens;
+        private String chatbotTurn;
+
+        @Override
+        public String complete(GPTRequest request) {
+            StringBuilder text = new StringBuilder(" ");
+            turn(text);
+            chatbotTurn = text.toString();
+            while(GPTUtil.countTokens(text.toString()) < request.getMaxTokens() && random.nextDouble() >= .25) {
+                double who = random.nextDouble();
+                String name = who < .2 ? "guest" + random.nextInt(100)
+                        : who < .4 ? CHATBOT : USERS.get(random.nextInt(USERS.size()));
+                text.append('\n').append(ChatThread.handleNamePrefix).append(name).append(ChatThread.handleNameSuffix);
+                turn(text);
+            }
+            String generated = text.substring(0, Math.min(text.length(), request.getMaxTokens() * 4));
+
+            // the API stops before the first stop sequence, having generated it
+            int end = generated.length(), stopLength = 0;
+            if(request.getStopSequences() != null) {
+                for(String stop : request.getStopSequences()) {
+                    int index = generated.indexOf(stop);
+                    if(index >= 0 && index < end) {
+                        end = index;
+                        stopLength = stop.length();
+                    }
+                }
+            }
+            generatedTokens = GPTUtil.countTokens(generated.substring(0, Math.min(generated.length(), end + stopLength)));
+            return generated.substring(0, end);
+        }
+
+        private void turn(StringBuilder text) {
+            int words = 10 + random.nextInt(51);
+            boolean link = random.nextDouble() < .05, code = random.nextDouble() < .03;
+            for(int i = 0; i < words; i++) {
+                if(link && i == words / 2)
+                    text.append('\n').append(ChatThread.handleNamePrefix).append("the docs](https://example.com)");
+                else if(code && i == words / 2)
+                    text.append(" if(a[i]> b)");
+                text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+            }
+        }
+
+        @Override
+        public boolean isBilled() {
+            return false;
+        }
+    }
+
+}
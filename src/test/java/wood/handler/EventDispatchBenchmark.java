@@ -0,0 +1,134 @@
+package wood.handler;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures event throughput, reply latency and live threads for the ways a handler can make its Discord requests:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.handler.EventDispatchBenchmark
+ *      [-events 200] [-rate 100] [-rtt 40]
+ * </pre>
+ * Events arrive on one gateway thread at -rate per second, and are dispatched through NonBlockingEventManager to a
+ * handler that makes two Discord requests (e.g. deferring, then editing the reply) of -rtt ms each: blocking on each
+ * with complete() in a new thread per event (as CommandHandler used to), blocking on the event thread, or chaining them
+ * with queue() (as the handlers do now).
+ */
+public class EventDispatchBenchmark {
+
+    /** Stands in for Discord - requests complete after the round trip time, on JDA's callback threads */
+    private static final ScheduledExecutorService discord = Executors.newScheduledThreadPool(4, r -> {
+        Thread thread = new Thread(r, "fake-discord");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum Mode { THREAD_PER_EVENT, BLOCKING, QUEUE }
+
+    public static void main(String[] args) throws Exception {
+        int events = 200;
+        double rate = 100;
+        long rtt = 40;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-events" -> events = Integer.parseInt(args[i + 1]);
+                case "-rate" -> rate = Double.parseDouble(args[i + 1]);
+                case "-rtt" -> rtt = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        System.out.printf("%d events at %.0f/s, 2 requests of %d ms each%n%n", events, rate, rtt);
+        System.out.printf("%-18s %10s %10s %10s %13s%n", "handler", "events/s", "p50 ms", "p99 ms", "peak threads");
+        for(Mode mode : Mode.values())
+            run(mode, events, rate, rtt);
+    }
+
+    private static void run(Mode mode, int events, double rate, long rtt) throws Exception {
+        NonBlockingEventManager manager = new NonBlockingEventManager();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch replied = new CountDownLatch(events);
+        manager.register((EventListener) event -> {
+            long received = ((Event) event).arrived;
+            Runnable done = () -> {
+                latencies.add(System.currentTimeMillis() - received);
+                replied.countDown();
+            };
+            switch(mode) {
+                case THREAD_PER_EVENT -> new Thread(() -> {
+                    request(rtt).join();
+                    request(rtt).join();
+                    done.run();
+                }).start();
+                case BLOCKING -> {
+                    request(rtt).join();
+                    request(rtt).join();
+                    done.run();
+                }
+                case QUEUE -> request(rtt).thenCompose(v -> request(rtt)).thenRun(done);
+            }
+        });
+
+        // count the live threads while the events are handled
+        AtomicInteger peakThreads = new AtomicInteger(Thread.activeCount());
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> peakThreads.accumulateAndGet(Thread.activeCount(), Math::max),
+                0, 5, TimeUnit.MILLISECONDS);
+
+        long start = System.currentTimeMillis();
+        long intervalNanos = (long) (1e9 / rate), next = System.nanoTime();
+        for(int i = 0; i < events; i++) {
+            next += intervalNanos;
+            long wait = next - System.nanoTime();
+            if(wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+            // latency counts from when the event arrived, however long it waited for the event thread
+            manager.handle(new Event(start + (long) ((i + 1) * 1000 / rate)));
+        }
+        replied.await();
+        long elapsed = System.currentTimeMillis() - start;
+        sampler.shutdownNow();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        System.out.printf("%-18s %10.1f %10d %10d %13d%n", mode.name().toLowerCase(), events * 1000.0 / elapsed,
+                sorted.get(sorted.size() / 2), sorted.get((int) Math.ceil(.99 * sorted.size()) - 1), peakThreads.get());
+    }
+
+    /** @return A future completed after the round trip time, as a queued RestAction's would be */
+    private static CompletableFuture<Void> request(long rtt) {
+        CompletableFuture<Void> response = new CompletableFuture<>();
+        discord.schedule(() -> response.complete(null), rtt, TimeUnit.MILLISECONDS);
+        return response;
+    }
+
+    private static class Event implements GenericEvent {
+        private final long arrived;
+
+        private Event(long arrived) {
+            this.arrived = arrived;
+        }
+
+        @Override
+        public JDA getJDA() {
+            return null;
+        }
+
+        @Override
+        public long getResponseNumber() {
+            return 0;
+        }
+    }
+
+}
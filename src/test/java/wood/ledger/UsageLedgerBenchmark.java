@@ -0,0 +1,92 @@
+package wood.ledger;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long UsageLedgerReader takes to aggregate a ledger:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.ledger.UsageLedgerBenchmark [-records 1500000]
+ * </pre>
+ * The records (from 200 guilds, 5000 users and 20000 threads, over 30 days, with 4 models) are written to ledger files
+ * of at most a million records in a temporary directory, as UsageLedger writes them, then aggregated by guild and by
+ * model.  The first pass (which also warms up the JIT) is reported separately.
+ */
+public class UsageLedgerBenchmark {
+
+    private static final List<String> MODELS = List.of("text-davinci-002", "text-curie-001", "davinci", "ada");
+
+    /** The records per ledger file - as UsageLedger rotates them */
+    private static final int RECORDS_PER_FILE = 1_000_000;
+
+    public static void main(String[] args) throws IOException {
+        int records = 1_500_000;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-records" -> records = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("ledger-benchmark");
+        try {
+            long start = System.currentTimeMillis();
+            write(dir, records);
+            System.out.printf("Wrote %d records in %d ms%n%n", records, System.currentTimeMillis() - start);
+
+            System.out.printf("%-8s %8s %10s%n", "by", "groups", "ms");
+            Map<String, BiFunction<MappedByteBuffer, Integer, String>> groupings = Map.of(
+                    "guild", (buffer, offset) -> Long.toString(buffer.getLong(offset + 8)),
+                    "model", UsageRecord::model);
+            aggregate(dir, "warm-up", groupings.get("guild"));
+            for(String by : List.of("guild", "model"))
+                aggregate(dir, by, groupings.get(by));
+        } finally {
+            try(Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    private static void aggregate(Path dir, String by, BiFunction<MappedByteBuffer, Integer, String> grouping)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, UsageLedgerReader.Totals> totals = UsageLedgerReader.aggregate(dir, 0, Long.MAX_VALUE, grouping);
+        System.out.printf("%-8s %8d %10d%n", by, totals.size(), System.currentTimeMillis() - start);
+    }
+
+    /** Writes the records across ledger files of up to RECORDS_PER_FILE records */
+    private static void write(Path dir, int records) throws IOException {
+        Random random = new Random(42);
+        long firstTimestamp = System.currentTimeMillis() - 30L * 24 * 60 * 60 * 1000;
+        long interval = 30L * 24 * 60 * 60 * 1000 / records;
+        for(int file = 0; file * RECORDS_PER_FILE < records; file++) {
+            int count = Math.min(RECORDS_PER_FILE, records - file * RECORDS_PER_FILE);
+            Path path = dir.resolve(UsageLedger.FILE_PREFIX + file + UsageLedger.FILE_EXTENSION);
+            try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        (long) count * UsageRecord.RECORD_BYTES);
+                for(int i = 0; i < count; i++) {
+                    long n = (long) file * RECORDS_PER_FILE + i;
+                    new UsageRecord(firstTimestamp + n * interval, 1 + random.nextInt(200), 1 + random.nextInt(5000),
+                            1 + random.nextInt(20_000), MODELS.get(random.nextInt(MODELS.size())),
+                            50 + random.nextInt(2000), 1 + random.nextInt(256), 200 + random.nextInt(3000),
+                            random.nextInt(50_000)).write(buffer);
+                }
+                buffer.force();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package wood.replay;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+import wood.backend.CompletionBackend;
+import wood.backend.CompletionBackends;
+import wood.scheduler.Priority;
+import wood.scheduler.RequestContext;
+import wood.util.GPTRequest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records synthetic traffic with TrafficRecorder, for TrafficReplayer to replay - it's how the baseline recording in
+ * src/test/resources/replay was made:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.replay.SyntheticTrafficRecording
+ *      [-file traffic.rec] [-requests 400] [-rate 10] [-seed 1]
+ * </pre>
+ * Requests arrive at -rate per second on average, in bursts, from one busy guild and 20 quiet ones: mostly /prompt
+ * and /chat completions (interactive, with a 20 s deadline) for text-davinci-002, and some thread titles (cosmetic)
+ * for text-curie-001.  They're sent through GPTRequest.requestAsync() and the OpenAIScheduler, as the handlers send
+ * them, to a stub that takes 300-2500 ms and fails 1% of the time.  The message each request answers is recorded as a
+ * handler input.
+ */
+public class SyntheticTrafficRecording {
+
+    public static void main(String[] args) throws Exception {
+        Path file = Path.of("traffic.rec");
+        int requests = 400;
+        double rate = 10;
+        long seed = 1;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-file" -> file = Path.of(args[i + 1]);
+                case "-requests" -> requests = Integer.parseInt(args[i + 1]);
+                case "-rate" -> rate = Double.parseDouble(args[i + 1]);
+                case "-seed" -> seed = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+
+        // budgets are disabled, as they are when replaying
+        Settings.publish(new Settings(DataObject.empty().put("userUSDBudget", 0).put("guildUSDBudget", 0)
+                .put("threadUSDBudget", 0), new Settings()), Map.of());
+        Random random = new Random(seed);
+        CompletionBackends.setOverride(new CompletionBackend() {
+            @Override
+            public String complete(GPTRequest request) {
+                long latency;
+                boolean fail;
+                synchronized(random) {
+                    latency = 300 + (long) Math.min(2200, -Math.log(1 - random.nextDouble()) * 500);
+                    fail = random.nextDouble() < .01;
+                }
+                try {
+                    Thread.sleep(latency);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if(fail)
+                    throw new RuntimeException("Synthetic API failure");
+                return "x".repeat(request.getMaxTokens() * 3);
+            }
+
+            @Override
+            public boolean isBilled() {
+                return false;
+            }
+        });
+
+        Files.deleteIfExists(file);
+        TrafficRecorder.load(new String[] {"-record", file.toString()});
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for(int i = 0; i < requests; i++) {
+            // bursts: a quarter of the requests arrive together with the one before
+            double gap;
+            synchronized(random) {
+                gap = random.nextDouble() < .25 ? 0 : -Math.log(1 - random.nextDouble()) / rate * 4 / 3;
+            }
+            TimeUnit.MICROSECONDS.sleep((long) (gap * 1e6));
+
+            long guildID, userID, threadID;
+            boolean title;
+            int messageLength, promptTokens, maxTokens;
+            synchronized(random) {
+                guildID = random.nextDouble() < .4 ? 1 : 2 + random.nextInt(20);
+                userID = guildID * 100 + random.nextInt(10);
+                threadID = guildID * 1000 + random.nextInt(guildID == 1 ? 50 : 5);
+                title = random.nextDouble() < .1;
+                messageLength = 20 + random.nextInt(400);
+                promptTokens = 100 + random.nextInt(1500);
+                maxTokens = title ? 16 : 40 + random.nextInt(200);
+            }
+            TrafficRecorder.recordEvent(Recording.Kind.MESSAGE, guildID, threadID, userID, messageLength);
+            GPTRequest request = new GPTRequest.GPTRequestBuilder(title ? GPTRequest.inCurie : GPTRequest.inDavinci,
+                    "x".repeat(promptTokens * 4), maxTokens)
+                    .context(new RequestContext(guildID, userID, threadID,
+                            title ? Long.MAX_VALUE : System.currentTimeMillis() + 20_000))
+                    .priority(title ? Priority.COSMETIC : Priority.INTERACTIVE)
+                    .build();
+            futures.add(request.requestAsync(false).exceptionally(e -> null));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        // the recorder's callbacks can run after the ones joined here
+        Thread.sleep(500);
+        TrafficRecorder.stop();
+        CompletionBackends.setOverride(null);
+        System.out.println("Recorded " + requests + " requests to '" + file + "' (" + Files.size(file) + " bytes)");
+    }
+
+}
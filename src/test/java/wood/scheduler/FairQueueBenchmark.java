@@ -0,0 +1,115 @@
+package wood.scheduler;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+import wood.Settings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures how fairly, and how cheaply, requests are queued across guilds:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; wood.scheduler.FairQueueBenchmark
+ *      [-big 400] [-threads 50] [-small 100] [-guilds 20] [-concurrency 8] [-latency 20]
+ * </pre>
+ * First one big guild queues -big requests across -threads threads at once, and while they're backed up -guilds small
+ * guilds send -small requests between them - through the OpenAIScheduler, with -concurrency requests of -latency ms
+ * in flight.  It's run with each guild fairly queued, then with every request in one guild and its own thread (so in
+ * arrival order), and the time each group's requests waited to be sent is reported.  Then FairQueue's add() and poll()
+ * are timed with more and more guilds queued.
+ */
+public class FairQueueBenchmark {
+
+    private static final String MODEL = "ada";
+
+    public static void main(String[] args) throws Exception {
+        int big = 400, threads = 50, small = 100, guilds = 20, concurrency = 8;
+        long latency = 20;
+        for(int i = 0; i + 1 < args.length; i += 2) {
+            switch(args[i]) {
+                case "-big" -> big = Integer.parseInt(args[i + 1]);
+                case "-threads" -> threads = Integer.parseInt(args[i + 1]);
+                case "-small" -> small = Integer.parseInt(args[i + 1]);
+                case "-guilds" -> guilds = Integer.parseInt(args[i + 1]);
+                case "-concurrency" -> concurrency = Integer.parseInt(args[i + 1]);
+                case "-latency" -> latency = Long.parseLong(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+        Settings.publish(new Settings(DataObject.empty().put("defaultModelConcurrencyLimit", concurrency), new Settings()),
+                Map.of());
+
+        System.out.printf("%d requests from 1 guild in %d threads, then %d from %d guilds - %d in flight, %d ms each%n%n",
+                big, threads, small, guilds, concurrency, latency);
+        System.out.printf("%-10s %-8s %8s %8s %8s%n", "order", "guilds", "p50 ms", "p99 ms", "max ms");
+        for(boolean fair : new boolean[] {true, false}) {
+            List<List<Long>> waits = run(fair, big, threads, small, guilds, latency);
+            for(int group = 0; group < 2; group++) {
+                List<Long> sorted = waits.get(group);
+                Collections.sort(sorted);
+                System.out.printf("%-10s %-8s %8d %8d %8d%n", fair ? "fair" : "arrival", group == 0 ? "big" : "small",
+                        percentile(sorted, .5), percentile(sorted, .99), sorted.get(sorted.size() - 1));
+            }
+        }
+
+        System.out.printf("%n%-10s %16s%n", "guilds", "ns per add+poll");
+        for(int queuedGuilds : new int[] {10, 1_000, 100_000})
+            System.out.printf("%-10d %16.0f%n", queuedGuilds, timeAddAndPoll(queuedGuilds));
+    }
+
+    /** @return The queue waits (ms) of the big guild's requests, and of the small guilds' */
+    private static List<List<Long>> run(boolean fair, int big, int threads, int small, int guilds, long latency)
+            throws Exception {
+        List<Long> bigWaits = Collections.synchronizedList(new ArrayList<>()),
+                smallWaits = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        long request = 0;
+        for(int i = 0; i < big; i++, request++)
+            futures.add(submit(fair ? 1 : 0, fair ? i % threads + 1 : request, latency, bigWaits));
+
+        // the small guilds' requests arrive spread over the time the big guild's backlog takes to clear
+        long smallInterval = Math.max(1, big * latency / Settings.get().getModelConcurrencyLimit(MODEL) / small / 2);
+        for(int i = 0; i < small; i++, request++) {
+            Thread.sleep(smallInterval);
+            futures.add(submit(fair ? 100 + i % guilds : 0, fair ? 1000 + i : request, latency, smallWaits));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+        return List.of(bigWaits, smallWaits);
+    }
+
+    private static CompletableFuture<?> submit(long guildID, long threadID, long latency, List<Long> waits) {
+        long submitted = System.currentTimeMillis();
+        return OpenAIScheduler.submit(new RequestContext(guildID, 1, threadID, Long.MAX_VALUE), Priority.INTERACTIVE,
+                MODEL, () -> {
+                    waits.add(System.currentTimeMillis() - submitted);
+                    Thread.sleep(latency);
+                    return null;
+                });
+    }
+
+    /** @return The mean time to add an item to, and poll one from, a FairQueue holding items of the guilds */
+    private static double timeAddAndPoll(int guilds) {
+        FairQueue<long[]> queue = new FairQueue<>(Comparator.comparingLong(item -> item[0]));
+        long sequence = 0;
+        for(int guild = 0; guild < guilds; guild++)
+            for(int thread = 0; thread < 4; thread++)
+                queue.add(guild, thread, 1 + guild % 3, new long[] {sequence++});
+
+        int operations = 2_000_000;
+        long start = System.nanoTime();
+        for(int i = 0; i < operations; i++) {
+            queue.poll();
+            queue.add(i % guilds, i % 4, 1 + i % guilds % 3, new long[] {sequence++});
+        }
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(fraction * sorted.size()) - 1));
+    }
+
+}